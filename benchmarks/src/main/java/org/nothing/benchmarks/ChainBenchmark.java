@@ -0,0 +1,73 @@
+package org.nothing.benchmarks;
+
+import static org.nothing.JdbcCanBeNice.*;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.nothing.ChainableJdbcAction;
+import org.nothing.JdbcAction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of building and running chains of actions made with
+ * {@link ChainableJdbcAction#then(JdbcAction)}. The chained actions don't
+ * touch the database, so only the chaining is measured.
+ * 
+ * @author Jawher
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChainBenchmark {
+	private static final JdbcAction<Integer> NOOP = new JdbcAction<Integer>() {
+
+		public Integer doWithConnection(Connection connection)
+				throws SQLException {
+			return 1;
+		}
+	};
+
+	@Param( { "1", "10", "100", "1000", "10000" })
+	public int length;
+
+	private ChainableJdbcAction<Integer> chain;
+
+	@Setup
+	public void setUp() {
+		chain = build();
+	}
+
+	@Benchmark
+	public ChainableJdbcAction<Integer> buildChain() {
+		return build();
+	}
+
+	@Benchmark
+	public Integer runChain() throws SQLException {
+		return chain.doWithConnection(null);
+	}
+
+	private ChainableJdbcAction<Integer> build() {
+		ChainableJdbcAction<Integer> res = sqlMakeChainable(NOOP);
+		for (int i = 1; i < length; i++) {
+			res = res.then(NOOP);
+		}
+		return res;
+	}
+}
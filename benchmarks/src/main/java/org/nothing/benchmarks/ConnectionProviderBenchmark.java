@@ -0,0 +1,85 @@
+package org.nothing.benchmarks;
+
+import static org.nothing.JdbcCanBeNice.*;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.nothing.ConnectionProvider;
+import org.nothing.JdbcAction;
+import org.nothing.PoolConfig;
+import org.nothing.PooledConnectionProvider;
+import org.nothing.ThreadAffineConnectionProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of getting a connection from the connection providers when many
+ * threads (64) compete for it. The action run doesn't touch the database.
+ * 
+ * @author Jawher
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(64)
+public class ConnectionProviderBenchmark {
+	private static final JdbcAction<Connection> NOOP = new JdbcAction<Connection>() {
+
+		public Connection doWithConnection(Connection connection)
+				throws SQLException {
+			return connection;
+		}
+	};
+
+	private ConnectionProvider cachingProvider;
+	private PooledConnectionProvider pool;
+	private ThreadAffineConnectionProvider threadAffineProvider;
+
+	@Setup
+	public void setUp() throws SQLException {
+		ConnectionProvider database = Database.create();
+		cachingProvider = cachingConnectionProvider(database);
+		pool = pooledConnectionProvider(database, new PoolConfig().minSize(8)
+				.maxSize(8).validateOnBorrow(false));
+		pool.fill();
+		threadAffineProvider = threadAffineConnectionProvider(database, 64);
+	}
+
+	@TearDown
+	public void tearDown() throws SQLException {
+		Database.close(cachingProvider.get());
+		pool.close();
+		threadAffineProvider.close();
+	}
+
+	@Benchmark
+	public Connection cachingProvider() {
+		return doWithConnection(NOOP, cachingProvider);
+	}
+
+	@Benchmark
+	public Connection pooledProvider() {
+		return doWithConnection(NOOP, pool);
+	}
+
+	@Benchmark
+	public Connection threadAffineProvider() {
+		return doWithConnection(NOOP, threadAffineProvider);
+	}
+}
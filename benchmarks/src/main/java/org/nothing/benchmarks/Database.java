@@ -0,0 +1,64 @@
+package org.nothing.benchmarks;
+
+import static org.nothing.JdbcCanBeNice.*;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.nothing.ConnectionProvider;
+
+/**
+ * An in-memory H2 database holding a <code>person</code> table, private to
+ * the benchmark that created it
+ * 
+ * @author Jawher
+ * 
+ */
+public final class Database {
+	private static final AtomicInteger COUNT = new AtomicInteger();
+
+	private Database() {
+	}
+
+	/**
+	 * @return a provider opening a new connection to a brand new database
+	 *         upon every call. The database lives as long as the JVM.
+	 */
+	public static ConnectionProvider create() {
+		return driverManagerConnectionProvider("org.h2.Driver",
+				"jdbc:h2:mem:bench" + COUNT.incrementAndGet()
+						+ ";DB_CLOSE_DELAY=-1", "sa", "");
+	}
+
+	/**
+	 * Creates the <code>person</code> table and fills it
+	 * 
+	 * @param rows
+	 *            the number of persons, with ids from 0 to rows - 1
+	 */
+	public static void createPersons(ConnectionProvider connectionProvider,
+			int rows) {
+		List<Object[]> persons = new ArrayList<Object[]>(rows);
+		for (int i = 0; i < rows; i++) {
+			persons.add(new Object[] { (long) i, "person " + i, i % 100,
+					i * 1.5 });
+		}
+		doWithConnection(sqlTx(sqlUpdate(
+				"create table person (id bigint primary key, name varchar(64),"
+						+ " age int, balance double)").then(
+				sqlBulkInsert("person", new String[] { "id", "name", "age",
+						"balance" }, persons))), connectionProvider);
+	}
+
+	static void close(Connection connection) {
+		if (connection != null) {
+			try {
+				connection.close();
+			} catch (SQLException e) {
+			}
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package org.nothing.benchmarks;
+
+/**
+ * A row of the <code>person</code> table
+ * 
+ * @author Jawher
+ * 
+ */
+public class Person {
+	private long id;
+	private String name;
+	private int age;
+	private double balance;
+
+	public long getId() {
+		return id;
+	}
+
+	public void setId(long id) {
+		this.id = id;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public int getAge() {
+		return age;
+	}
+
+	public void setAge(int age) {
+		this.age = age;
+	}
+
+	public double getBalance() {
+		return balance;
+	}
+
+	public void setBalance(double balance) {
+		this.balance = balance;
+	}
+}
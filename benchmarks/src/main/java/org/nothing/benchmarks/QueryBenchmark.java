@@ -0,0 +1,121 @@
+package org.nothing.benchmarks;
+
+import static org.nothing.JdbcCanBeNice.*;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.nothing.ColumnarResult;
+import org.nothing.ConnectionProvider;
+import org.nothing.RowCallback;
+import org.nothing.RowMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The cost of reading and mapping rows with the different query actions.
+ * Run with <code>-prof gc</code> to get the allocations per row.
+ * 
+ * @author Jawher
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryBenchmark {
+	private static final String SQL = "select id, name, age, balance from person where id < ?";
+
+	private static final RowMapper<Person> HAND_MAPPER = new RowMapper<Person>() {
+
+		public Person mapRow(ResultSet resultSet, int row) throws SQLException {
+			Person person = new Person();
+			person.setId(resultSet.getLong(1));
+			person.setName(resultSet.getString(2));
+			person.setAge(resultSet.getInt(3));
+			person.setBalance(resultSet.getDouble(4));
+			return person;
+		}
+	};
+
+	@Param( { "1", "100", "10000" })
+	public int rows;
+
+	private Connection connection;
+	private ConnectionProvider connectionProvider;
+	private RowMapper<Person> beanMapper;
+
+	@Setup
+	public void setUp() throws SQLException {
+		ConnectionProvider database = Database.create();
+		Database.createPersons(database, rows);
+		connection = database.get();
+		connectionProvider = new ConnectionProvider() {
+
+			public Connection get() throws SQLException {
+				return connection;
+			}
+		};
+		beanMapper = beanRowMapper(Person.class);
+	}
+
+	@TearDown
+	public void tearDown() {
+		Database.close(connection);
+	}
+
+	@Benchmark
+	public List<Person> queryWithHandMapper() {
+		return doWithConnection(sqlQuery(SQL, HAND_MAPPER, rows),
+				connectionProvider);
+	}
+
+	@Benchmark
+	public List<Person> queryWithBeanMapper() {
+		return doWithConnection(sqlQuery(SQL, beanMapper, rows),
+				connectionProvider);
+	}
+
+	@Benchmark
+	public int queryForEach(final Blackhole blackhole) {
+		return doWithConnection(sqlQueryForEach(SQL, new RowCallback() {
+
+			public void processRow(ResultSet resultSet, int row)
+					throws SQLException {
+				blackhole.consume(resultSet.getLong(1));
+				blackhole.consume(resultSet.getString(2));
+				blackhole.consume(resultSet.getInt(3));
+				blackhole.consume(resultSet.getDouble(4));
+			}
+		}, rows), connectionProvider);
+	}
+
+	@Benchmark
+	public long[] queryLongs() {
+		return doWithConnection(sqlQueryLongs(
+				"select id from person where id < ?", rows),
+				connectionProvider);
+	}
+
+	@Benchmark
+	public ColumnarResult queryColumnar() {
+		return doWithConnection(sqlQueryColumnar(SQL, rows),
+				connectionProvider);
+	}
+}
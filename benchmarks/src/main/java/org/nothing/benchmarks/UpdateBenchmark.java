@@ -0,0 +1,87 @@
+package org.nothing.benchmarks;
+
+import static org.nothing.JdbcCanBeNice.*;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.nothing.ConnectionProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The per call overhead of sqlUpdate, compared to plain JDBC, with and
+ * without a statement cache
+ * 
+ * @author Jawher
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UpdateBenchmark {
+	private static final String SQL = "update person set age = ? where id = ?";
+
+	private Connection connection;
+	private ConnectionProvider connectionProvider;
+	private ConnectionProvider statementCachingProvider;
+	private int age;
+
+	@Setup
+	public void setUp() throws SQLException {
+		ConnectionProvider database = Database.create();
+		Database.createPersons(database, 100);
+		connection = database.get();
+		connectionProvider = new ConnectionProvider() {
+
+			public Connection get() throws SQLException {
+				return connection;
+			}
+		};
+		statementCachingProvider = statementCachingConnectionProvider(
+				connectionProvider, 16);
+	}
+
+	@TearDown
+	public void tearDown() {
+		Database.close(connection);
+	}
+
+	@Benchmark
+	public int plainJdbc() throws SQLException {
+		PreparedStatement ps = connection.prepareStatement(SQL);
+		try {
+			ps.setInt(1, age++ & 127);
+			ps.setLong(2, 42);
+			return ps.executeUpdate();
+		} finally {
+			ps.close();
+		}
+	}
+
+	@Benchmark
+	public int update() {
+		return doWithConnection(sqlUpdate(SQL, age++ & 127, 42L),
+				connectionProvider);
+	}
+
+	@Benchmark
+	public int updateWithCachedStatement() {
+		return doWithConnection(sqlUpdate(SQL, age++ & 127, 42L),
+				statementCachingProvider);
+	}
+}
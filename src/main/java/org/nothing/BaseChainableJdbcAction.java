@@ -1,11 +1,10 @@
 package org.nothing;
 
-import java.sql.Connection;
-import java.sql.SQLException;
-
 /**
  * A base class you can inherit from that handles the chaining logic defined in
- * {@link ChainableJdbcAction}
+ * {@link ChainableJdbcAction}. Chaining actions appends them to a flat
+ * pipeline run in a loop, so that chains of any length can be built and run
+ * without nesting calls.
  * 
  * @author Jawher
  * 
@@ -14,28 +13,12 @@ import java.sql.SQLException;
 public abstract class BaseChainableJdbcAction<T> implements
 		ChainableJdbcAction<T> {
 
-	public <S> ChainableJdbcAction<S> thenReturn(final JdbcAction<S> action) {
-		return new BaseChainableJdbcAction<S>() {
-
-			public S doWithConnection(Connection connection)
-					throws SQLException {
-				BaseChainableJdbcAction.this.doWithConnection(connection);
-				return action.doWithConnection(connection);
-			}
-		};
+	public <S> ChainableJdbcAction<S> thenReturn(JdbcAction<S> action) {
+		return ChainedJdbcAction.of(this, action, true);
 	}
 
-	public ChainableJdbcAction<T> then(final JdbcAction<?> action) {
-		return new BaseChainableJdbcAction<T>() {
-
-			public T doWithConnection(Connection connection)
-					throws SQLException {
-				T res = BaseChainableJdbcAction.this
-						.doWithConnection(connection);
-				action.doWithConnection(connection);
-				return res;
-			}
-		};
+	public ChainableJdbcAction<T> then(JdbcAction<?> action) {
+		return ChainedJdbcAction.of(this, action, false);
 	}
 
 }
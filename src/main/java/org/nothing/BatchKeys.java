@@ -0,0 +1,233 @@
+package org.nothing;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Inserts the rows of a
+ * {@link JdbcCanBeNice#sqlBatchUpdateAndReturnKeys(String, Iterable, int)}
+ * action and collects their generated keys, in batches when the driver
+ * returns a key per batched row, one row at a time otherwise.
+ * 
+ * Whether a driver returns the keys of batches is only known once it has
+ * executed one, so the first batch run with a driver can be undone : it runs
+ * in a transaction of its own (or after a savepoint if a transaction is
+ * already open). If it returns too few keys (or the driver doesn't support
+ * them), the batch is rolled back and its rows are inserted one at a time,
+ * as will all the rows inserted with that driver from then on.
+ * 
+ * @author Jawher
+ * 
+ */
+final class BatchKeys {
+	/**
+	 * The drivers known to return a key per batched row
+	 */
+	private static final Set<String> BATCH_KEYS_DRIVERS = ConcurrentHashMap
+			.newKeySet();
+	/**
+	 * The drivers known not to
+	 */
+	private static final Set<String> NO_BATCH_KEYS_DRIVERS = ConcurrentHashMap
+			.newKeySet();
+
+	private final Connection connection;
+	private final StatementKey key;
+	private final PreparedStatement ps;
+	private final String driver;
+	private final int batchSize;
+	private final List<Object[]> pending;
+	private boolean batch;
+	private long[] keys;
+	private int count;
+
+	BatchKeys(Connection connection, StatementKey key, PreparedStatement ps,
+			int batchSize, int expectedRows) throws SQLException {
+		this.connection = connection;
+		this.key = key;
+		this.ps = ps;
+		this.batchSize = batchSize;
+		DatabaseMetaData metaData = connection.getMetaData();
+		this.driver = metaData.getDriverName() + " "
+				+ metaData.getDriverVersion();
+		this.batch = metaData.supportsBatchUpdates()
+				&& metaData.supportsGetGeneratedKeys()
+				&& !NO_BATCH_KEYS_DRIVERS.contains(driver);
+		this.pending = new ArrayList<Object[]>(batch ? batchSize : 0);
+		this.keys = new long[expectedRows];
+	}
+
+	void add(Object[] params) throws SQLException {
+		if (!batch) {
+			insert(params);
+			return;
+		}
+		ParameterBinders.bind(key.getSql(), ps, params);
+		ps.addBatch();
+		pending.add(params);
+		if (pending.size() == batchSize) {
+			flush();
+		}
+	}
+
+	/**
+	 * @return the keys of all the added rows, in order
+	 */
+	long[] finish() throws SQLException {
+		if (!pending.isEmpty()) {
+			flush();
+		}
+		return count == keys.length ? keys : Arrays.copyOf(keys, count);
+	}
+
+	/**
+	 * Drops the rows added but not executed yet, after a failure
+	 */
+	void clear() {
+		if (!pending.isEmpty()) {
+			pending.clear();
+			try {
+				ps.clearBatch();
+			} catch (SQLException e1) {
+			}
+		}
+	}
+
+	int getCount() {
+		return count;
+	}
+
+	private void insert(Object[] params) throws SQLException {
+		ParameterBinders.bind(key.getSql(), ps, params);
+		JdbcCanBeNice.executeUpdate(ps);
+		int read = readKeys();
+		if (read != 1) {
+			throw new SQLException("Expected 1 generated key, got " + read
+					+ " from " + driver);
+		}
+		count++;
+	}
+
+	private void flush() throws SQLException {
+		if (BATCH_KEYS_DRIVERS.contains(driver)) {
+			JdbcCanBeNice.executeBatch(ps);
+			int read = readKeys();
+			if (read != pending.size()) {
+				throw new SQLException("Expected " + pending.size()
+						+ " generated keys, got " + read + " from " + driver);
+			}
+			count += read;
+			pending.clear();
+			return;
+		}
+		probe();
+	}
+
+	/**
+	 * Executes the pending batch in a way that can be undone, falling back
+	 * to inserting its rows one at a time if it doesn't return their keys
+	 */
+	private void probe() throws SQLException {
+		boolean ownTx = connection.getAutoCommit();
+		Savepoint savepoint = null;
+		if (ownTx) {
+			connection.setAutoCommit(false);
+		} else {
+			try {
+				savepoint = connection.setSavepoint();
+			} catch (SQLFeatureNotSupportedException e) {
+				// the batch couldn't be undone, so don't risk it
+				ps.clearBatch();
+				insertPendingRows();
+				return;
+			}
+		}
+		boolean done = false;
+		try {
+			int read;
+			try {
+				JdbcCanBeNice.executeBatch(ps);
+				read = readKeys();
+			} catch (SQLFeatureNotSupportedException e) {
+				read = -1;
+			}
+			if (read == pending.size()) {
+				BATCH_KEYS_DRIVERS.add(driver);
+				count += read;
+				pending.clear();
+			} else {
+				if (ownTx) {
+					connection.rollback();
+				} else {
+					connection.rollback(savepoint);
+				}
+				NO_BATCH_KEYS_DRIVERS.add(driver);
+				ps.clearBatch();
+				insertPendingRows();
+			}
+			if (ownTx) {
+				connection.commit();
+			} else {
+				try {
+					connection.releaseSavepoint(savepoint);
+				} catch (SQLException e) {
+				}
+			}
+			done = true;
+		} finally {
+			if (ownTx) {
+				if (!done) {
+					try {
+						connection.rollback();
+					} catch (SQLException e) {
+					}
+				}
+				connection.setAutoCommit(true);
+			}
+		}
+	}
+
+	private void insertPendingRows() throws SQLException {
+		batch = false;
+		List<Object[]> rows = new ArrayList<Object[]>(pending);
+		pending.clear();
+		for (Object[] params : rows) {
+			insert(params);
+		}
+	}
+
+	/**
+	 * Appends the keys generated by the last execution of the statement,
+	 * without counting them
+	 * 
+	 * @return the number of read keys
+	 */
+	private int readKeys() throws SQLException {
+		ResultSet generatedKeys = ps.getGeneratedKeys();
+		int read = 0;
+		try {
+			while (generatedKeys.next()) {
+				if (count + read == keys.length) {
+					keys = Arrays.copyOf(keys, Math.max(16, keys.length * 2));
+				}
+				keys[count + read++] = generatedKeys.getLong(1);
+			}
+		} finally {
+			try {
+				generatedKeys.close();
+			} catch (SQLException e1) {
+			}
+		}
+		return read;
+	}
+}
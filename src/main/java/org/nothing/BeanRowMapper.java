@@ -0,0 +1,400 @@
+package org.nothing;
+
+import java.beans.BeanInfo;
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@link RowMapper} that maps the columns of a row onto the properties of a
+ * Java bean, matching column labels and property names case insensitively and
+ * ignoring underscores (<code>FIRST_NAME</code> maps to
+ * <code>setFirstName</code>). Columns without a matching property are
+ * ignored.
+ * 
+ * The setters are resolved into {@link MethodHandle}s once, when the mapper
+ * is created. The columns of a result set are then bound to them (by reading
+ * its {@link ResultSetMetaData}) into a list of bindings, each reading its
+ * column by index with the getter matching the property's type and calling
+ * the setter's handle. The bindings are cached by column labels, so that
+ * result sets with the same columns, even read by different threads, share
+ * them. Each thread remembers the bindings of the last result set it
+ * mapped, so that they are resolved once per result set even when several
+ * threads share the mapper. Mapping a row hence involves neither column name
+ * lookups nor reflection.
+ * 
+ * @author Jawher
+ * 
+ * @param <T>
+ *            the bean type
+ */
+final class BeanRowMapper<T> implements RowMapper<T> {
+	/**
+	 * The bindings of a result set's columns
+	 */
+	private static final class Plan {
+		private final WeakReference<ResultSet> resultSet;
+		private final Binding[] bindings;
+
+		public Plan(ResultSet resultSet, Binding[] bindings) {
+			this.resultSet = new WeakReference<ResultSet>(resultSet);
+			this.bindings = bindings;
+		}
+	}
+
+	/**
+	 * Reads a column and sets the matching property
+	 */
+	private static abstract class Binding {
+		protected final int column;
+		protected final MethodHandle setter;
+
+		protected Binding(int column, MethodHandle setter, Class<?> valueType) {
+			this.column = column;
+			this.setter = setter.asType(MethodType.methodType(void.class,
+					Object.class, valueType));
+		}
+
+		abstract void apply(Object bean, ResultSet rs) throws Throwable;
+	}
+
+	private static final class LongBinding extends Binding {
+		LongBinding(int column, MethodHandle setter) {
+			super(column, setter, long.class);
+		}
+
+		void apply(Object bean, ResultSet rs) throws Throwable {
+			long value = rs.getLong(column);
+			if (!rs.wasNull()) {
+				setter.invokeExact(bean, value);
+			}
+		}
+	}
+
+	private static final class IntBinding extends Binding {
+		IntBinding(int column, MethodHandle setter) {
+			super(column, setter, int.class);
+		}
+
+		void apply(Object bean, ResultSet rs) throws Throwable {
+			int value = rs.getInt(column);
+			if (!rs.wasNull()) {
+				setter.invokeExact(bean, value);
+			}
+		}
+	}
+
+	private static final class ShortBinding extends Binding {
+		ShortBinding(int column, MethodHandle setter) {
+			super(column, setter, short.class);
+		}
+
+		void apply(Object bean, ResultSet rs) throws Throwable {
+			short value = rs.getShort(column);
+			if (!rs.wasNull()) {
+				setter.invokeExact(bean, value);
+			}
+		}
+	}
+
+	private static final class ByteBinding extends Binding {
+		ByteBinding(int column, MethodHandle setter) {
+			super(column, setter, byte.class);
+		}
+
+		void apply(Object bean, ResultSet rs) throws Throwable {
+			byte value = rs.getByte(column);
+			if (!rs.wasNull()) {
+				setter.invokeExact(bean, value);
+			}
+		}
+	}
+
+	private static final class DoubleBinding extends Binding {
+		DoubleBinding(int column, MethodHandle setter) {
+			super(column, setter, double.class);
+		}
+
+		void apply(Object bean, ResultSet rs) throws Throwable {
+			double value = rs.getDouble(column);
+			if (!rs.wasNull()) {
+				setter.invokeExact(bean, value);
+			}
+		}
+	}
+
+	private static final class FloatBinding extends Binding {
+		FloatBinding(int column, MethodHandle setter) {
+			super(column, setter, float.class);
+		}
+
+		void apply(Object bean, ResultSet rs) throws Throwable {
+			float value = rs.getFloat(column);
+			if (!rs.wasNull()) {
+				setter.invokeExact(bean, value);
+			}
+		}
+	}
+
+	private static final class BooleanBinding extends Binding {
+		BooleanBinding(int column, MethodHandle setter) {
+			super(column, setter, boolean.class);
+		}
+
+		void apply(Object bean, ResultSet rs) throws Throwable {
+			boolean value = rs.getBoolean(column);
+			if (!rs.wasNull()) {
+				setter.invokeExact(bean, value);
+			}
+		}
+	}
+
+	/**
+	 * Reads a column as an object of the property's type
+	 */
+	private static abstract class ObjectBinding extends Binding {
+		ObjectBinding(int column, MethodHandle setter) {
+			super(column, setter, Object.class);
+		}
+
+		void apply(Object bean, ResultSet rs) throws Throwable {
+			setter.invokeExact(bean, read(rs));
+		}
+
+		abstract Object read(ResultSet rs) throws SQLException;
+	}
+
+	/**
+	 * A writable property
+	 */
+	private static final class Property {
+		private final Class<?> type;
+		private final MethodHandle setter;
+
+		public Property(Class<?> type, MethodHandle setter) {
+			this.type = type;
+			this.setter = setter;
+		}
+	}
+
+	/**
+	 * The maximum number of column label signatures whose bindings are cached
+	 */
+	private static final int MAX_PLANS = 64;
+
+	private final Class<T> type;
+	private final MethodHandle constructor;
+	private final Map<String, Property> properties = new HashMap<String, Property>();
+	private final Map<String, Binding[]> plans = new ConcurrentHashMap<String, Binding[]>();
+	/**
+	 * The plan of the result set last mapped by each thread
+	 */
+	private final ThreadLocal<Plan> plan = new ThreadLocal<Plan>();
+
+	BeanRowMapper(Class<T> type) {
+		this.type = type;
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		try {
+			Constructor<T> ctor = type.getDeclaredConstructor();
+			ctor.setAccessible(true);
+			constructor = lookup.unreflectConstructor(ctor).asType(
+					MethodType.methodType(Object.class));
+		} catch (NoSuchMethodException e) {
+			throw new IllegalArgumentException(type.getName()
+					+ " has no no-arg constructor", e);
+		} catch (IllegalAccessException e) {
+			throw new IllegalArgumentException(e);
+		}
+		try {
+			BeanInfo beanInfo = Introspector.getBeanInfo(type);
+			for (PropertyDescriptor property : beanInfo
+					.getPropertyDescriptors()) {
+				Method writeMethod = property.getWriteMethod();
+				if (writeMethod != null) {
+					writeMethod.setAccessible(true);
+					properties.put(normalize(property.getName()),
+							new Property(property.getPropertyType(), lookup
+									.unreflect(writeMethod)));
+				}
+			}
+		} catch (IntrospectionException e) {
+			throw new IllegalArgumentException(e);
+		} catch (IllegalAccessException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	public T mapRow(ResultSet resultSet, int row) throws SQLException {
+		Plan current = plan.get();
+		if (current == null || current.resultSet.get() != resultSet) {
+			current = resolve(resultSet);
+			plan.set(current);
+		}
+		try {
+			Object bean = constructor.invokeExact();
+			for (Binding binding : current.bindings) {
+				binding.apply(bean, resultSet);
+			}
+			return type.cast(bean);
+		} catch (SQLException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new SQLException("Couldn't map row " + row + " to a "
+					+ type.getName(), e);
+		}
+	}
+
+	private Plan resolve(ResultSet resultSet) throws SQLException {
+		ResultSetMetaData metaData = resultSet.getMetaData();
+		int columns = metaData.getColumnCount();
+		String[] labels = new String[columns];
+		StringBuilder signature = new StringBuilder();
+		for (int column = 1; column <= columns; column++) {
+			labels[column - 1] = normalize(metaData.getColumnLabel(column));
+			signature.append(labels[column - 1]).append('\0');
+		}
+		Binding[] bindings = plans.get(signature.toString());
+		if (bindings == null) {
+			List<Binding> res = new ArrayList<Binding>();
+			for (int column = 1; column <= columns; column++) {
+				Property property = properties.get(labels[column - 1]);
+				if (property != null) {
+					res.add(binding(column, property.type, property.setter));
+				}
+			}
+			bindings = res.toArray(new Binding[res.size()]);
+			if (plans.size() >= MAX_PLANS) {
+				plans.clear();
+			}
+			plans.put(signature.toString(), bindings);
+		}
+		return new Plan(resultSet, bindings);
+	}
+
+	private static Binding binding(int column, final Class<?> propertyType,
+			MethodHandle setter) {
+		if (propertyType == long.class) {
+			return new LongBinding(column, setter);
+		} else if (propertyType == int.class) {
+			return new IntBinding(column, setter);
+		} else if (propertyType == double.class) {
+			return new DoubleBinding(column, setter);
+		} else if (propertyType == boolean.class) {
+			return new BooleanBinding(column, setter);
+		} else if (propertyType == float.class) {
+			return new FloatBinding(column, setter);
+		} else if (propertyType == short.class) {
+			return new ShortBinding(column, setter);
+		} else if (propertyType == byte.class) {
+			return new ByteBinding(column, setter);
+		} else if (propertyType == String.class) {
+			return new ObjectBinding(column, setter) {
+				Object read(ResultSet rs) throws SQLException {
+					return rs.getString(column);
+				}
+			};
+		} else if (propertyType == Long.class) {
+			return new ObjectBinding(column, setter) {
+				Object read(ResultSet rs) throws SQLException {
+					long value = rs.getLong(column);
+					return rs.wasNull() ? null : Long.valueOf(value);
+				}
+			};
+		} else if (propertyType == Integer.class) {
+			return new ObjectBinding(column, setter) {
+				Object read(ResultSet rs) throws SQLException {
+					int value = rs.getInt(column);
+					return rs.wasNull() ? null : Integer.valueOf(value);
+				}
+			};
+		} else if (propertyType == Double.class) {
+			return new ObjectBinding(column, setter) {
+				Object read(ResultSet rs) throws SQLException {
+					double value = rs.getDouble(column);
+					return rs.wasNull() ? null : Double.valueOf(value);
+				}
+			};
+		} else if (propertyType == Boolean.class) {
+			return new ObjectBinding(column, setter) {
+				Object read(ResultSet rs) throws SQLException {
+					boolean value = rs.getBoolean(column);
+					return rs.wasNull() ? null : Boolean.valueOf(value);
+				}
+			};
+		} else if (propertyType == BigDecimal.class) {
+			return new ObjectBinding(column, setter) {
+				Object read(ResultSet rs) throws SQLException {
+					return rs.getBigDecimal(column);
+				}
+			};
+		} else if (propertyType == java.sql.Date.class) {
+			return new ObjectBinding(column, setter) {
+				Object read(ResultSet rs) throws SQLException {
+					return rs.getDate(column);
+				}
+			};
+		} else if (propertyType == java.sql.Time.class) {
+			return new ObjectBinding(column, setter) {
+				Object read(ResultSet rs) throws SQLException {
+					return rs.getTime(column);
+				}
+			};
+		} else if (propertyType == java.sql.Timestamp.class
+				|| propertyType == java.util.Date.class) {
+			return new ObjectBinding(column, setter) {
+				Object read(ResultSet rs) throws SQLException {
+					return rs.getTimestamp(column);
+				}
+			};
+		} else if (propertyType == byte[].class) {
+			return new ObjectBinding(column, setter) {
+				Object read(ResultSet rs) throws SQLException {
+					return rs.getBytes(column);
+				}
+			};
+		} else if (propertyType.isEnum()) {
+			return new ObjectBinding(column, setter) {
+				@SuppressWarnings({ "unchecked", "rawtypes" })
+				Object read(ResultSet rs) throws SQLException {
+					String value = rs.getString(column);
+					return value == null ? null : Enum.valueOf(
+							(Class<? extends Enum>) propertyType, value);
+				}
+			};
+		}
+		return new ObjectBinding(column, setter) {
+			Object read(ResultSet rs) throws SQLException {
+				return rs.getObject(column);
+			}
+		};
+	}
+
+	private static String normalize(String name) {
+		return name.replace("_", "").toLowerCase(Locale.ENGLISH);
+	}
+
+	@Override
+	public String toString() {
+		return "bean {" + type.getName() + "}";
+	}
+}
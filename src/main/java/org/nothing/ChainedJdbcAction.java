@@ -0,0 +1,114 @@
+package org.nothing;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The action built by {@link ChainableJdbcAction#then(JdbcAction)} and
+ * {@link ChainableJdbcAction#thenReturn(JdbcAction)} : a flat array of actions
+ * run one after the other in a loop, returning the result of the action at
+ * <code>resultIndex</code>. Chaining hence neither nests calls (chains of any
+ * length run in a single frame) nor copies the array : the chained action is
+ * appended to the array shared with this chain, which grows like an
+ * {@link java.util.ArrayList}.
+ * 
+ * Chains stay immutable though : every chain only runs the first
+ * <code>length</code> actions of the array, and <code>used</code> (shared by
+ * all the chains of the same array) tells which slots were already claimed.
+ * Appending to a chain that isn't the longest one of its array (i.e. chaining
+ * twice the same action) copies its actions into a new array instead.
+ * 
+ * @author Jawher
+ * 
+ * @param <T>
+ *            the chain's return type
+ */
+final class ChainedJdbcAction<T> extends BaseChainableJdbcAction<T> {
+	private final JdbcAction<?>[] actions;
+	private final int length;
+	private final int resultIndex;
+	private final AtomicInteger used;
+
+	private ChainedJdbcAction(JdbcAction<?>[] actions, int length,
+			int resultIndex, AtomicInteger used) {
+		this.actions = actions;
+		this.length = length;
+		this.resultIndex = resultIndex;
+		this.used = used;
+	}
+
+	/**
+	 * @return a chain running <code>first</code> then <code>second</code>,
+	 *         returning the result of the latter if <code>returnSecond</code>
+	 */
+	static <T> ChainedJdbcAction<T> of(JdbcAction<?> first,
+			JdbcAction<?> second, boolean returnSecond) {
+		JdbcAction<?>[] actions = new JdbcAction<?>[8];
+		actions[0] = first;
+		actions[1] = second;
+		return new ChainedJdbcAction<T>(actions, 2, returnSecond ? 1 : 0,
+				new AtomicInteger(2));
+	}
+
+	@SuppressWarnings("unchecked")
+	public T doWithConnection(Connection connection) throws SQLException {
+		Object res = null;
+		for (int i = 0; i < length; i++) {
+			Object actionRes = actions[i].doWithConnection(connection);
+			if (i == resultIndex) {
+				res = actionRes;
+			}
+		}
+		return (T) res;
+	}
+
+	/**
+	 * @return whether all the chained actions are read only
+	 */
+	boolean isReadOnly() {
+		for (int i = 0; i < length; i++) {
+			if (!ReadOnlyJdbcAction.isReadOnly(actions[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public ChainableJdbcAction<T> then(JdbcAction<?> action) {
+		return append(action, resultIndex);
+	}
+
+	@Override
+	public <S> ChainableJdbcAction<S> thenReturn(JdbcAction<S> action) {
+		return append(action, length);
+	}
+
+	private <S> ChainableJdbcAction<S> append(JdbcAction<?> action,
+			int resultIndex) {
+		if (length < actions.length && used.compareAndSet(length, length + 1)) {
+			actions[length] = action;
+			return new ChainedJdbcAction<S>(actions, length + 1, resultIndex,
+					used);
+		}
+		JdbcAction<?>[] copy = Arrays.copyOf(actions, length * 2);
+		Arrays.fill(copy, length, copy.length, null);
+		copy[length] = action;
+		return new ChainedJdbcAction<S>(copy, length + 1, resultIndex,
+				new AtomicInteger(length + 1));
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder res = new StringBuilder("chain {");
+		for (int i = 0; i < length && i < 3; i++) {
+			res.append(i == 0 ? "" : ", ").append(actions[i]);
+		}
+		if (length > 3) {
+			res.append(", ... (").append(length).append(" actions)");
+		}
+		return res.append("}").toString();
+	}
+}
@@ -0,0 +1,37 @@
+package org.nothing;
+
+/**
+ * Follows the progress of a
+ * {@link JdbcCanBeNice#sqlChunkedTx(String, Iterable, ChunkedTxOptions)}
+ * load, for example to log it or to save the resume point :
+ * 
+ * <pre>
+ * <code>
+ * class ProgressLogger implements ChunkListener {
+ * 		public void chunkCommitted(long committedRows, int chunkRows, long chunkNanos) {
+ * 			log.info(committedRows + " rows loaded (" + chunkRows * 1000000000L / chunkNanos + " rows/s)");
+ * 		}
+ * 	}
+ * </code>
+ * </pre>
+ * 
+ * @author Jawher
+ * 
+ */
+public interface ChunkListener {
+	/**
+	 * Called by the loading thread after every commit. An exception thrown
+	 * here stops the load : it is the cause of the thrown
+	 * {@link ChunkedTxException}, whose committed rows include this chunk.
+	 * 
+	 * @param committedRows
+	 *            the number of rows committed so far, including the skipped
+	 *            ones when resuming : the value to resume from if the load
+	 *            fails later
+	 * @param chunkRows
+	 *            the number of rows of the committed chunk
+	 * @param chunkNanos
+	 *            how long the chunk took, commit included
+	 */
+	void chunkCommitted(long committedRows, int chunkRows, long chunkNanos);
+}
@@ -0,0 +1,180 @@
+package org.nothing;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Runs a {@link JdbcCanBeNice#sqlChunkedTx(String, Iterable, ChunkedTxOptions)}
+ * load on a connection whose auto commit is off : the rows are sent in
+ * batches, and committed every chunk. Every batch is preceded by a savepoint
+ * so that a failing batch can be rolled back and retried alone, the rows of
+ * the current batch being kept for that purpose.
+ * 
+ * @author Jawher
+ * 
+ */
+final class ChunkedLoad {
+	private final Connection connection;
+	private final StatementKey key;
+	private final ChunkedTxOptions options;
+	private final long maxChunkNanos;
+	private boolean savepoints;
+
+	ChunkedLoad(Connection connection, StatementKey key,
+			ChunkedTxOptions options) {
+		this.connection = connection;
+		this.key = key;
+		this.options = options;
+		this.maxChunkNanos = options.getMaxChunkMillis() * 1000000L;
+		this.savepoints = options.getRetries() > 0;
+	}
+
+	/**
+	 * @return the number of committed rows, including the skipped ones
+	 * @throws ChunkedTxException
+	 *             if a chunk failed
+	 */
+	long run(Iterable<Object[]> paramsList) throws SQLException {
+		Iterator<Object[]> rows = paramsList.iterator();
+		long committed = 0;
+		while (committed < options.getResumeFrom() && rows.hasNext()) {
+			rows.next();
+			committed++;
+		}
+		PreparedStatement ps = JdbcCanBeNice.prepareStatement(connection, key);
+		try {
+			List<Object[]> batch = new ArrayList<Object[]>(Math.min(options
+					.getBatchSize(), options.getRowsPerChunk()));
+			while (rows.hasNext()) {
+				long start = System.nanoTime();
+				int chunkRows = 0;
+				Span span = Tracing.begin("chunk");
+				try {
+					while (rows.hasNext()
+							&& chunkRows < options.getRowsPerChunk()
+							&& (maxChunkNanos == 0 || System.nanoTime()
+									- start < maxChunkNanos)) {
+						batch.clear();
+						int batchSize = Math.min(options.getBatchSize(),
+								options.getRowsPerChunk() - chunkRows);
+						while (batch.size() < batchSize && rows.hasNext()) {
+							batch.add(rows.next());
+						}
+						execute(ps, batch);
+						chunkRows += batch.size();
+					}
+					connection.commit();
+				} catch (SQLException e) {
+					rollback(e);
+					throw new ChunkedTxException(committed, e);
+				} catch (RuntimeException e) {
+					rollback(e);
+					throw new ChunkedTxException(committed, e);
+				} finally {
+					Tracing.endStatement(span, chunkRows);
+				}
+				committed += chunkRows;
+				if (options.getListener() != null) {
+					try {
+						options.getListener().chunkCommitted(committed,
+								chunkRows, System.nanoTime() - start);
+					} catch (RuntimeException e) {
+						throw new ChunkedTxException(committed, e);
+					}
+				}
+			}
+			return committed;
+		} finally {
+			JdbcCanBeNice.closeStatement(connection, key, ps);
+		}
+	}
+
+	/**
+	 * Executes a batch, retrying it from a savepoint if it fails
+	 */
+	private void execute(PreparedStatement ps, List<Object[]> batch)
+			throws SQLException {
+		for (int attempt = 0;; attempt++) {
+			Savepoint savepoint = savepoint();
+			try {
+				for (Object[] params : batch) {
+					ParameterBinders.bind(key.getSql(), ps, params);
+					ps.addBatch();
+				}
+				JdbcCanBeNice.executeBatch(ps);
+				if (savepoint != null) {
+					try {
+						connection.releaseSavepoint(savepoint);
+					} catch (SQLException e) {
+					}
+				}
+				return;
+			} catch (SQLException e) {
+				try {
+					ps.clearBatch();
+				} catch (SQLException e1) {
+				}
+				if (savepoint == null || attempt >= options.getRetries()
+						|| !isTransient(e)) {
+					throw e;
+				}
+				connection.rollback(savepoint);
+			}
+		}
+	}
+
+	/**
+	 * @return whether a failure may not happen again when retried : a
+	 *         transient or recoverable failure, a deadlock or a serialization
+	 *         failure (SQLState class 40), rather than a constraint violation
+	 *         or bad sql. The exceptions chained by the driver (e.g. in a
+	 *         {@link java.sql.BatchUpdateException}) are checked too.
+	 */
+	private static boolean isTransient(SQLException e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof SQLException) {
+				for (SQLException next = (SQLException) cause; next != null; next = next
+						.getNextException()) {
+					String sqlState = next.getSQLState();
+					if (next instanceof SQLTransientException
+							|| next instanceof SQLRecoverableException
+							|| (sqlState != null && sqlState.startsWith("40"))) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return a new savepoint, or null if retries are off or unsupported
+	 */
+	private Savepoint savepoint() throws SQLException {
+		if (!savepoints) {
+			return null;
+		}
+		try {
+			return connection.setSavepoint();
+		} catch (SQLFeatureNotSupportedException e) {
+			savepoints = false;
+			return null;
+		}
+	}
+
+	private void rollback(Exception cause) {
+		try {
+			connection.rollback();
+		} catch (SQLException e) {
+			cause.addSuppressed(e);
+		}
+	}
+}
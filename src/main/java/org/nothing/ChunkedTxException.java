@@ -0,0 +1,31 @@
+package org.nothing;
+
+/**
+ * Thrown when a
+ * {@link JdbcCanBeNice#sqlChunkedTx(String, Iterable, ChunkedTxOptions)}
+ * load fails. The failing chunk is rolled back, but the chunks before it
+ * stay committed : pass {@link #getCommittedRows()} to
+ * {@link ChunkedTxOptions#resumeFrom(long)} to resume the load with the same
+ * rows.
+ * 
+ * @author Jawher
+ * 
+ */
+public class ChunkedTxException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+	private final long committedRows;
+
+	public ChunkedTxException(long committedRows, Throwable cause) {
+		super("Chunked load failed after " + committedRows
+				+ " committed rows", cause);
+		this.committedRows = committedRows;
+	}
+
+	/**
+	 * @return the number of rows committed before the failure, including the
+	 *         skipped ones when resuming
+	 */
+	public long getCommittedRows() {
+		return committedRows;
+	}
+}
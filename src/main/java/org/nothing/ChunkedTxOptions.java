@@ -0,0 +1,157 @@
+package org.nothing;
+
+/**
+ * How a {@link JdbcCanBeNice#sqlChunkedTx(String, Iterable, ChunkedTxOptions)}
+ * load is split into transactions. The setters return the options
+ * themselves so that they can be chained :
+ * 
+ * <pre>
+ * <code>ChunkedTxOptions options = new ChunkedTxOptions().rowsPerChunk(50000)
+ * 		.maxChunkMillis(2000).listener(progressLogger);
+ * doWithConnection(sqlChunkedTx("insert into event values(?, ?, ?)",
+ * 		events, options), connectionProvider);</code>
+ * </pre>
+ * 
+ * The action takes a copy of the options when it is created.
+ * 
+ * @author Jawher
+ * 
+ */
+public class ChunkedTxOptions {
+	private int rowsPerChunk = 10000;
+	private long maxChunkMillis;
+	private int batchSize = JdbcCanBeNice.DEFAULT_BATCH_SIZE;
+	private int retries = 3;
+	private long resumeFrom;
+	private ChunkListener listener;
+
+	/**
+	 * @param rowsPerChunk
+	 *            the maximum number of rows committed at once. Defaults to
+	 *            10000.
+	 * @return these options
+	 */
+	public ChunkedTxOptions rowsPerChunk(int rowsPerChunk) {
+		if (rowsPerChunk < 1) {
+			throw new IllegalArgumentException("rowsPerChunk must be >= 1");
+		}
+		this.rowsPerChunk = rowsPerChunk;
+		return this;
+	}
+
+	/**
+	 * @param maxChunkMillis
+	 *            commits once a chunk has been running for that long, even
+	 *            if it has less than rowsPerChunk rows. Checked between
+	 *            batches, so a chunk can exceed it by a batch. 0 (the
+	 *            default) means no limit.
+	 * @return these options
+	 */
+	public ChunkedTxOptions maxChunkMillis(long maxChunkMillis) {
+		if (maxChunkMillis < 0) {
+			throw new IllegalArgumentException("maxChunkMillis must be >= 0");
+		}
+		this.maxChunkMillis = maxChunkMillis;
+		return this;
+	}
+
+	/**
+	 * @param batchSize
+	 *            the maximum number of rows sent in a single batch. Defaults
+	 *            to {@link JdbcCanBeNice#DEFAULT_BATCH_SIZE}.
+	 * @return these options
+	 */
+	public ChunkedTxOptions batchSize(int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize must be >= 1");
+		}
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	/**
+	 * @param retries
+	 *            how many times a batch failing with a transient error (a
+	 *            deadlock, a serialization failure, a lost connection...)
+	 *            is retried, after rolling back to a savepoint taken before
+	 *            it, until the whole chunk is rolled back. Other errors, like
+	 *            constraint violations, fail the chunk right away. Defaults
+	 *            to 3. Drivers without savepoints don't retry.
+	 * @return these options
+	 */
+	public ChunkedTxOptions retries(int retries) {
+		if (retries < 0) {
+			throw new IllegalArgumentException("retries must be >= 0");
+		}
+		this.retries = retries;
+		return this;
+	}
+
+	/**
+	 * @param committedRows
+	 *            the number of rows committed by a previous attempt (see
+	 *            {@link ChunkedTxException#getCommittedRows()}), skipped
+	 *            without being loaded again. Defaults to 0.
+	 * @return these options
+	 */
+	public ChunkedTxOptions resumeFrom(long committedRows) {
+		if (committedRows < 0) {
+			throw new IllegalArgumentException("committedRows must be >= 0");
+		}
+		this.resumeFrom = committedRows;
+		return this;
+	}
+
+	/**
+	 * @param listener
+	 *            called after every commit. None by default.
+	 * @return these options
+	 */
+	public ChunkedTxOptions listener(ChunkListener listener) {
+		this.listener = listener;
+		return this;
+	}
+
+	public int getRowsPerChunk() {
+		return rowsPerChunk;
+	}
+
+	public long getMaxChunkMillis() {
+		return maxChunkMillis;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public int getRetries() {
+		return retries;
+	}
+
+	public long getResumeFrom() {
+		return resumeFrom;
+	}
+
+	public ChunkListener getListener() {
+		return listener;
+	}
+
+	ChunkedTxOptions copy() {
+		ChunkedTxOptions copy = new ChunkedTxOptions();
+		copy.rowsPerChunk = rowsPerChunk;
+		copy.maxChunkMillis = maxChunkMillis;
+		copy.batchSize = batchSize;
+		copy.retries = retries;
+		copy.resumeFrom = resumeFrom;
+		copy.listener = listener;
+		return copy;
+	}
+
+	@Override
+	public String toString() {
+		return "ChunkedTxOptions [rowsPerChunk=" + rowsPerChunk
+				+ ", maxChunkMillis=" + maxChunkMillis + ", batchSize="
+				+ batchSize + ", retries=" + retries + ", resumeFrom="
+				+ resumeFrom + "]";
+	}
+}
@@ -0,0 +1,497 @@
+package org.nothing;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The rows of a query stored column by column : every column is a single
+ * primitive array (<code>long[]</code>, <code>int[]</code>,
+ * <code>double[]</code>, <code>boolean[]</code>), a dictionary-encoded array
+ * of strings or, for the other types, an array of objects. Compared to a list
+ * of row objects, this saves the per row object headers and pointers and
+ * lets aggregations run over contiguous arrays.
+ * 
+ * The type of a column is decided from the {@link ResultSetMetaData} :
+ * <ul>
+ * <li>BIGINT and DECIMAL/NUMERIC without scale and at most 18 digits :
+ * {@link ColumnType#LONG}</li>
+ * <li>INTEGER, SMALLINT and TINYINT : {@link ColumnType#INT}</li>
+ * <li>DOUBLE, FLOAT and REAL : {@link ColumnType#DOUBLE}</li>
+ * <li>BOOLEAN and BIT : {@link ColumnType#BOOLEAN}</li>
+ * <li>CHAR, VARCHAR and their variants : {@link ColumnType#STRING}</li>
+ * <li>anything else : {@link ColumnType#OBJECT}, read with
+ * {@link ResultSet#getObject(int)}</li>
+ * </ul>
+ * 
+ * Columns and rows are indexed from 0. The arrays returned by the getters are
+ * the internal vectors, exactly {@link #getRowCount()} long : don't modify
+ * them. NULL values are read as 0 (or false) in the primitive vectors, use
+ * {@link #isNull(int, int)} to tell them apart.
+ * 
+ * See {@link JdbcCanBeNice#sqlQueryColumnar(String, Object...)}
+ * 
+ * @author Jawher
+ * 
+ */
+public class ColumnarResult {
+	/**
+	 * How the values of a column are stored
+	 */
+	public enum ColumnType {
+		LONG, INT, DOUBLE, BOOLEAN, STRING, OBJECT
+	}
+
+	private abstract static class Vector {
+		private long[] nulls;
+
+		abstract void read(ResultSet rs, int column, int row)
+				throws SQLException;
+
+		abstract void trim(int rowCount);
+
+		void setNull(int row) {
+			if (nulls == null) {
+				nulls = new long[Math.max(1, (row >> 6) + 1)];
+			} else if ((row >> 6) >= nulls.length) {
+				long[] grown = new long[Math.max(nulls.length * 2,
+						(row >> 6) + 1)];
+				System.arraycopy(nulls, 0, grown, 0, nulls.length);
+				nulls = grown;
+			}
+			nulls[row >> 6] |= 1L << row;
+		}
+
+		boolean isNull(int row) {
+			return nulls != null && (row >> 6) < nulls.length
+					&& (nulls[row >> 6] & (1L << row)) != 0;
+		}
+
+		static int grownLength(int length, int row) {
+			return Math.max(16, Math.max(length * 2, row + 1));
+		}
+	}
+
+	private static final class LongVector extends Vector {
+		private long[] values;
+
+		LongVector(int capacity) {
+			values = new long[capacity];
+		}
+
+		void read(ResultSet rs, int column, int row) throws SQLException {
+			if (row >= values.length) {
+				long[] grown = new long[grownLength(values.length, row)];
+				System.arraycopy(values, 0, grown, 0, values.length);
+				values = grown;
+			}
+			values[row] = rs.getLong(column);
+			if (rs.wasNull()) {
+				setNull(row);
+			}
+		}
+
+		void trim(int rowCount) {
+			long[] trimmed = new long[rowCount];
+			System.arraycopy(values, 0, trimmed, 0, rowCount);
+			values = trimmed;
+		}
+	}
+
+	private static final class IntVector extends Vector {
+		private int[] values;
+
+		IntVector(int capacity) {
+			values = new int[capacity];
+		}
+
+		void read(ResultSet rs, int column, int row) throws SQLException {
+			if (row >= values.length) {
+				int[] grown = new int[grownLength(values.length, row)];
+				System.arraycopy(values, 0, grown, 0, values.length);
+				values = grown;
+			}
+			values[row] = rs.getInt(column);
+			if (rs.wasNull()) {
+				setNull(row);
+			}
+		}
+
+		void trim(int rowCount) {
+			int[] trimmed = new int[rowCount];
+			System.arraycopy(values, 0, trimmed, 0, rowCount);
+			values = trimmed;
+		}
+	}
+
+	private static final class DoubleVector extends Vector {
+		private double[] values;
+
+		DoubleVector(int capacity) {
+			values = new double[capacity];
+		}
+
+		void read(ResultSet rs, int column, int row) throws SQLException {
+			if (row >= values.length) {
+				double[] grown = new double[grownLength(values.length, row)];
+				System.arraycopy(values, 0, grown, 0, values.length);
+				values = grown;
+			}
+			values[row] = rs.getDouble(column);
+			if (rs.wasNull()) {
+				setNull(row);
+			}
+		}
+
+		void trim(int rowCount) {
+			double[] trimmed = new double[rowCount];
+			System.arraycopy(values, 0, trimmed, 0, rowCount);
+			values = trimmed;
+		}
+	}
+
+	private static final class BooleanVector extends Vector {
+		private boolean[] values;
+
+		BooleanVector(int capacity) {
+			values = new boolean[capacity];
+		}
+
+		void read(ResultSet rs, int column, int row) throws SQLException {
+			if (row >= values.length) {
+				boolean[] grown = new boolean[grownLength(values.length, row)];
+				System.arraycopy(values, 0, grown, 0, values.length);
+				values = grown;
+			}
+			values[row] = rs.getBoolean(column);
+			if (rs.wasNull()) {
+				setNull(row);
+			}
+		}
+
+		void trim(int rowCount) {
+			boolean[] trimmed = new boolean[rowCount];
+			System.arraycopy(values, 0, trimmed, 0, rowCount);
+			values = trimmed;
+		}
+	}
+
+	/**
+	 * Stores every distinct string once, and an int code per row
+	 */
+	private static final class StringVector extends Vector {
+		private final Map<String, Integer> codesByValue = new HashMap<String, Integer>();
+		private final List<String> dictionary = new ArrayList<String>();
+		private int[] codes;
+
+		StringVector(int capacity) {
+			codes = new int[capacity];
+		}
+
+		void read(ResultSet rs, int column, int row) throws SQLException {
+			if (row >= codes.length) {
+				int[] grown = new int[grownLength(codes.length, row)];
+				System.arraycopy(codes, 0, grown, 0, codes.length);
+				codes = grown;
+			}
+			String value = rs.getString(column);
+			if (value == null) {
+				codes[row] = -1;
+				setNull(row);
+			} else {
+				Integer code = codesByValue.get(value);
+				if (code == null) {
+					code = dictionary.size();
+					dictionary.add(value);
+					codesByValue.put(value, code);
+				}
+				codes[row] = code;
+			}
+		}
+
+		void trim(int rowCount) {
+			int[] trimmed = new int[rowCount];
+			System.arraycopy(codes, 0, trimmed, 0, rowCount);
+			codes = trimmed;
+		}
+	}
+
+	private static final class ObjectVector extends Vector {
+		private Object[] values;
+
+		ObjectVector(int capacity) {
+			values = new Object[capacity];
+		}
+
+		void read(ResultSet rs, int column, int row) throws SQLException {
+			if (row >= values.length) {
+				Object[] grown = new Object[grownLength(values.length, row)];
+				System.arraycopy(values, 0, grown, 0, values.length);
+				values = grown;
+			}
+			values[row] = rs.getObject(column);
+			if (values[row] == null) {
+				setNull(row);
+			}
+		}
+
+		void trim(int rowCount) {
+			Object[] trimmed = new Object[rowCount];
+			System.arraycopy(values, 0, trimmed, 0, rowCount);
+			values = trimmed;
+		}
+	}
+
+	private final String[] names;
+	private final ColumnType[] types;
+	private final Vector[] vectors;
+	private int rowCount;
+
+	/**
+	 * Creates an empty result with the columns described by the meta data
+	 * 
+	 * @param capacity
+	 *            the initial capacity of the vectors
+	 */
+	ColumnarResult(ResultSetMetaData metaData, int capacity)
+			throws SQLException {
+		int columnCount = metaData.getColumnCount();
+		names = new String[columnCount];
+		types = new ColumnType[columnCount];
+		vectors = new Vector[columnCount];
+		for (int column = 0; column < columnCount; column++) {
+			names[column] = metaData.getColumnLabel(column + 1);
+			types[column] = columnType(metaData, column + 1);
+			vectors[column] = vector(types[column], capacity);
+		}
+	}
+
+	/**
+	 * Appends the current row of the result set
+	 */
+	void add(ResultSet rs) throws SQLException {
+		for (int column = 0; column < vectors.length; column++) {
+			vectors[column].read(rs, column + 1, rowCount);
+		}
+		rowCount++;
+	}
+
+	/**
+	 * Trims the vectors to the number of rows, once all of them were added
+	 */
+	ColumnarResult trim() {
+		for (Vector vector : vectors) {
+			vector.trim(rowCount);
+		}
+		return this;
+	}
+
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	public int getColumnCount() {
+		return names.length;
+	}
+
+	public String getColumnName(int column) {
+		return names[column];
+	}
+
+	/**
+	 * @param name
+	 *            a column label, case insensitive
+	 * @return the index of the column, or -1 if there is no such column
+	 */
+	public int getColumnIndex(String name) {
+		for (int column = 0; column < names.length; column++) {
+			if (names[column].toLowerCase(Locale.ENGLISH).equals(
+					name.toLowerCase(Locale.ENGLISH))) {
+				return column;
+			}
+		}
+		return -1;
+	}
+
+	public ColumnType getColumnType(int column) {
+		return types[column];
+	}
+
+	public boolean isNull(int column, int row) {
+		return vectors[column].isNull(row);
+	}
+
+	/**
+	 * @return the values of a {@link ColumnType#LONG} column
+	 */
+	public long[] getLongs(int column) {
+		return ((LongVector) vector(column, ColumnType.LONG)).values;
+	}
+
+	/**
+	 * @return the values of an {@link ColumnType#INT} column
+	 */
+	public int[] getInts(int column) {
+		return ((IntVector) vector(column, ColumnType.INT)).values;
+	}
+
+	/**
+	 * @return the values of a {@link ColumnType#DOUBLE} column
+	 */
+	public double[] getDoubles(int column) {
+		return ((DoubleVector) vector(column, ColumnType.DOUBLE)).values;
+	}
+
+	/**
+	 * @return the values of a {@link ColumnType#BOOLEAN} column
+	 */
+	public boolean[] getBooleans(int column) {
+		return ((BooleanVector) vector(column, ColumnType.BOOLEAN)).values;
+	}
+
+	/**
+	 * @return the distinct values of a {@link ColumnType#STRING} column,
+	 *         indexed by their code
+	 */
+	public String[] getDictionary(int column) {
+		List<String> dictionary = ((StringVector) vector(column,
+				ColumnType.STRING)).dictionary;
+		return dictionary.toArray(new String[dictionary.size()]);
+	}
+
+	/**
+	 * @return the dictionary codes of a {@link ColumnType#STRING} column, -1
+	 *         standing for NULL
+	 */
+	public int[] getCodes(int column) {
+		return ((StringVector) vector(column, ColumnType.STRING)).codes;
+	}
+
+	/**
+	 * @return the value of a {@link ColumnType#STRING} column at a given row
+	 */
+	public String getString(int column, int row) {
+		StringVector vector = (StringVector) vector(column, ColumnType.STRING);
+		int code = vector.codes[row];
+		return code < 0 ? null : vector.dictionary.get(code);
+	}
+
+	/**
+	 * @return the values of an {@link ColumnType#OBJECT} column
+	 */
+	public Object[] getObjects(int column) {
+		return ((ObjectVector) vector(column, ColumnType.OBJECT)).values;
+	}
+
+	/**
+	 * @return the sum of the non NULL values of a numeric ({@link ColumnType#LONG}
+	 *         or {@link ColumnType#INT}) column
+	 */
+	public long sumLong(int column) {
+		long sum = 0;
+		if (types[column] == ColumnType.INT) {
+			for (int value : getInts(column)) {
+				sum += value;
+			}
+		} else {
+			for (long value : getLongs(column)) {
+				sum += value;
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * @return the sum of the non NULL values of a numeric ({@link ColumnType#DOUBLE},
+	 *         {@link ColumnType#LONG} or {@link ColumnType#INT}) column
+	 */
+	public double sumDouble(int column) {
+		if (types[column] != ColumnType.DOUBLE) {
+			return sumLong(column);
+		}
+		double sum = 0;
+		for (double value : getDoubles(column)) {
+			sum += value;
+		}
+		return sum;
+	}
+
+	private Vector vector(int column, ColumnType expectedType) {
+		if (types[column] != expectedType) {
+			throw new IllegalStateException("Column " + column + " ("
+					+ names[column] + ") is a " + types[column]
+					+ " column, not a " + expectedType + " one");
+		}
+		return vectors[column];
+	}
+
+	private static ColumnType columnType(ResultSetMetaData metaData, int column)
+			throws SQLException {
+		switch (metaData.getColumnType(column)) {
+		case Types.BIGINT:
+			return ColumnType.LONG;
+		case Types.INTEGER:
+		case Types.SMALLINT:
+		case Types.TINYINT:
+			return ColumnType.INT;
+		case Types.DOUBLE:
+		case Types.FLOAT:
+		case Types.REAL:
+			return ColumnType.DOUBLE;
+		case Types.BOOLEAN:
+		case Types.BIT:
+			return ColumnType.BOOLEAN;
+		case Types.CHAR:
+		case Types.VARCHAR:
+		case Types.LONGVARCHAR:
+		case Types.NCHAR:
+		case Types.NVARCHAR:
+		case Types.LONGNVARCHAR:
+			return ColumnType.STRING;
+		case Types.DECIMAL:
+		case Types.NUMERIC:
+			int precision = metaData.getPrecision(column);
+			if (metaData.getScale(column) == 0 && precision > 0
+					&& precision <= 18) {
+				return ColumnType.LONG;
+			}
+			return ColumnType.OBJECT;
+		default:
+			return ColumnType.OBJECT;
+		}
+	}
+
+	private static Vector vector(ColumnType type, int capacity) {
+		switch (type) {
+		case LONG:
+			return new LongVector(capacity);
+		case INT:
+			return new IntVector(capacity);
+		case DOUBLE:
+			return new DoubleVector(capacity);
+		case BOOLEAN:
+			return new BooleanVector(capacity);
+		case STRING:
+			return new StringVector(capacity);
+		default:
+			return new ObjectVector(capacity);
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder res = new StringBuilder("ColumnarResult [rows=")
+				.append(rowCount).append(", columns=");
+		for (int column = 0; column < names.length; column++) {
+			res.append(column == 0 ? "" : ", ").append(names[column]).append(
+					':').append(types[column]);
+		}
+		return res.append(']').toString();
+	}
+}
@@ -0,0 +1,168 @@
+package org.nothing;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A lazy, closeable iterator over the rows of a live result set. Rows are
+ * fetched and mapped only when {@link #next()} asks for them, so consumers can
+ * go at their own pace and stop early without fetching the remaining rows.
+ * 
+ * The statement, the result set and, when it was obtained through
+ * {@link JdbcCanBeNice#doWithConnection(JdbcAction, ConnectionProvider)} from
+ * a {@link ReleasableConnectionProvider}, the connection are held until the
+ * cursor is exhausted or closed. Always close cursors you don't read until
+ * the end :
+ * 
+ * <pre>
+ * <code>Cursor&lt;Person&gt; persons = doWithConnection(sqlCursor(
+ * 		"select * from person", personMapper), connectionProvider);
+ * try {
+ * 	while (persons.hasNext() &amp;&amp; !done) {
+ * 		process(persons.next());
+ * 	}
+ * } finally {
+ * 	persons.close();
+ * }</code>
+ * </pre>
+ * 
+ * {@link SQLException}s thrown while iterating are wrapped into
+ * {@link RuntimeException}s (the cursor is closed first).
+ * 
+ * @author Jawher
+ * 
+ * @param <T>
+ *            the type of the mapped rows
+ */
+public class Cursor<T> implements Iterator<T>, Closeable {
+	private final Connection connection;
+	private final StatementKey key;
+	private final PreparedStatement ps;
+	private final ResultSet rs;
+	private final RowMapper<T> rowMapper;
+	private ConnectionProvider releaseTo;
+	private int row = 0;
+	private boolean fetched;
+	private boolean hasRow;
+	private boolean closed;
+
+	Cursor(Connection connection, StatementKey key, PreparedStatement ps,
+			ResultSet rs, RowMapper<T> rowMapper) {
+		this.connection = connection;
+		this.key = key;
+		this.ps = ps;
+		this.rs = rs;
+		this.rowMapper = rowMapper;
+	}
+
+	public boolean hasNext() {
+		if (closed) {
+			return false;
+		}
+		if (!fetched) {
+			try {
+				hasRow = rs.next();
+			} catch (SQLException e) {
+				close();
+				throw new RuntimeException(e);
+			}
+			fetched = true;
+			if (!hasRow) {
+				close();
+			}
+		}
+		return hasRow;
+	}
+
+	public T next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		fetched = false;
+		try {
+			return rowMapper.mapRow(rs, row++);
+		} catch (SQLException e) {
+			close();
+			throw new RuntimeException(e);
+		}
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException("Cursors are read only");
+	}
+
+	/**
+	 * @return a sequential stream over the remaining rows. Closing the stream
+	 *         closes the cursor.
+	 */
+	public Stream<T> stream() {
+		return StreamSupport.stream(
+				Spliterators.spliteratorUnknownSize(this,
+						Spliterator.ORDERED), false).onClose(new Runnable() {
+
+			public void run() {
+				close();
+			}
+		});
+	}
+
+	/**
+	 * Closes the result set, releases the statement and, if needed, the
+	 * connection. Closing a closed cursor has no effect.
+	 */
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		hasRow = false;
+		try {
+			rs.close();
+		} catch (SQLException e1) {
+
+		}
+		JdbcCanBeNice.closeStatement(connection, key, ps);
+		if (releaseTo != null) {
+			try {
+				JdbcCanBeNice.releaseConnection(releaseTo, connection);
+			} catch (SQLException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	/**
+	 * @return whether the cursor was exhausted or closed
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Defers the release of the cursor's connection to its closing
+	 * 
+	 * @return false if the cursor is already closed, in which case the caller
+	 *         should release the connection itself
+	 */
+	boolean releaseConnectionOnClose(ConnectionProvider connectionProvider) {
+		if (closed) {
+			return false;
+		}
+		releaseTo = connectionProvider;
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "cursor {" + key + "}";
+	}
+}
@@ -0,0 +1,44 @@
+/**
+ * 
+ */
+package org.nothing;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Folds the rows of a result set into a single value, one row at a time :
+ * 
+ * <pre>
+ * <code>
+ * class TotalAmount implements Folder<BigDecimal> {
+ * 		public BigDecimal fold(BigDecimal total, ResultSet resultSet, int row) throws SQLException {
+ * 			return total.add(resultSet.getBigDecimal("amount"));
+ * 		}
+ * 	}
+ * </code>
+ * </pre>
+ * 
+ * See {@link JdbcCanBeNice#sqlQueryFold(String, Object, Folder, Object...)}
+ * 
+ * @author Jawher
+ * 
+ * @param <A>
+ *            the accumulated value type
+ */
+public interface Folder<A> {
+	/**
+	 * Combines the value accumulated so far with a row in a result set
+	 * 
+	 * @param accumulator
+	 *            the value accumulated with the previous rows (or the seed for
+	 *            the first row)
+	 * @param resultSet
+	 *            a resultset positioned on the row to fold
+	 * @param row
+	 *            the current row index of the resultset (starts from 0)
+	 * @return the new accumulated value
+	 * @throws SQLException
+	 */
+	A fold(A accumulator, ResultSet resultSet, int row) throws SQLException;
+}
@@ -7,9 +7,27 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
 
 import javax.sql.DataSource;
 
@@ -50,7 +68,8 @@ import javax.sql.DataSource;
 public class JdbcCanBeNice {
 	/**
 	 * A driver manager based data provider. The connection is recreated upon
-	 * every invocation of the {@link ConnectionProvider#get()} method
+	 * every invocation of the {@link ConnectionProvider#get()} method. The
+	 * driver class is only loaded once, by the first invocation.
 	 * 
 	 * @param driverClassName
 	 * @param url
@@ -62,12 +81,16 @@ public class JdbcCanBeNice {
 			final String driverClassName, final String url, final String user,
 			final String password) {
 		return new ConnectionProvider() {
+			private volatile boolean driverLoaded;
 
 			public Connection get() throws SQLException {
-				try {
-					Class.forName(driverClassName);
-				} catch (ClassNotFoundException e) {
-					throw new RuntimeException(e);
+				if (!driverLoaded) {
+					try {
+						Class.forName(driverClassName);
+					} catch (ClassNotFoundException e) {
+						throw new RuntimeException(e);
+					}
+					driverLoaded = true;
 				}
 				return DriverManager.getConnection(url, user, password);
 			}
@@ -93,7 +116,10 @@ public class JdbcCanBeNice {
 
 	/**
 	 * Encapsulates a connection provider and caches the underlying connection
-	 * so that it is retrieved lazily and only once.
+	 * so that it is retrieved lazily and only once. The same connection is
+	 * handed to every thread : see
+	 * {@link #threadAffineConnectionProvider(ConnectionProvider, int)} for a
+	 * connection per thread.
 	 * 
 	 * @param connectionProvider
 	 *            the connection provider to encapsulate.
@@ -102,27 +128,187 @@ public class JdbcCanBeNice {
 	public static ConnectionProvider cachingConnectionProvider(
 			final ConnectionProvider connectionProvider) {
 		return new ConnectionProvider() {
-			private Connection connection;
+			private volatile Connection connection;
 			private Lock lock = new ReentrantLock();
 
 			public Connection get() throws SQLException {
+				Connection res = connection;
+				if (res != null) {
+					return res;
+				}
 				lock.lock();
 				try {
 					if (connection == null) {
 						connection = connectionProvider.get();
 					}
+					return connection;
 				} finally {
 					lock.unlock();
 				}
-				return connection;
 			}
 		};
 	}
 
+	/**
+	 * Encapsulates a connection provider so that every thread gets its own
+	 * connection, opened lazily and then reused by that thread only. See
+	 * {@link ThreadAffineConnectionProvider} for the details.
+	 * 
+	 * @param connectionProvider
+	 *            the connection provider used to open the connections
+	 * @param maxConnections
+	 *            the maximum number of connections open at a time
+	 * @return the thread affine connection provider.
+	 */
+	public static ThreadAffineConnectionProvider threadAffineConnectionProvider(
+			ConnectionProvider connectionProvider, int maxConnections) {
+		return new ThreadAffineConnectionProvider(connectionProvider,
+				maxConnections);
+	}
+
+	/**
+	 * Encapsulates a connection provider and attaches a {@link StatementCache}
+	 * to the connections it provides, so that the actions created by this
+	 * class reuse their prepared statements instead of preparing them on every
+	 * execution. This only pays off with providers that reuse their
+	 * connections, like {@link #cachingConnectionProvider(ConnectionProvider)}
+	 * (pools have {@link PoolConfig#statementCacheSize(int)} instead). The
+	 * provider hands out connections wrapping those of the encapsulated
+	 * provider, and forgets them once they are closed.
+	 * 
+	 * @param connectionProvider
+	 *            the connection provider to encapsulate.
+	 * @param maxStatements
+	 *            the maximum number of statements cached per connection
+	 * @return the statement caching connection provider.
+	 */
+	public static ConnectionProvider statementCachingConnectionProvider(
+			final ConnectionProvider connectionProvider, final int maxStatements) {
+		return new ReleasableConnectionProvider() {
+			/**
+			 * The wrapping connection of every connection handed out by the
+			 * encapsulated provider
+			 */
+			private final Map<Connection, Connection> wrappers = new ConcurrentHashMap<Connection, Connection>();
+
+			public Connection get() throws SQLException {
+				return wrap(connectionProvider.get());
+			}
+
+			@Override
+			public Connection getForReading() throws SQLException {
+				return wrap(connectionProvider instanceof ReleasableConnectionProvider ? ((ReleasableConnectionProvider) connectionProvider)
+						.getForReading()
+						: connectionProvider.get());
+			}
+
+			private Connection wrap(Connection connection) {
+				Connection wrapper = wrappers.get(connection);
+				if (wrapper == null
+						|| StatementCache.forConnection(wrapper) == null) {
+					forgetClosedConnections();
+					wrapper = StatementCache.attach(connection, maxStatements);
+					wrappers.put(connection, wrapper);
+				}
+				return wrapper;
+			}
+
+			public void release(Connection connection) throws SQLException {
+				releaseConnection(connectionProvider, StatementCache
+						.unwrap(connection));
+			}
+
+			private void forgetClosedConnections() {
+				Iterator<Map.Entry<Connection, Connection>> it = wrappers
+						.entrySet().iterator();
+				while (it.hasNext()) {
+					Map.Entry<Connection, Connection> entry = it.next();
+					boolean closed;
+					try {
+						closed = entry.getKey().isClosed();
+					} catch (SQLException e) {
+						closed = true;
+					}
+					StatementCache cache = StatementCache.forConnection(entry
+							.getValue());
+					if (closed || cache == null) {
+						it.remove();
+						if (cache != null) {
+							cache.close();
+						}
+					}
+				}
+			}
+		};
+	}
+
+	/**
+	 * Encapsulates a connection provider into a bounded connection pool. See
+	 * {@link PooledConnectionProvider} and {@link PoolConfig} for the
+	 * details.
+	 * 
+	 * @param connectionProvider
+	 *            the connection provider used to open the pooled connections
+	 * @param config
+	 *            the pool settings
+	 * @return the pooling connection provider.
+	 */
+	public static PooledConnectionProvider pooledConnectionProvider(
+			ConnectionProvider connectionProvider, PoolConfig config) {
+		return new PooledConnectionProvider(connectionProvider, config);
+	}
+
+	/**
+	 * Sends the read only actions to replicas and everything else to a
+	 * primary. See {@link RoutingConnectionProvider} for the details.
+	 * 
+	 * @param primary
+	 *            provides the connections to the primary database
+	 * @param replicas
+	 *            provide the connections to the replicas
+	 * @return the routing connection provider.
+	 */
+	public static RoutingConnectionProvider routingConnectionProvider(
+			ConnectionProvider primary, ConnectionProvider... replicas) {
+		return new RoutingConnectionProvider(primary, replicas);
+	}
+
+	/**
+	 * Shards the keys on several databases through a consistent hash ring,
+	 * with 160 virtual nodes per shard. See {@link ShardedConnectionProvider}
+	 * for the details.
+	 * 
+	 * @param shards
+	 *            the shards' providers
+	 * @return the sharded connection provider.
+	 */
+	public static ShardedConnectionProvider shardedConnectionProvider(
+			ConnectionProvider... shards) {
+		return ShardedConnectionProvider.consistentHash(160, shards);
+	}
+
+	/**
+	 * Shards numeric keys on several databases by range. See
+	 * {@link ShardedConnectionProvider} for the details.
+	 * 
+	 * @param lowerBounds
+	 *            the smallest key of every shard, in increasing order
+	 * @param shards
+	 *            the shards' providers
+	 * @return the sharded connection provider.
+	 */
+	public static ShardedConnectionProvider rangeShardedConnectionProvider(
+			long[] lowerBounds, ConnectionProvider... shards) {
+		return ShardedConnectionProvider.ranges(lowerBounds, shards);
+	}
+
 	/**
 	 * This is the main entry point of this library. Executes a
 	 * {@link JdbcAction} with the connection provided by a
-	 * {@link ConnectionProvider}.
+	 * {@link ConnectionProvider}. If the connection provider is a
+	 * {@link ReleasableConnectionProvider} (a pool for example), the
+	 * connection is released once the action finishes, or once the returned
+	 * {@link Cursor} is closed if the action returns an open cursor.
 	 * 
 	 * @param <T>
 	 *            The return type of the JDBC Action.
@@ -132,13 +318,541 @@ public class JdbcCanBeNice {
 	 */
 	public static <T> T doWithConnection(JdbcAction<T> action,
 			ConnectionProvider connectionProvider) {
+		return doWithConnection(action, connectionProvider, null);
+	}
+
+	/**
+	 * Same as {@link #doWithConnection(JdbcAction, ConnectionProvider)}, but
+	 * the action is run by an {@link Executor} instead of the calling thread.
+	 * The connection is obtained and released by the executor's thread, and
+	 * the returned future completes with the action's result (or the
+	 * {@link RuntimeException} wrapping the {@link SQLException} it threw)
+	 * once the connection was released.
+	 * 
+	 * Cancelling the returned future cancels (via
+	 * {@link Statement#cancel()}) the statement the action is executing, and
+	 * makes it fail as soon as it prepares another one. The connection is
+	 * released once the action stops. Note that cancelling a future derived
+	 * from the returned one, with {@link CompletableFuture#thenApply} for
+	 * example, doesn't cancel the action.
+	 * 
+	 * @param <T>
+	 *            The return type of the JDBC Action.
+	 * @param action
+	 * @param connectionProvider
+	 * @param executor
+	 *            runs the action
+	 * @return a future of the result of the JDBC Action.
+	 */
+	public static <T> CompletableFuture<T> doWithConnectionAsync(
+			final JdbcAction<T> action,
+			final ConnectionProvider connectionProvider, Executor executor) {
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		try {
+			executor.execute(new Runnable() {
+
+				public void run() {
+					if (future.isDone()) {
+						// cancelled before it got to run
+						return;
+					}
+					try {
+						future.complete(doWithConnection(action,
+								connectionProvider, future));
+					} catch (Throwable e) {
+						future.completeExceptionally(e);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	/**
+	 * Same as
+	 * {@link #doWithConnectionAsync(JdbcAction, ConnectionProvider, Executor)}
+	 * , using the {@link #defaultAsyncExecutor()}
+	 */
+	public static <T> CompletableFuture<T> doWithConnectionAsync(
+			JdbcAction<T> action, ConnectionProvider connectionProvider) {
+		return doWithConnectionAsync(action, connectionProvider,
+				defaultAsyncExecutor());
+	}
+
+	/**
+	 * Runs independent actions at the same time, each with its own
+	 * connection obtained from (and released to) the connection provider, as
+	 * with {@link #doWithConnection(JdbcAction, ConnectionProvider)}. The
+	 * total latency is hence that of the slowest actions rather than the sum
+	 * of all of them :
+	 * 
+	 * <pre>
+	 * <code>List&lt;Object&gt; res = doInParallel(pool, 4, sqlQuery(
+	 * 		"select * from orders where ...", orderMapper), sqlQueryLongs(
+	 * 		"select count(*) from customer"));
+	 * List&lt;Order&gt; orders = (List&lt;Order&gt;) res.get(0);
+	 * long customers = ((long[]) res.get(1))[0];</code>
+	 * </pre>
+	 * 
+	 * The calling thread runs actions too, so at most parallelism - 1 tasks
+	 * are submitted to the executor. If an action fails, the actions that
+	 * didn't start yet are skipped, and the first failure is thrown once the
+	 * running ones finish (with the other failures as suppressed exceptions).
+	 * 
+	 * As the actions run on different connections, they can't share a
+	 * transaction.
+	 * 
+	 * @param connectionProvider
+	 *            provides a connection per running action. It should be able
+	 *            to hand parallelism connections at the same time, e.g. a
+	 *            {@link PooledConnectionProvider}
+	 * @param parallelism
+	 *            the maximum number of actions running at the same time
+	 * @param executor
+	 *            runs the actions not run by the calling thread
+	 * @param actions
+	 *            the actions to run
+	 * @return the results of the actions, in the same order
+	 */
+	public static List<Object> doInParallelOn(
+			ConnectionProvider connectionProvider, int parallelism,
+			Executor executor, JdbcAction<?>... actions) {
+		ConnectionProvider[] connectionProviders = new ConnectionProvider[actions.length];
+		Arrays.fill(connectionProviders, connectionProvider);
+		return runInParallel(connectionProviders, parallelism, executor,
+				actions);
+	}
+
+	/**
+	 * Runs every action with a connection from the provider at the same
+	 * index
+	 */
+	private static List<Object> runInParallel(
+			final ConnectionProvider[] connectionProviders, int parallelism,
+			Executor executor, final JdbcAction<?>... actions) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be >= 1");
+		}
+		final Object[] results = new Object[actions.length];
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+		Runnable worker = new Runnable() {
+
+			public void run() {
+				int i;
+				while (failure.get() == null
+						&& (i = next.getAndIncrement()) < actions.length) {
+					try {
+						results[i] = doWithConnection(actions[i],
+								connectionProviders[i]);
+					} catch (RuntimeException e) {
+						if (!failure.compareAndSet(null, e)) {
+							failure.get().addSuppressed(e);
+						}
+					}
+				}
+			}
+		};
+		int workers = Math.min(parallelism, actions.length);
+		List<CompletableFuture<Void>> helpers = new ArrayList<CompletableFuture<Void>>(
+				Math.max(0, workers - 1));
+		for (int i = 1; i < workers; i++) {
+			helpers.add(CompletableFuture.runAsync(worker, executor));
+		}
+		worker.run();
+		for (CompletableFuture<Void> helper : helpers) {
+			helper.join();
+		}
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+		return Arrays.asList(results);
+	}
+
+	/**
+	 * Same as
+	 * {@link #doInParallelOn(ConnectionProvider, int, Executor, JdbcAction...)}
+	 * , using the {@link #defaultAsyncExecutor()}
+	 */
+	public static List<Object> doInParallel(
+			ConnectionProvider connectionProvider, int parallelism,
+			JdbcAction<?>... actions) {
+		return doInParallelOn(connectionProvider, parallelism,
+				defaultAsyncExecutor(), actions);
+	}
+
+	/**
+	 * Runs an action on every shard at the same time, each on its own
+	 * connection, as with
+	 * {@link #doInParallelOn(ConnectionProvider, int, Executor, JdbcAction...)}
+	 * .
+	 * 
+	 * @param shards
+	 *            the shards
+	 * @param action
+	 *            the action run on every shard
+	 * @return the results of the action on every shard, in the shards' order
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> List<T> doOnAllShards(ShardedConnectionProvider shards,
+			JdbcAction<T> action) {
+		List<ConnectionProvider> connectionProviders = shards.getShards();
+		JdbcAction<?>[] actions = new JdbcAction<?>[connectionProviders
+				.size()];
+		Arrays.fill(actions, action);
+		return (List<T>) (List<?>) runInParallel(connectionProviders
+				.toArray(new ConnectionProvider[actions.length]),
+				actions.length, defaultAsyncExecutor(), actions);
+	}
+
+	/**
+	 * Runs a query on every shard at the same time (see
+	 * {@link #doOnAllShards(ShardedConnectionProvider, JdbcAction)}) and
+	 * gathers their rows : those of the first shard, then those of the second
+	 * one, etc.
+	 * 
+	 * @param shards
+	 *            the shards
+	 * @param sql
+	 *            the sql query
+	 * @param rowMapper
+	 *            the row mapper
+	 * @param params
+	 *            the query params
+	 * @return the rows of all the shards
+	 */
+	public static <T> List<T> doScatterQuery(ShardedConnectionProvider shards,
+			String sql, RowMapper<T> rowMapper, Object... params) {
+		List<List<T>> results = doOnAllShards(shards, sqlQuery(sql,
+				rowMapper, params));
+		int rows = 0;
+		for (List<T> result : results) {
+			rows += result.size();
+		}
+		List<T> res = new ArrayList<T>(rows);
+		for (List<T> result : results) {
+			res.addAll(result);
+		}
+		return res;
+	}
+
+	/**
+	 * Same as
+	 * {@link #doScatterQuery(ShardedConnectionProvider, String, RowMapper, Object...)}
+	 * , but the rows of the shards are merged into a single sorted list. The
+	 * query must return the rows of every shard sorted in the same order (with
+	 * an <code>order by</code> clause matching the comparator), as they are
+	 * only merged, not sorted : the merge takes O(rows * log(shards)). Equal
+	 * rows are kept in the shards' order.
+	 * 
+	 * @param shards
+	 *            the shards
+	 * @param order
+	 *            the order of the rows returned by every shard
+	 * @param sql
+	 *            the sql query, sorting the rows
+	 * @param rowMapper
+	 *            the row mapper
+	 * @param params
+	 *            the query params
+	 * @return the sorted rows of all the shards
+	 */
+	public static <T> List<T> doScatterQuery(ShardedConnectionProvider shards,
+			final Comparator<? super T> order, String sql,
+			RowMapper<T> rowMapper, Object... params) {
+		final List<List<T>> results = doOnAllShards(shards, sqlQuery(sql,
+				rowMapper, params));
+		int rows = 0;
+		for (List<T> result : results) {
+			rows += result.size();
+		}
+		final int[] positions = new int[results.size()];
+		// the shards with rows left, by their next row
+		PriorityQueue<Integer> heads = new PriorityQueue<Integer>(Math.max(1,
+				results.size()), new Comparator<Integer>() {
+
+			public int compare(Integer a, Integer b) {
+				int res = order.compare(results.get(a).get(positions[a]),
+						results.get(b).get(positions[b]));
+				return res != 0 ? res : a.compareTo(b);
+			}
+		});
+		for (int i = 0; i < results.size(); i++) {
+			if (!results.get(i).isEmpty()) {
+				heads.add(i);
+			}
+		}
+		List<T> res = new ArrayList<T>(rows);
+		while (!heads.isEmpty()) {
+			int shard = heads.poll();
+			List<T> result = results.get(shard);
+			res.add(result.get(positions[shard]++));
+			if (positions[shard] < result.size()) {
+				heads.add(shard);
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Scans a table in parallel : the scan's key range is split into
+	 * partitions, queried at the same time on their own connections, and
+	 * every returned row is handed to a callback. See {@link PartitionedScan}
+	 * for the generated queries.
+	 * 
+	 * The callback is called concurrently by the partitions' threads, and
+	 * hence has to be thread safe. The row index it gets is the index of the
+	 * row in its partition.
+	 * 
+	 * @param connectionProvider
+	 *            provides a connection per running partition, e.g. a
+	 *            {@link PooledConnectionProvider}
+	 * @param scan
+	 *            the scanned table and how it is partitioned
+	 * @param rowCallback
+	 *            called once for every returned row
+	 * @param params
+	 *            the params of the scan's where condition
+	 * @return the number of processed rows
+	 */
+	public static long doPartitionedQueryForEach(
+			ConnectionProvider connectionProvider, PartitionedScan scan,
+			RowCallback rowCallback, Object... params) {
+		long[] bounds = partitionBounds(connectionProvider, scan, params);
+		if (bounds == null) {
+			return 0;
+		}
+		int partitions = bounds.length - 1;
+		JdbcAction<?>[] actions = new JdbcAction<?>[partitions];
+		for (int i = 0; i < partitions; i++) {
+			Object[] partitionParams = Arrays.copyOf(params,
+					params.length + 2);
+			partitionParams[params.length] = bounds[i];
+			partitionParams[params.length + 1] = bounds[i + 1];
+			actions[i] = sqlQueryForEach(scan
+					.partitionSql(i == partitions - 1), scan.getOptions(),
+					rowCallback, partitionParams);
+		}
+		long rows = 0;
+		for (Object count : doInParallel(connectionProvider, scan
+				.getParallelism(), actions)) {
+			rows += (Integer) count;
+		}
+		return rows;
+	}
+
+	/**
+	 * Same as
+	 * {@link #doPartitionedQueryForEach(ConnectionProvider, PartitionedScan, RowCallback, Object...)}
+	 * , but the rows are mapped by the partitions' threads and merged into a
+	 * single stream, in no particular order. The partitions run ahead of the
+	 * stream's consumer by a bounded number of rows. Close the stream if it
+	 * isn't consumed until the end, so that the partitions stop and release
+	 * their connections :
+	 * 
+	 * <pre>
+	 * <code>try (Stream&lt;Order&gt; orders = doPartitionedQuery(pool,
+	 * 		new PartitionedScan("orders", "id").partitions(8), orderMapper)) {
+	 * 	orders.forEach(exporter);
+	 * }</code>
+	 * </pre>
+	 * 
+	 * A failure of a partition is thrown by the stream once the rows
+	 * returned before it are consumed.
+	 * 
+	 * @return a stream of the mapped rows of all the partitions
+	 */
+	public static <T> Stream<T> doPartitionedQuery(
+			final ConnectionProvider connectionProvider,
+			final PartitionedScan scan, RowMapper<T> rowMapper,
+			final Object... params) {
+		final MergedPartitions<T> merged = new MergedPartitions<T>(
+				256 * scan.getParallelism());
+		final RowCallback rowCallback = merged.rowCallback(rowMapper);
+		try {
+			defaultAsyncExecutor().execute(new Runnable() {
+
+				public void run() {
+					try {
+						doPartitionedQueryForEach(connectionProvider, scan,
+								rowCallback, params);
+						merged.finish(null);
+					} catch (Throwable e) {
+						merged.finish(e);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			merged.finish(e);
+		}
+		return merged.stream();
+	}
+
+	/**
+	 * @return the bounds of the scan's partitions (see
+	 *         {@link PartitionedScan#split(long, long, int)}), or null if
+	 *         there is nothing to scan
+	 */
+	private static long[] partitionBounds(
+			ConnectionProvider connectionProvider, PartitionedScan scan,
+			Object... params) {
+		if (scan.getMin() != null) {
+			return PartitionedScan.split(scan.getMin(), scan.getMax(), scan
+					.getPartitions());
+		}
+		List<long[]> minMax = doWithConnection(sqlQuery(scan.boundsSql(),
+				new RowMapper<long[]>() {
+
+					public long[] mapRow(ResultSet resultSet, int row)
+							throws SQLException {
+						long min = resultSet.getLong(1);
+						if (resultSet.wasNull()) {
+							return null;
+						}
+						return new long[] { min, resultSet.getLong(2) };
+					}
+				}, params), connectionProvider);
+		if (minMax.isEmpty() || minMax.get(0) == null) {
+			return null;
+		}
+		return PartitionedScan.split(minMax.get(0)[0], minMax.get(0)[1], scan
+				.getPartitions());
+	}
+
+	private static final class DefaultAsyncExecutor {
+		private static final Executor INSTANCE = create();
+
+		private static Executor create() {
+			try {
+				// Java 21+
+				return (Executor) Executors.class.getMethod(
+						"newVirtualThreadPerTaskExecutor").invoke(null);
+			} catch (Exception e) {
+				return Executors.newCachedThreadPool(new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable,
+								"jdbc-can-be-nice-async-"
+										+ count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * @return the executor used by
+	 *         {@link #doWithConnectionAsync(JdbcAction, ConnectionProvider)}
+	 *         : a virtual thread per task executor when the JVM supports them
+	 *         (Java 21+), a cached pool of daemon threads otherwise. As the
+	 *         threads mostly wait for the database, bound the concurrency with
+	 *         the connection provider (a {@link PooledConnectionProvider} for
+	 *         example) rather than with the executor.
+	 */
+	public static Executor defaultAsyncExecutor() {
+		return DefaultAsyncExecutor.INSTANCE;
+	}
+
+	/**
+	 * Runs an action. If a future is given, the action's statements are
+	 * tracked so that cancelling the future cancels them.
+	 */
+	private static <T> T doWithConnection(JdbcAction<T> action,
+			ConnectionProvider connectionProvider, CompletableFuture<T> future) {
 		try {
-			return action.doWithConnection(connectionProvider.get());
+			Connection connection = connectionProvider instanceof ReleasableConnectionProvider
+					&& ReadOnlyJdbcAction.isReadOnly(action) ? ((ReleasableConnectionProvider) connectionProvider)
+					.getForReading()
+					: connectionProvider.get();
+			boolean release = true;
+			if (future != null) {
+				final RunningStatements running = RunningStatements
+						.track(connection);
+				future.whenComplete(new BiConsumer<T, Throwable>() {
+
+					public void accept(T res, Throwable e) {
+						if (e instanceof CancellationException) {
+							running.cancel();
+						}
+					}
+				});
+			}
+			try {
+				T res = action.doWithConnection(connection);
+				if (res instanceof Cursor<?>
+						&& connectionProvider instanceof ReleasableConnectionProvider) {
+					release = !((Cursor<?>) res)
+							.releaseConnectionOnClose(connectionProvider);
+				}
+				return res;
+			} finally {
+				if (future != null) {
+					RunningStatements.untrack(connection);
+				}
+				if (release) {
+					releaseConnection(connectionProvider, connection);
+				}
+			}
 		} catch (SQLException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
+	static void releaseConnection(ConnectionProvider connectionProvider,
+			Connection connection) throws SQLException {
+		if (connectionProvider instanceof ReleasableConnectionProvider) {
+			((ReleasableConnectionProvider) connectionProvider)
+					.release(connection);
+		}
+	}
+
+	/**
+	 * Takes the statement from the connection's {@link StatementCache} if it
+	 * has one, prepares a new statement otherwise
+	 */
+	static PreparedStatement prepareStatement(Connection connection,
+			StatementKey key) throws SQLException {
+		StatementCache statementCache = StatementCache
+				.forConnection(connection);
+		Span span = Tracing.begin("prepare");
+		PreparedStatement ps = statementCache != null ? statementCache
+				.prepare(key) : key.prepare(connection);
+		Tracing.end(span);
+		try {
+			RunningStatements.started(connection, ps);
+		} catch (SQLException e) {
+			closeStatement(connection, key, ps);
+			throw e;
+		}
+		return ps;
+	}
+
+	/**
+	 * Hands a statement obtained via
+	 * {@link #prepareStatement(Connection, StatementKey)} back to the
+	 * connection's {@link StatementCache}, or closes it if there is none
+	 */
+	static void closeStatement(Connection connection, StatementKey key,
+			PreparedStatement ps) {
+		RunningStatements.finished(connection, ps);
+		StatementCache statementCache = StatementCache
+				.forConnection(connection);
+		if (statementCache != null) {
+			statementCache.release(key, ps);
+		} else {
+			try {
+				ps.close();
+			} catch (SQLException e1) {
+
+			}
+		}
+	}
+
 	/**
 	 * Wraps a {@link JdbcAction} into a {@link ChainableJdbcAction} so that it
 	 * can be chained with other actions
@@ -164,6 +878,37 @@ public class JdbcCanBeNice {
 		};
 	}
 
+	/**
+	 * Marks an action as only reading, so that a
+	 * {@link RoutingConnectionProvider} runs it on a replica. The queries are
+	 * already marked, as are the chains made only of read only actions. The
+	 * mark is kept by {@link JdbcMetrics#instrument(JdbcAction)} and
+	 * {@link JdbcTracer#trace(JdbcAction)}, but lost when the action is
+	 * wrapped into another one (by {@link #sqlTx(JdbcAction)} for example),
+	 * so mark the outermost action.
+	 * 
+	 * @param <T>
+	 *            the return type of the action
+	 * @param action
+	 *            an action that doesn't modify the database
+	 * @return the read only action
+	 */
+	public static <T> ChainableJdbcAction<T> sqlReadOnly(
+			final JdbcAction<T> action) {
+		return new ReadOnlyJdbcAction<T>() {
+
+			public T doWithConnection(Connection connection)
+					throws SQLException {
+				return action.doWithConnection(connection);
+			}
+
+			@Override
+			public String toString() {
+				return action.toString();
+			}
+		};
+	}
+
 	/**
 	 * Wraps a {@link JdbcAction} into a transaction. If you need to wrap
 	 * multiple actions into a single transaction, consider using actions
@@ -183,6 +928,8 @@ public class JdbcCanBeNice {
 					throws SQLException {
 				boolean originalAutoCommit = connection.getAutoCommit();
 				connection.setAutoCommit(false);
+				boolean outermost = TxSynchronization.begin(connection);
+				Span span = Tracing.begin("tx");
 
 				try {
 					T res = action.doWithConnection(connection);
@@ -196,6 +943,11 @@ public class JdbcCanBeNice {
 					}
 					throw e;
 				} finally {
+					TxSynchronization.completed(connection);
+					Tracing.end(span);
+					if (outermost) {
+						TxSynchronization.end(connection);
+					}
 					connection.setAutoCommit(originalAutoCommit);
 				}
 			}
@@ -213,8 +965,9 @@ public class JdbcCanBeNice {
 	 * insert, etc.). Here's how the resulting {@link JdbcAction} works :
 	 * <ul>
 	 * <li>Creates a {@link PreparedStatement}</li>
-	 * <li>Iterates on the parameters calling
-	 * {@link PreparedStatement#setObject(int, Object)} on each of them</li>
+	 * <li>Binds each of the parameters with the {@link PreparedStatement}
+	 * setter matching its class (see {@link SqlParameter} for explicitly
+	 * typed ones)</li>
 	 * <li>calls {@link PreparedStatement#executeUpdate()}</li>
 	 * </ul>
 	 * 
@@ -231,20 +984,23 @@ public class JdbcCanBeNice {
 			final Object... params) {
 		return new BaseChainableJdbcAction<Integer>() {
 
+			private final StatementKey key = StatementKey.of(sql);
+
 			public Integer doWithConnection(Connection connection)
 					throws SQLException {
-				PreparedStatement ps = connection.prepareStatement(sql);
-				for (int i = 0; i < params.length; i++) {
-					ps.setObject(i + 1, params[i]);
-				}
+				Span span = Tracing.beginStatement(sql, params.length);
+				int rows = -1;
 				try {
-					return ps.executeUpdate();
-				} finally {
+					PreparedStatement ps = prepareStatement(connection, key);
 					try {
-						ps.close();
-					} catch (SQLException e1) {
-
+						ParameterBinders.bind(key.getSql(), ps, params);
+						rows = executeUpdate(ps);
+						return rows;
+					} finally {
+						closeStatement(connection, key, ps);
 					}
+				} finally {
+					Tracing.endStatement(span, rows);
 				}
 			}
 
@@ -262,8 +1018,9 @@ public class JdbcCanBeNice {
 	 * <ul>
 	 * <li>Creates a {@link PreparedStatement} initialized with the parameter
 	 * {@link Statement#RETURN_GENERATED_KEYS}</li>
-	 * <li>Iterates on the parameters calling
-	 * {@link PreparedStatement#setObject(int, Object)} on each of them</li>
+	 * <li>Binds each of the parameters with the {@link PreparedStatement}
+	 * setter matching its class (see {@link SqlParameter} for explicitly
+	 * typed ones)</li>
 	 * <li>calls {@link PreparedStatement#executeUpdate()}</li>
 	 * <li>And finally uses the result set returned by
 	 * {@link PreparedStatement#getGeneratedKeys()} to retrieve the generated
@@ -285,30 +1042,32 @@ public class JdbcCanBeNice {
 			final String sql, final Object... params) {
 		return new BaseChainableJdbcAction<Number>() {
 
+			private final StatementKey key = StatementKey.returningKeys(sql);
+
 			public Number doWithConnection(Connection connection)
 					throws SQLException {
-				PreparedStatement ps = connection.prepareStatement(sql,
-						Statement.RETURN_GENERATED_KEYS);
-				for (int i = 0; i < params.length; i++) {
-					ps.setObject(i + 1, params[i]);
-				}
-				ResultSet generatedKeys = null;
+				Span span = Tracing.beginStatement(sql, params.length);
+				int rows = -1;
 				try {
-					ps.executeUpdate();
-					generatedKeys = ps.getGeneratedKeys();
-					generatedKeys.next();
-					return (Number) generatedKeys.getObject(1);
-				} finally {
+					PreparedStatement ps = prepareStatement(connection, key);
+					ResultSet generatedKeys = null;
 					try {
-						if (generatedKeys != null) {
-							generatedKeys.close();
+						ParameterBinders.bind(key.getSql(), ps, params);
+						rows = executeUpdate(ps);
+						generatedKeys = ps.getGeneratedKeys();
+						generatedKeys.next();
+						return (Number) generatedKeys.getObject(1);
+					} finally {
+						try {
+							if (generatedKeys != null) {
+								generatedKeys.close();
+							}
+						} catch (SQLException e1) {
 						}
-					} catch (SQLException e1) {
-					}
-					try {
-						ps.close();
-					} catch (SQLException e1) {
+						closeStatement(connection, key, ps);
 					}
+				} finally {
+					Tracing.endStatement(span, rows);
 				}
 			}
 
@@ -320,15 +1079,410 @@ public class JdbcCanBeNice {
 	}
 
 	/**
-	 * A factory method that creates a jdbc select action. Here's how the
-	 * resulting {@link JdbcAction} works :
-	 * <ul>
-	 * <li>Creates a {@link PreparedStatement}</li>
-	 * <li>Iterates on the parameters calling
-	 * {@link PreparedStatement#setObject(int, Object)} on each of them</li>
-	 * <li>calls {@link PreparedStatement#executeQuery()}</li>
-	 * <li>Iterates over the returned result set, calling the
-	 * {@link RowMapper#mapRow(ResultSet, int) method on each iteration and
+	 * The default number of rows sent to the database in a single
+	 * {@link PreparedStatement#executeBatch()} call by
+	 * {@link #sqlBatchUpdate(String, Iterable)}
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+
+	/**
+	 * Same as {@link #sqlBatchUpdate(String, Iterable, int)} with
+	 * {@link #DEFAULT_BATCH_SIZE} rows per batch.
+	 */
+	public static ChainableJdbcAction<int[]> sqlBatchUpdate(final String sql,
+			final Iterable<Object[]> paramsList) {
+		return sqlBatchUpdate(sql, paramsList, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * A factory method that creates a jdbc batch update action, executing the
+	 * same update (update, delete, insert, etc.) for many parameter rows in
+	 * as few round trips as possible. Here's how the resulting
+	 * {@link JdbcAction} works :
+	 * <ul>
+	 * <li>Creates a {@link PreparedStatement}</li>
+	 * <li>For every parameter row, calls
+	 * the {@link PreparedStatement} setter matching the class of each of the
+	 * row's parameters then {@link PreparedStatement#addBatch()}</li>
+	 * <li>calls {@link PreparedStatement#executeBatch()} every
+	 * <code>batchSize</code> rows, and once more for the remaining rows</li>
+	 * </ul>
+	 * 
+	 * Wrap it with {@link #sqlTx(JdbcAction)} if the rows should be inserted
+	 * all or nothing.
+	 * 
+	 * @param sql
+	 *            the sql query, which can use the ? placeholders as with
+	 *            regular JDBC prepared statements
+	 * @param paramsList
+	 *            the parameter rows, one array per execution of the query
+	 * @param batchSize
+	 *            the maximum number of rows sent in a single batch
+	 * @return the number of affected rows of every parameter row, in order
+	 */
+	public static ChainableJdbcAction<int[]> sqlBatchUpdate(final String sql,
+			final Iterable<Object[]> paramsList, final int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize must be >= 1");
+		}
+		return new BaseChainableJdbcAction<int[]>() {
+			private final StatementKey key = StatementKey.of(sql);
+
+			public int[] doWithConnection(Connection connection)
+					throws SQLException {
+				Span span = Tracing.begin(toString());
+				int count = 0;
+				try {
+					PreparedStatement ps = prepareStatement(connection, key);
+					int pending = 0;
+					try {
+						int[] res = new int[paramsList instanceof Collection<?> ? ((Collection<?>) paramsList)
+								.size()
+								: batchSize];
+						for (Object[] params : paramsList) {
+							ParameterBinders.bind(key.getSql(), ps, params);
+							ps.addBatch();
+							if (++pending == batchSize) {
+								int[] counts = executeBatch(ps);
+								res = append(res, count, counts);
+								count += counts.length;
+								pending = 0;
+							}
+						}
+						if (pending > 0) {
+							int[] counts = executeBatch(ps);
+							res = append(res, count, counts);
+							count += counts.length;
+							pending = 0;
+						}
+						return trim(res, count);
+					} finally {
+						if (pending > 0) {
+							try {
+								ps.clearBatch();
+							} catch (SQLException e1) {
+
+							}
+						}
+						closeStatement(connection, key, ps);
+					}
+				} finally {
+					Tracing.endStatement(span, count);
+				}
+			}
+
+			@Override
+			public String toString() {
+				return "batch {" + sql + "}";
+			}
+		};
+	}
+
+	/**
+	 * Same as
+	 * {@link #sqlChunkedTx(String, Iterable, ChunkedTxOptions)} with the
+	 * default {@link ChunkedTxOptions}.
+	 */
+	public static ChainableJdbcAction<Long> sqlChunkedTx(String sql,
+			Iterable<Object[]> paramsList) {
+		return sqlChunkedTx(sql, paramsList, new ChunkedTxOptions());
+	}
+
+	/**
+	 * A factory method that creates a bulk load action : like
+	 * {@link #sqlBatchUpdate(String, Iterable, int)}, but the rows are
+	 * committed in chunks of {@link ChunkedTxOptions#rowsPerChunk(int)} rows
+	 * (or {@link ChunkedTxOptions#maxChunkMillis(long)}) rather than all at
+	 * once, which bounds the size of the undo log and how long the locks are
+	 * held.
+	 * 
+	 * A batch failing with a transient error (a deadlock, a serialization
+	 * failure...) is rolled back to a savepoint taken before it and retried,
+	 * up to {@link ChunkedTxOptions#retries(int)} times. If it still fails,
+	 * or fails with another error, its chunk is rolled back and a {@link ChunkedTxException} tells
+	 * how many rows were committed, so that the load can be resumed with the
+	 * same rows :
+	 * 
+	 * <pre>
+	 * <code>try {
+	 * 	doWithConnection(sqlChunkedTx(sql, rows, options), connectionProvider);
+	 * } catch (ChunkedTxException e) {
+	 * 	doWithConnection(sqlChunkedTx(sql, rows, options.resumeFrom(e
+	 * 			.getCommittedRows())), connectionProvider);
+	 * }</code>
+	 * </pre>
+	 * 
+	 * As it commits on its own, the action can't run inside a
+	 * {@link #sqlTx(JdbcAction)} transaction, nor on a connection the caller
+	 * took out of auto-commit mode : it throws an
+	 * {@link IllegalStateException} rather than commit the caller's pending
+	 * work. The connection is put back in auto-commit mode afterwards.
+	 * 
+	 * @param sql
+	 *            the sql query, which can use the ? placeholders as with
+	 *            regular JDBC prepared statements
+	 * @param paramsList
+	 *            the parameter rows, one array per execution of the query.
+	 *            Iterated once.
+	 * @param options
+	 *            how the rows are split into transactions
+	 * @return the number of committed rows, including the ones skipped by
+	 *         {@link ChunkedTxOptions#resumeFrom(long)}
+	 */
+	public static ChainableJdbcAction<Long> sqlChunkedTx(final String sql,
+			final Iterable<Object[]> paramsList, ChunkedTxOptions options) {
+		final ChunkedTxOptions chunkOptions = options.copy();
+		return new BaseChainableJdbcAction<Long>() {
+			private final StatementKey key = StatementKey.of(sql);
+
+			public Long doWithConnection(Connection connection)
+					throws SQLException {
+				if (TxSynchronization.isActive(connection)) {
+					throw new IllegalStateException(
+							"sqlChunkedTx commits on its own and can't run in a transaction");
+				}
+				if (!connection.getAutoCommit()) {
+					throw new IllegalStateException(
+							"sqlChunkedTx commits on its own and needs a connection in auto-commit mode");
+				}
+				connection.setAutoCommit(false);
+				try {
+					return new ChunkedLoad(connection, key, chunkOptions)
+							.run(paramsList);
+				} finally {
+					connection.setAutoCommit(true);
+				}
+			}
+
+			@Override
+			public String toString() {
+				return "chunked tx {" + sql + "}";
+			}
+		};
+	}
+
+	/**
+	 * Same as {@link #sqlBatchUpdateAndReturnKeys(String, Iterable, int)}
+	 * with {@link #DEFAULT_BATCH_SIZE} rows per batch.
+	 */
+	public static ChainableJdbcAction<long[]> sqlBatchUpdateAndReturnKeys(
+			final String sql, final Iterable<Object[]> paramsList) {
+		return sqlBatchUpdateAndReturnKeys(sql, paramsList, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * A factory method that creates a jdbc action executing the same insert
+	 * for many parameter rows, like
+	 * {@link #sqlBatchUpdate(String, Iterable, int)}, and returning the key
+	 * generated for every row, like
+	 * {@link #sqlUpdateAndReturnKey(String, Object...)}. The statement is
+	 * prepared with {@link Statement#RETURN_GENERATED_KEYS} and the keys are
+	 * read from {@link PreparedStatement#getGeneratedKeys()} after every
+	 * {@link PreparedStatement#executeBatch()}.
+	 * 
+	 * When the driver's {@link java.sql.DatabaseMetaData} says it doesn't
+	 * support batches or generated keys, the rows are inserted one
+	 * {@link PreparedStatement#executeUpdate()} at a time instead. The first
+	 * batch run with a driver is executed in a transaction of its own (or
+	 * after a savepoint when the connection is already in a transaction): if
+	 * it returns fewer keys than it has rows, or the driver throws a
+	 * {@link java.sql.SQLFeatureNotSupportedException}, it is rolled back and
+	 * its rows are inserted one at a time within the same action. The driver
+	 * is then remembered so that the next actions insert row by row from the
+	 * start.
+	 * 
+	 * @param sql
+	 *            the insert, which can use the ? placeholders as with regular
+	 *            JDBC prepared statements
+	 * @param paramsList
+	 *            the parameters of every row
+	 * @param batchSize
+	 *            the maximum number of rows sent per batch
+	 * @return the generated keys, in the order of the parameter rows
+	 */
+	public static ChainableJdbcAction<long[]> sqlBatchUpdateAndReturnKeys(
+			final String sql, final Iterable<Object[]> paramsList,
+			final int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize must be >= 1");
+		}
+		return new BaseChainableJdbcAction<long[]>() {
+
+			private final StatementKey key = StatementKey.returningKeys(sql);
+
+			public long[] doWithConnection(Connection connection)
+					throws SQLException {
+				Span span = Tracing.begin(toString());
+				BatchKeys batch = null;
+				try {
+					PreparedStatement ps = prepareStatement(connection, key);
+					try {
+						batch = new BatchKeys(connection, key, ps, batchSize,
+								paramsList instanceof Collection<?> ? ((Collection<?>) paramsList)
+										.size()
+										: batchSize);
+						for (Object[] params : paramsList) {
+							batch.add(params);
+						}
+						return batch.finish();
+					} finally {
+						if (batch != null) {
+							batch.clear();
+						}
+						closeStatement(connection, key, ps);
+					}
+				} finally {
+					Tracing.endStatement(span, batch == null ? 0 : batch
+							.getCount());
+				}
+			}
+
+			@Override
+			public String toString() {
+				return "batch {" + sql + "} -> keys";
+			}
+		};
+	}
+
+	/**
+	 * The default maximum number of parameters of the statements generated by
+	 * {@link #sqlBulkInsert(String, String[], Iterable)}, which stays under
+	 * the limits of the common databases (2100 for SQL Server for example)
+	 */
+	public static final int DEFAULT_BULK_INSERT_MAX_PARAMS = 2000;
+
+	/**
+	 * Same as {@link #sqlBulkInsert(String, String[], Iterable, int)} with
+	 * statements of at most {@link #DEFAULT_BULK_INSERT_MAX_PARAMS}
+	 * parameters.
+	 */
+	public static ChainableJdbcAction<Integer> sqlBulkInsert(
+			final String table, final String[] columns,
+			final Iterable<Object[]> rows) {
+		return sqlBulkInsert(table, columns, rows,
+				DEFAULT_BULK_INSERT_MAX_PARAMS);
+	}
+
+	/**
+	 * A factory method that creates a jdbc action inserting many rows into a
+	 * table with multi-row inserts :
+	 * <code>insert into {table} ({columns}) values (?, ?), (?, ?), ...</code>.
+	 * Unlike {@link #sqlBatchUpdate(String, Iterable, int)}, this sends
+	 * several rows per statement even with drivers that execute batches one
+	 * statement at a time.
+	 * 
+	 * The rows are inserted in chunks of as many rows as fit in maxParams
+	 * parameters. All the chunks but the last one share the same statement,
+	 * prepared once.
+	 * 
+	 * @param table
+	 *            the table to insert into
+	 * @param columns
+	 *            the inserted columns
+	 * @param rows
+	 *            the values of the inserted rows, in the order of the columns
+	 * @param maxParams
+	 *            the maximum number of parameters of a statement
+	 * @return the number of inserted rows, as reported by the driver
+	 */
+	public static ChainableJdbcAction<Integer> sqlBulkInsert(
+			final String table, final String[] columns,
+			final Iterable<Object[]> rows, int maxParams) {
+		if (columns.length == 0) {
+			throw new IllegalArgumentException("No columns to insert");
+		}
+		if (maxParams < columns.length) {
+			throw new IllegalArgumentException("maxParams must be >= "
+					+ columns.length);
+		}
+		final int rowsPerChunk = maxParams / columns.length;
+		return new BaseChainableJdbcAction<Integer>() {
+
+			private final StatementKey chunkKey = StatementKey
+					.of(bulkInsertSql(table, columns, rowsPerChunk));
+
+			public Integer doWithConnection(Connection connection)
+					throws SQLException {
+				Object[] params = new Object[rowsPerChunk * columns.length];
+				int pending = 0;
+				int inserted = 0;
+				PreparedStatement ps = null;
+				Span span = Tracing.begin("bulk insert into " + table);
+				try {
+					for (Object[] row : rows) {
+						if (row.length != columns.length) {
+							throw new IllegalArgumentException("Expected "
+									+ columns.length + " values, got "
+									+ row.length);
+						}
+						System.arraycopy(row, 0, params, pending
+								* columns.length, columns.length);
+						if (++pending == rowsPerChunk) {
+							if (ps == null) {
+								ps = prepareStatement(connection, chunkKey);
+							}
+							ParameterBinders.bind(chunkKey.getSql(), ps,
+									params);
+							inserted += executeUpdate(ps);
+							pending = 0;
+						}
+					}
+					if (ps != null) {
+						closeStatement(connection, chunkKey, ps);
+						ps = null;
+					}
+					if (pending > 0) {
+						inserted += sqlUpdate(
+								bulkInsertSql(table, columns, pending),
+								Arrays.copyOf(params, pending * columns.length))
+								.doWithConnection(connection);
+					}
+					return inserted;
+				} finally {
+					if (ps != null) {
+						closeStatement(connection, chunkKey, ps);
+					}
+					Tracing.endStatement(span, inserted);
+				}
+			}
+
+			@Override
+			public String toString() {
+				return "bulk {" + chunkKey + "}";
+			}
+		};
+	}
+
+	private static String bulkInsertSql(String table, String[] columns,
+			int rows) {
+		StringBuilder row = new StringBuilder("(?");
+		for (int i = 1; i < columns.length; i++) {
+			row.append(", ?");
+		}
+		row.append(')');
+		StringBuilder sql = new StringBuilder("insert into ").append(table)
+				.append(" (").append(columns[0]);
+		for (int i = 1; i < columns.length; i++) {
+			sql.append(", ").append(columns[i]);
+		}
+		sql.append(") values ").append(row);
+		for (int i = 1; i < rows; i++) {
+			sql.append(", ").append(row);
+		}
+		return sql.toString();
+	}
+
+	/**
+	 * A factory method that creates a jdbc select action. Here's how the
+	 * resulting {@link JdbcAction} works :
+	 * <ul>
+	 * <li>Creates a {@link PreparedStatement}</li>
+	 * <li>Binds each of the parameters with the {@link PreparedStatement}
+	 * setter matching its class (see {@link SqlParameter} for explicitly
+	 * typed ones)</li>
+	 * <li>calls {@link PreparedStatement#executeQuery()}</li>
+	 * <li>Iterates over the returned result set, calling the
+	 * {@link RowMapper#mapRow(ResultSet, int) method on each iteration and
 	 * accumulating it's result into a list}</li>
 	 * </ul>
 	 * 
@@ -344,37 +1498,380 @@ public class JdbcCanBeNice {
 	 */
 	public static <T> ChainableJdbcAction<List<T>> sqlQuery(final String sql,
 			final RowMapper<T> rowMapper, final Object... params) {
-		return new BaseChainableJdbcAction<List<T>>() {
+		return sqlQuery(sql, (QueryOptions) null, rowMapper, params);
+	}
+
+	/**
+	 * Same as {@link #sqlQuery(String, RowMapper, Object...)}, with
+	 * statement level {@link QueryOptions} (fetch size, max rows, etc.)
+	 */
+	public static <T> ChainableJdbcAction<List<T>> sqlQuery(final String sql,
+			final QueryOptions options, final RowMapper<T> rowMapper,
+			final Object... params) {
+		return new ReadOnlyJdbcAction<List<T>>() {
+
+			private final StatementKey key = StatementKey.of(sql, options);
+			private final int capacity = QueryOptions
+					.initialCapacity(options);
 
 			public List<T> doWithConnection(Connection connection)
 					throws SQLException {
-				PreparedStatement ps = connection.prepareStatement(sql);
-				for (int i = 0; i < params.length; i++) {
-					ps.setObject(i + 1, params[i]);
-				}
-				ResultSet rs = null;
+				final List<T> res = new ArrayList<T>(capacity);
+				query(connection, key, params, new RowCallback() {
+
+					public void processRow(ResultSet resultSet, int row)
+							throws SQLException {
+						res.add(rowMapper.mapRow(resultSet, row));
+					}
+				});
+				return res;
+			}
+
+			@Override
+			public String toString() {
+				return sql;
+			}
+		};
+	}
+
+	/**
+	 * A factory method that creates a jdbc select action that hands every row
+	 * to a {@link RowCallback} as the result set is iterated, instead of
+	 * accumulating them into a list like
+	 * {@link #sqlQuery(String, RowMapper, Object...)} does. The memory used
+	 * by the action hence doesn't depend on the number of returned rows, which
+	 * makes it suitable for exports and other large reads.
+	 * 
+	 * @param sql
+	 *            the sql query, which can use the ? placeholders as with
+	 *            regular JDBC prepared statements
+	 * @param rowCallback
+	 *            called once for every returned row
+	 * @param params
+	 *            the list of the query params, as with regular JDBC prepared
+	 *            statements
+	 * @return the number of processed rows
+	 */
+	public static ChainableJdbcAction<Integer> sqlQueryForEach(
+			final String sql, final RowCallback rowCallback,
+			final Object... params) {
+		return sqlQueryForEach(sql, (QueryOptions) null, rowCallback, params);
+	}
+
+	/**
+	 * Same as {@link #sqlQueryForEach(String, RowCallback, Object...)}, with
+	 * statement level {@link QueryOptions}. Setting a fetch size is
+	 * recommended for large reads, as some drivers otherwise buffer the whole
+	 * result set client side.
+	 */
+	public static ChainableJdbcAction<Integer> sqlQueryForEach(
+			final String sql, final QueryOptions options,
+			final RowCallback rowCallback, final Object... params) {
+		return new ReadOnlyJdbcAction<Integer>() {
+
+			private final StatementKey key = StatementKey.of(sql, options);
+
+			public Integer doWithConnection(Connection connection)
+					throws SQLException {
+				return query(connection, key, params, rowCallback);
+			}
+
+			@Override
+			public String toString() {
+				return sql;
+			}
+		};
+	}
+
+	/**
+	 * A factory method that creates a jdbc select action that folds the
+	 * returned rows into a single value (a sum, a digest, a map, etc.) as the
+	 * result set is iterated, without accumulating them into a list.
+	 * 
+	 * Note that the seed is reused as is by every execution of the action :
+	 * if it is mutable, the folder should return a new value rather than
+	 * modifying it.
+	 * 
+	 * @param sql
+	 *            the sql query, which can use the ? placeholders as with
+	 *            regular JDBC prepared statements
+	 * @param seed
+	 *            the initial value, handed to the folder with the first row
+	 *            and returned as is if the query returns no rows
+	 * @param folder
+	 *            combines the value accumulated so far with every row
+	 * @param params
+	 *            the list of the query params, as with regular JDBC prepared
+	 *            statements
+	 * @return the value accumulated over all the returned rows
+	 */
+	public static <A> ChainableJdbcAction<A> sqlQueryFold(final String sql,
+			final A seed, final Folder<A> folder, final Object... params) {
+		return sqlQueryFold(sql, (QueryOptions) null, seed, folder, params);
+	}
+
+	/**
+	 * Same as {@link #sqlQueryFold(String, Object, Folder, Object...)}, with
+	 * statement level {@link QueryOptions}
+	 */
+	public static <A> ChainableJdbcAction<A> sqlQueryFold(final String sql,
+			final QueryOptions options, final A seed, final Folder<A> folder,
+			final Object... params) {
+		return new ReadOnlyJdbcAction<A>() {
+
+			private final StatementKey key = StatementKey.of(sql, options);
+
+			public A doWithConnection(Connection connection)
+					throws SQLException {
+				final List<A> accumulator = new ArrayList<A>(1);
+				accumulator.add(seed);
+				query(connection, key, params, new RowCallback() {
+
+					public void processRow(ResultSet resultSet, int row)
+							throws SQLException {
+						accumulator.set(0, folder.fold(accumulator.get(0),
+								resultSet, row));
+					}
+				});
+				return accumulator.get(0);
+			}
+
+			@Override
+			public String toString() {
+				return sql;
+			}
+		};
+	}
+
+	/**
+	 * A factory method that creates a jdbc select action returning a lazy
+	 * {@link Cursor} over the result set instead of a list. Rows are only
+	 * fetched and mapped with the {@link RowMapper} when the cursor (or its
+	 * {@link Cursor#stream()}) is asked for the next one, and the statement,
+	 * result set and pooled connection stay open until the cursor is
+	 * exhausted or closed.
+	 * 
+	 * @param sql
+	 *            the sql query, which can use the ? placeholders as with
+	 *            regular JDBC prepared statements
+	 * @param rowMapper
+	 *            maps every row the cursor is asked for
+	 * @param params
+	 *            the list of the query params, as with regular JDBC prepared
+	 *            statements
+	 * @return an open cursor over the rows returned by the select query
+	 */
+	public static <T> ChainableJdbcAction<Cursor<T>> sqlCursor(
+			final String sql, final RowMapper<T> rowMapper,
+			final Object... params) {
+		return sqlCursor(sql, (QueryOptions) null, rowMapper, params);
+	}
+
+	/**
+	 * Same as {@link #sqlCursor(String, RowMapper, Object...)}, with
+	 * statement level {@link QueryOptions}. The fetch size decides how many
+	 * rows the cursor fetches per round trip.
+	 */
+	public static <T> ChainableJdbcAction<Cursor<T>> sqlCursor(
+			final String sql, final QueryOptions options,
+			final RowMapper<T> rowMapper, final Object... params) {
+		return new ReadOnlyJdbcAction<Cursor<T>>() {
+
+			private final StatementKey key = StatementKey.of(sql, options);
+
+			public Cursor<T> doWithConnection(Connection connection)
+					throws SQLException {
+				Span span = Tracing.beginStatement(sql, params.length);
 				try {
-					rs = ps.executeQuery();
-					List<T> res = new ArrayList<T>();
-					int row = 0;
-					while (rs.next()) {
-						res.add(rowMapper.mapRow(rs, row++));
+					PreparedStatement ps = prepareStatement(connection, key);
+					ResultSet rs = null;
+					try {
+						ParameterBinders.bind(key.getSql(), ps, params);
+						rs = executeQuery(ps);
+						return new Cursor<T>(connection, key, ps, rs,
+								rowMapper);
+					} catch (SQLException e) {
+						closeQuietly(rs);
+						closeStatement(connection, key, ps);
+						throw e;
+					} catch (RuntimeException e) {
+						closeQuietly(rs);
+						closeStatement(connection, key, ps);
+						throw e;
 					}
-					return res;
 				} finally {
-					if (rs != null) {
-						try {
-							rs.close();
-						} catch (SQLException e1) {
+					// the rows are fetched after the action returns
+					Tracing.end(span);
+				}
+			}
+
+			@Override
+			public String toString() {
+				return sql;
+			}
+		};
+	}
+
+	/**
+	 * A factory method that creates a jdbc select action returning the first
+	 * column of every row as a <code>long</code>, read with
+	 * {@link ResultSet#getLong(int)} into a primitive array, without boxing
+	 * the values nor building a list. NULL values are read as 0.
+	 * 
+	 * @param sql
+	 *            the sql query, which can use the ? placeholders as with
+	 *            regular JDBC prepared statements
+	 * @param params
+	 *            the list of the query params, as with regular JDBC prepared
+	 *            statements
+	 * @return the values of the first column, in the order of the rows
+	 */
+	public static ChainableJdbcAction<long[]> sqlQueryLongs(final String sql,
+			final Object... params) {
+		return sqlQueryLongs(sql, (QueryOptions) null, params);
+	}
 
+	/**
+	 * Same as {@link #sqlQueryLongs(String, Object...)}, with
+	 * {@link QueryOptions}. Use {@link QueryOptions#expectedRows(int)} to
+	 * size the array upfront.
+	 */
+	public static ChainableJdbcAction<long[]> sqlQueryLongs(final String sql,
+			final QueryOptions options, final Object... params) {
+		return new ReadOnlyJdbcAction<long[]>() {
+
+			private final StatementKey key = StatementKey.of(sql, options);
+			private final int capacity = QueryOptions
+					.initialCapacity(options);
+
+			public long[] doWithConnection(Connection connection)
+					throws SQLException {
+				final long[][] values = { new long[capacity] };
+				int count = query(connection, key, params, new RowCallback() {
+
+					public void processRow(ResultSet resultSet, int row)
+							throws SQLException {
+						long[] array = values[0];
+						if (row == array.length) {
+							values[0] = array = grow(array);
 						}
+						array[row] = resultSet.getLong(1);
 					}
-					try {
-						ps.close();
-					} catch (SQLException e1) {
+				});
+				return trim(values[0], count);
+			}
+
+			@Override
+			public String toString() {
+				return sql;
+			}
+		};
+	}
+
+	/**
+	 * A factory method that creates a jdbc select action returning the first
+	 * column of every row as an <code>int</code>, read with
+	 * {@link ResultSet#getInt(int)} into a primitive array, without boxing
+	 * the values nor building a list. NULL values are read as 0.
+	 * 
+	 * @param sql
+	 *            the sql query, which can use the ? placeholders as with
+	 *            regular JDBC prepared statements
+	 * @param params
+	 *            the list of the query params, as with regular JDBC prepared
+	 *            statements
+	 * @return the values of the first column, in the order of the rows
+	 */
+	public static ChainableJdbcAction<int[]> sqlQueryInts(final String sql,
+			final Object... params) {
+		return sqlQueryInts(sql, (QueryOptions) null, params);
+	}
+
+	/**
+	 * Same as {@link #sqlQueryInts(String, Object...)}, with
+	 * {@link QueryOptions}. Use {@link QueryOptions#expectedRows(int)} to
+	 * size the array upfront.
+	 */
+	public static ChainableJdbcAction<int[]> sqlQueryInts(final String sql,
+			final QueryOptions options, final Object... params) {
+		return new ReadOnlyJdbcAction<int[]>() {
+
+			private final StatementKey key = StatementKey.of(sql, options);
+			private final int capacity = QueryOptions
+					.initialCapacity(options);
+
+			public int[] doWithConnection(Connection connection)
+					throws SQLException {
+				final int[][] values = { new int[capacity] };
+				int count = query(connection, key, params, new RowCallback() {
 
+					public void processRow(ResultSet resultSet, int row)
+							throws SQLException {
+						int[] array = values[0];
+						if (row == array.length) {
+							values[0] = array = grow(array);
+						}
+						array[row] = resultSet.getInt(1);
 					}
-				}
+				});
+				return trim(values[0], count);
+			}
+
+			@Override
+			public String toString() {
+				return sql;
+			}
+		};
+	}
+
+	/**
+	 * A factory method that creates a jdbc select action returning the first
+	 * column of every row as a <code>double</code>, read with
+	 * {@link ResultSet#getDouble(int)} into a primitive array, without boxing
+	 * the values nor building a list. NULL values are read as 0.
+	 * 
+	 * @param sql
+	 *            the sql query, which can use the ? placeholders as with
+	 *            regular JDBC prepared statements
+	 * @param params
+	 *            the list of the query params, as with regular JDBC prepared
+	 *            statements
+	 * @return the values of the first column, in the order of the rows
+	 */
+	public static ChainableJdbcAction<double[]> sqlQueryDoubles(
+			final String sql, final Object... params) {
+		return sqlQueryDoubles(sql, (QueryOptions) null, params);
+	}
+
+	/**
+	 * Same as {@link #sqlQueryDoubles(String, Object...)}, with
+	 * {@link QueryOptions}. Use {@link QueryOptions#expectedRows(int)} to
+	 * size the array upfront.
+	 */
+	public static ChainableJdbcAction<double[]> sqlQueryDoubles(
+			final String sql, final QueryOptions options,
+			final Object... params) {
+		return new ReadOnlyJdbcAction<double[]>() {
+
+			private final StatementKey key = StatementKey.of(sql, options);
+			private final int capacity = QueryOptions
+					.initialCapacity(options);
+
+			public double[] doWithConnection(Connection connection)
+					throws SQLException {
+				final double[][] values = { new double[capacity] };
+				int count = query(connection, key, params, new RowCallback() {
+
+					public void processRow(ResultSet resultSet, int row)
+							throws SQLException {
+						double[] array = values[0];
+						if (row == array.length) {
+							values[0] = array = grow(array);
+						}
+						array[row] = resultSet.getDouble(1);
+					}
+				});
+				return trim(values[0], count);
 			}
 
 			@Override
@@ -384,6 +1881,274 @@ public class JdbcCanBeNice {
 		};
 	}
 
+	/**
+	 * A factory method that creates a jdbc select action returning the rows
+	 * column by column : one primitive or dictionary-encoded vector per
+	 * column, typed after the result set's meta data. This is more compact
+	 * than a list of row objects and suits analytics-style reads and
+	 * in-process aggregations. See {@link ColumnarResult}.
+	 * 
+	 * @param sql
+	 *            the sql query, which can use the ? placeholders as with
+	 *            regular JDBC prepared statements
+	 * @param params
+	 *            the list of the query params, as with regular JDBC prepared
+	 *            statements
+	 * @return the returned rows, stored by column
+	 */
+	public static ChainableJdbcAction<ColumnarResult> sqlQueryColumnar(
+			final String sql, final Object... params) {
+		return sqlQueryColumnar(sql, (QueryOptions) null, params);
+	}
+
+	/**
+	 * Same as {@link #sqlQueryColumnar(String, Object...)}, with
+	 * {@link QueryOptions}. Use {@link QueryOptions#expectedRows(int)} to
+	 * size the vectors upfront.
+	 */
+	public static ChainableJdbcAction<ColumnarResult> sqlQueryColumnar(
+			final String sql, final QueryOptions options,
+			final Object... params) {
+		return new ReadOnlyJdbcAction<ColumnarResult>() {
+
+			private final StatementKey key = StatementKey.of(sql, options);
+			private final int capacity = QueryOptions
+					.initialCapacity(options);
+
+			public ColumnarResult doWithConnection(Connection connection)
+					throws SQLException {
+				return query(connection, key, params,
+						new ResultSetHandler<ColumnarResult>() {
+
+							public ColumnarResult handle(ResultSet rs)
+									throws SQLException {
+								ColumnarResult res = new ColumnarResult(rs
+										.getMetaData(), capacity);
+								while (rs.next()) {
+									res.add(rs);
+								}
+								return res.trim();
+							}
+
+							public long rowCount(ColumnarResult res) {
+								return res.getRowCount();
+							}
+						});
+			}
+
+			@Override
+			public String toString() {
+				return sql;
+			}
+		};
+	}
+
+	/**
+	 * Same as {@link #sqlQuery(String, RowMapper, Object...)}, but the
+	 * results are looked up in (and stored into) a {@link QueryCache}, keyed
+	 * by the sql and the parameter values. The database is only queried on a
+	 * cache miss.
+	 * 
+	 * The returned lists are shared by all the callers hitting the same cache
+	 * entry, and are hence unmodifiable.
+	 * 
+	 * @param cache
+	 *            the cache to use
+	 * @param table
+	 *            the table the query reads from, whose updates declared with
+	 *            {@link #sqlInvalidating(QueryCache, String, JdbcAction)}
+	 *            drop the cached result. Can be null if the result should only
+	 *            expire with the cache's time to live.
+	 * @param sql
+	 *            the sql query, which can use the ? placeholders as with
+	 *            regular JDBC prepared statements
+	 * @param params
+	 *            the list of the query params, as with regular JDBC prepared
+	 *            statements
+	 * @return an unmodifiable list of entities corresponding to the rows
+	 *         returned by the select query
+	 */
+	public static <T> ChainableJdbcAction<List<T>> sqlCachedQuery(
+			final QueryCache cache, final String table, final String sql,
+			final RowMapper<T> rowMapper, final Object... params) {
+		return new ReadOnlyJdbcAction<List<T>>() {
+
+			private final QueryCache.Key cacheKey = new QueryCache.Key(sql,
+					params);
+			private final JdbcAction<List<T>> query = sqlQuery(sql,
+					rowMapper, params);
+
+			@SuppressWarnings("unchecked")
+			public List<T> doWithConnection(Connection connection)
+					throws SQLException {
+				List<T> cached = (List<T>) cache.get(cacheKey);
+				if (cached != null) {
+					return cached;
+				}
+				long generation = table == null ? 0 : cache.generation(table);
+				List<T> res = Collections.unmodifiableList(query
+						.doWithConnection(connection));
+				cache.put(cacheKey, table, generation, res);
+				return res;
+			}
+
+			@Override
+			public String toString() {
+				return "cached " + sql;
+			}
+		};
+	}
+
+	/**
+	 * Wraps an update action to drop the results cached for a table once it
+	 * ran. When the action runs in a {@link #sqlTx(JdbcAction)} transaction,
+	 * the results are dropped again once the transaction is over, so that
+	 * neither the queries ran in between by other connections (which still
+	 * see the old rows) nor those ran by the transaction itself (which see
+	 * rows that a rollback may discard) stay cached.
+	 * 
+	 * @param cache
+	 *            the cache holding the results
+	 * @param table
+	 *            the table modified by the action
+	 * @param action
+	 *            the update action
+	 * @return the action's result
+	 */
+	public static <T> ChainableJdbcAction<T> sqlInvalidating(
+			final QueryCache cache, final String table,
+			final JdbcAction<T> action) {
+		return new BaseChainableJdbcAction<T>() {
+
+			public T doWithConnection(Connection connection)
+					throws SQLException {
+				T res = action.doWithConnection(connection);
+				cache.invalidate(table);
+				TxSynchronization.afterCompletion(connection, new Runnable() {
+
+					public void run() {
+						cache.invalidate(table);
+					}
+				});
+				return res;
+			}
+
+			@Override
+			public String toString() {
+				return action + " invalidating " + table;
+			}
+		};
+	}
+
+	/**
+	 * Executes a query and hands every returned row to a callback, closing
+	 * the result set and releasing the statement afterwards
+	 * 
+	 * @return the number of returned rows
+	 */
+	private static int query(Connection connection, StatementKey key,
+			Object[] params, final RowCallback rowCallback)
+			throws SQLException {
+		return query(connection, key, params, new ResultSetHandler<Integer>() {
+
+			public Integer handle(ResultSet rs) throws SQLException {
+				int row = 0;
+				while (rs.next()) {
+					rowCallback.processRow(rs, row++);
+				}
+				return row;
+			}
+
+			public long rowCount(Integer res) {
+				return res;
+			}
+		});
+	}
+
+	/**
+	 * Consumes a whole result set
+	 */
+	private interface ResultSetHandler<R> {
+		R handle(ResultSet rs) throws SQLException;
+
+		/**
+		 * @return the number of rows read into a result
+		 */
+		long rowCount(R res);
+	}
+
+	/**
+	 * Executes a query and hands the result set to a handler, closing the
+	 * result set and releasing the statement afterwards
+	 * 
+	 * @return the handler's result
+	 */
+	private static <R> R query(Connection connection, StatementKey key,
+			Object[] params, ResultSetHandler<R> handler) throws SQLException {
+		Span span = Tracing.beginStatement(key.getSql(), params.length);
+		long rows = -1;
+		try {
+			PreparedStatement ps = prepareStatement(connection, key);
+			ResultSet rs = null;
+			try {
+				ParameterBinders.bind(key.getSql(), ps, params);
+				rs = executeQuery(ps);
+				Span fetch = Tracing.begin("fetch");
+				R res = handler.handle(rs);
+				rows = handler.rowCount(res);
+				Tracing.end(fetch, rows);
+				return res;
+			} finally {
+				closeQuietly(rs);
+				closeStatement(connection, key, ps);
+			}
+		} finally {
+			Tracing.endStatement(span, rows);
+		}
+	}
+
+	/**
+	 * {@link PreparedStatement#executeQuery()}, traced as an execute phase
+	 */
+	private static ResultSet executeQuery(PreparedStatement ps)
+			throws SQLException {
+		Span span = Tracing.begin("execute");
+		ResultSet rs = ps.executeQuery();
+		Tracing.end(span);
+		return rs;
+	}
+
+	/**
+	 * {@link PreparedStatement#executeUpdate()}, traced as an execute phase
+	 */
+	static int executeUpdate(PreparedStatement ps) throws SQLException {
+		Span span = Tracing.begin("execute");
+		int rows = ps.executeUpdate();
+		Tracing.end(span);
+		return rows;
+	}
+
+	/**
+	 * {@link PreparedStatement#executeBatch()}, traced as an execute phase
+	 */
+	static int[] executeBatch(PreparedStatement ps)
+			throws SQLException {
+		Span span = Tracing.begin("execute");
+		int[] counts = ps.executeBatch();
+		Tracing.end(span);
+		return counts;
+	}
+
+	private static void closeQuietly(ResultSet rs) {
+		if (rs != null) {
+			try {
+				rs.close();
+			} catch (SQLException e1) {
+
+			}
+		}
+	}
+
 	/**
 	 * Wraps a {@link JdbcAction} into an action that catches any thrown
 	 * {@link SQLException} and returns a user supplied value instead of
@@ -417,6 +2182,62 @@ public class JdbcCanBeNice {
 		};
 	}
 
+	private static int[] append(int[] array, int length, int[] values) {
+		if (length + values.length > array.length) {
+			int[] grown = new int[Math.max(array.length * 2, length
+					+ values.length)];
+			System.arraycopy(array, 0, grown, 0, length);
+			array = grown;
+		}
+		System.arraycopy(values, 0, array, length, values.length);
+		return array;
+	}
+
+	private static int[] trim(int[] array, int length) {
+		if (array.length == length) {
+			return array;
+		}
+		int[] trimmed = new int[length];
+		System.arraycopy(array, 0, trimmed, 0, length);
+		return trimmed;
+	}
+
+	private static long[] trim(long[] array, int length) {
+		if (array.length == length) {
+			return array;
+		}
+		long[] trimmed = new long[length];
+		System.arraycopy(array, 0, trimmed, 0, length);
+		return trimmed;
+	}
+
+	private static double[] trim(double[] array, int length) {
+		if (array.length == length) {
+			return array;
+		}
+		double[] trimmed = new double[length];
+		System.arraycopy(array, 0, trimmed, 0, length);
+		return trimmed;
+	}
+
+	private static int[] grow(int[] array) {
+		int[] grown = new int[Math.max(16, array.length * 2)];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+
+	private static long[] grow(long[] array) {
+		long[] grown = new long[Math.max(16, array.length * 2)];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+
+	private static double[] grow(double[] array) {
+		double[] grown = new double[Math.max(16, array.length * 2)];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+
 	public static <T> RowMapper<T> singleColumnRowMapper(
 			final Class<T> columnClass) {
 		return new RowMapper<T>() {
@@ -429,4 +2250,21 @@ public class JdbcCanBeNice {
 
 	}
 
+	/**
+	 * Creates a {@link RowMapper} that maps every row to a new instance of a
+	 * Java bean, setting the properties whose names match the column labels
+	 * (case insensitively, ignoring underscores). The columns are resolved
+	 * once per result set, so that mapping a row involves no column name
+	 * lookups nor reflection. See {@link BeanRowMapper}.
+	 * 
+	 * @param <T>
+	 *            the bean type
+	 * @param beanClass
+	 *            the bean class, which needs a no-arg constructor
+	 * @return a row mapper that can be shared between queries and threads
+	 */
+	public static <T> RowMapper<T> beanRowMapper(Class<T> beanClass) {
+		return new BeanRowMapper<T>(beanClass);
+	}
+
 }
@@ -0,0 +1,241 @@
+package org.nothing;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A registry of metrics fed by instrumented actions and connection
+ * providers. The actions are measured under their key, i.e. what their
+ * <code>toString()</code> method returns : the sql for the actions created by
+ * {@link JdbcCanBeNice}'s factory methods, <code>tx {...}</code> for
+ * transactions, etc.
+ * 
+ * <pre>
+ * <code>JdbcMetrics metrics = new JdbcMetrics();
+ * ConnectionProvider connectionProvider = metrics.instrument(pool);
+ * List&lt;Person&gt; persons = doWithConnection(metrics.instrument(sqlQuery(
+ * 		"select * from person", personMapper)), connectionProvider);
+ * ...
+ * for (StatementMetrics statement : metrics.getStatements()) {
+ * 	System.out.println(statement);
+ * }</code>
+ * </pre>
+ * 
+ * Everything is recorded with {@link java.util.concurrent.atomic.LongAdder}s
+ * , without locking. {@link JdbcMetricsListener}s can be added to export the
+ * measures as they are taken.
+ * 
+ * @author Jawher
+ * 
+ */
+public class JdbcMetrics {
+	private final ConcurrentHashMap<String, StatementMetrics> statements = new ConcurrentHashMap<String, StatementMetrics>();
+	private final LatencyHistogram connectionAcquire = new LatencyHistogram();
+	private final LatencyHistogram poolWait = new LatencyHistogram();
+	private final List<JdbcMetricsListener> listeners = new CopyOnWriteArrayList<JdbcMetricsListener>();
+
+	/**
+	 * Wraps an action so that every run is measured under its key, along with
+	 * the number of rows fetched or updated by the statements it ran
+	 * 
+	 * @param action
+	 *            the measured action
+	 * @return an action doing the same thing, with the same key, and read
+	 *         only if the measured one is
+	 */
+	public <T> ChainableJdbcAction<T> instrument(final JdbcAction<T> action) {
+		final String key = action.toString();
+		final StatementMetrics metrics = statement(key);
+		ChainableJdbcAction<T> measured = new BaseChainableJdbcAction<T>() {
+
+			public T doWithConnection(Connection connection)
+					throws SQLException {
+				long[] enclosing = Tracing.beginRowCount();
+				long start = System.nanoTime();
+				T res;
+				try {
+					res = action.doWithConnection(connection);
+				} catch (SQLException e) {
+					long nanos = System.nanoTime() - start;
+					Tracing.endRowCount(enclosing);
+					record(metrics, nanos, -1, e);
+					throw e;
+				} catch (RuntimeException e) {
+					long nanos = System.nanoTime() - start;
+					Tracing.endRowCount(enclosing);
+					record(metrics, nanos, -1, e);
+					throw e;
+				}
+				long nanos = System.nanoTime() - start;
+				record(metrics, nanos, Tracing.endRowCount(enclosing), null);
+				return res;
+			}
+
+			@Override
+			public String toString() {
+				return key;
+			}
+		};
+		return ReadOnlyJdbcAction.isReadOnly(action) ? JdbcCanBeNice
+				.sqlReadOnly(measured) : measured;
+	}
+
+	/**
+	 * Wraps a connection provider so that the time taken to get a connection
+	 * is measured. If it is a {@link PooledConnectionProvider}, the time spent
+	 * waiting for one of its connections to be available is measured too.
+	 * That wait is recorded by the pool itself, so it covers every borrower
+	 * of the pool, including those not going through the returned provider.
+	 * A pool can be instrumented by several registries.
+	 * 
+	 * @param connectionProvider
+	 *            the measured provider
+	 * @return a provider handing the same connections, releasable if the
+	 *         measured one is
+	 */
+	public ConnectionProvider instrument(
+			final ConnectionProvider connectionProvider) {
+		if (connectionProvider instanceof PooledConnectionProvider) {
+			((PooledConnectionProvider) connectionProvider)
+					.recordWaitsInto(poolWait);
+		}
+		if (connectionProvider instanceof ReleasableConnectionProvider) {
+			return new ReleasableConnectionProvider() {
+
+				public Connection get() throws SQLException {
+					return acquire(connectionProvider, false);
+				}
+
+				@Override
+				public Connection getForReading() throws SQLException {
+					return acquire(connectionProvider, true);
+				}
+
+				public void release(Connection connection)
+						throws SQLException {
+					((ReleasableConnectionProvider) connectionProvider)
+							.release(connection);
+				}
+			};
+		}
+		return new ConnectionProvider() {
+
+			public Connection get() throws SQLException {
+				return acquire(connectionProvider, false);
+			}
+		};
+	}
+
+	private Connection acquire(ConnectionProvider connectionProvider,
+			boolean forReading) throws SQLException {
+		long start = System.nanoTime();
+		Connection connection = forReading ? ((ReleasableConnectionProvider) connectionProvider)
+				.getForReading()
+				: connectionProvider.get();
+		long nanos = System.nanoTime() - start;
+		connectionAcquire.record(nanos);
+		for (JdbcMetricsListener listener : listeners) {
+			listener.connectionAcquired(nanos);
+		}
+		return connection;
+	}
+
+	private void record(StatementMetrics metrics, long nanos, long rows,
+			Throwable error) {
+		metrics.record(nanos, rows, error != null);
+		for (JdbcMetricsListener listener : listeners) {
+			listener.actionExecuted(metrics.getKey(), nanos, rows, error);
+		}
+	}
+
+	private StatementMetrics statement(String key) {
+		StatementMetrics metrics = statements.get(key);
+		if (metrics == null) {
+			metrics = new StatementMetrics(key);
+			StatementMetrics existing = statements.putIfAbsent(key,
+					metrics);
+			if (existing != null) {
+				metrics = existing;
+			}
+		}
+		return metrics;
+	}
+
+	/**
+	 * @param key
+	 *            an action's key
+	 * @return the metrics recorded under the key, or null if no action with
+	 *         this key was instrumented
+	 */
+	public StatementMetrics getStatement(String key) {
+		return statements.get(key);
+	}
+
+	/**
+	 * @return the metrics of all the instrumented actions, the slowest (in
+	 *         total time) first
+	 */
+	public List<StatementMetrics> getStatements() {
+		List<StatementMetrics> res = new ArrayList<StatementMetrics>(
+				statements.values());
+		Collections.sort(res, new java.util.Comparator<StatementMetrics>() {
+
+			public int compare(StatementMetrics a, StatementMetrics b) {
+				return Long.compare(b.getLatency().getTotalNanos(), a
+						.getLatency().getTotalNanos());
+			}
+		});
+		return res;
+	}
+
+	/**
+	 * @return how long getting a connection from the instrumented providers
+	 *         took
+	 */
+	public LatencyHistogram getConnectionAcquire() {
+		return connectionAcquire;
+	}
+
+	/**
+	 * @return how long the instrumented pools made borrowers wait for a
+	 *         connection to be available
+	 */
+	public LatencyHistogram getPoolWait() {
+		return poolWait;
+	}
+
+	public void addListener(JdbcMetricsListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(JdbcMetricsListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Forgets all the recorded measures
+	 */
+	public void reset() {
+		for (StatementMetrics metrics : statements.values()) {
+			metrics.reset();
+		}
+		connectionAcquire.reset();
+		poolWait.reset();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder res = new StringBuilder("connection acquire : ")
+				.append(connectionAcquire).append("\npool wait : ").append(
+						poolWait);
+		for (StatementMetrics metrics : getStatements()) {
+			res.append('\n').append(metrics);
+		}
+		return res.toString();
+	}
+}
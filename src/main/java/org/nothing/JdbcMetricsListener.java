@@ -0,0 +1,33 @@
+package org.nothing;
+
+/**
+ * Gets notified of every measure taken by a {@link JdbcMetrics} registry, to
+ * export them to a monitoring system for example. The methods are called by
+ * the threads running the actions, so they should be fast and thread safe.
+ * 
+ * @author Jawher
+ * 
+ */
+public interface JdbcMetricsListener {
+	/**
+	 * Called after an instrumented action ran
+	 * 
+	 * @param key
+	 *            the action's key (its sql)
+	 * @param nanos
+	 *            how long the action took
+	 * @param rows
+	 *            the number of rows it returned or updated, -1 if unknown
+	 * @param error
+	 *            what it threw, or null if it succeeded
+	 */
+	void actionExecuted(String key, long nanos, long rows, Throwable error);
+
+	/**
+	 * Called after an instrumented connection provider handed a connection
+	 * 
+	 * @param nanos
+	 *            how long getting the connection took
+	 */
+	void connectionAcquired(long nanos);
+}
@@ -0,0 +1,126 @@
+package org.nothing;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Traces actions, chains of actions included, into trees of {@link Span}s :
+ * the transactions, the statements (with their parameter and row counts)
+ * and the statements' prepare, execute and fetch phases. The actions slower
+ * than a threshold are reported, with their whole tree, to a
+ * {@link SlowQueryLog} :
+ * 
+ * <pre>
+ * <code>JdbcTracer tracer = new JdbcTracer(500);
+ * doWithConnection(tracer.trace(sqlTx(sqlUpdate(...).then(sqlUpdate(...))
+ * 		.thenReturn(sqlQuery(...)))), connectionProvider);</code>
+ * </pre>
+ * 
+ * logs, if the transaction took more than 500ms, something like :
+ * 
+ * <pre>
+ * <code>tx {...} 2012.705ms
+ *   tx 2012.634ms
+ *     update ... 3.017ms params=2 rows=1
+ *       prepare 0.081ms
+ *       execute 2.902ms
+ *     update ... 1998.456ms params=1 rows=12000
+ *       prepare 0.062ms
+ *       execute 1998.305ms
+ *     select ... 10.871ms params=0 rows=3
+ *       prepare 0.050ms
+ *       execute 4.109ms
+ *       fetch 6.644ms rows=3</code>
+ * </pre>
+ * 
+ * Tracing is per thread : only the steps ran by the thread running the
+ * traced action are recorded. The rows fetched through a {@link Cursor}
+ * after the action returned it aren't.
+ * 
+ * @author Jawher
+ * 
+ */
+public class JdbcTracer {
+	private static final Logger LOGGER = Logger.getLogger("org.nothing.slow");
+
+	/**
+	 * Logs the slow actions with {@link java.util.logging}, as warnings of
+	 * the <code>org.nothing.slow</code> logger
+	 */
+	public static final SlowQueryLog JUL_SLOW_QUERY_LOG = new SlowQueryLog() {
+
+		public void slowAction(Span root) {
+			if (LOGGER.isLoggable(Level.WARNING)) {
+				LOGGER.warning("Slow action:\n" + root.toTreeString());
+			}
+		}
+	};
+
+	private final long slowThresholdNanos;
+	private final SlowQueryLog slowQueryLog;
+
+	/**
+	 * Same as {@link #JdbcTracer(long, SlowQueryLog)}, logging the slow
+	 * actions with {@link #JUL_SLOW_QUERY_LOG}
+	 */
+	public JdbcTracer(long slowThresholdMillis) {
+		this(slowThresholdMillis, JUL_SLOW_QUERY_LOG);
+	}
+
+	/**
+	 * @param slowThresholdMillis
+	 *            the duration from which a traced action is reported
+	 * @param slowQueryLog
+	 *            where the slow actions are reported
+	 */
+	public JdbcTracer(long slowThresholdMillis, SlowQueryLog slowQueryLog) {
+		this.slowThresholdNanos = TimeUnit.MILLISECONDS
+				.toNanos(slowThresholdMillis);
+		this.slowQueryLog = slowQueryLog;
+	}
+
+	/**
+	 * Wraps an action so that its runs are traced. A traced action run by an
+	 * other traced action is recorded as a step of the outer one.
+	 * 
+	 * @param action
+	 *            the traced action
+	 * @return an action doing the same thing, with the same key, and read
+	 *         only if the traced one is
+	 */
+	public <T> ChainableJdbcAction<T> trace(final JdbcAction<T> action) {
+		ChainableJdbcAction<T> traced = new BaseChainableJdbcAction<T>() {
+
+			public T doWithConnection(Connection connection)
+					throws SQLException {
+				if (Tracing.isTracing()) {
+					Span span = Tracing.begin(action.toString());
+					try {
+						return action.doWithConnection(connection);
+					} finally {
+						Tracing.end(span);
+					}
+				}
+				Span root = Tracing.beginRoot(action.toString());
+				try {
+					return action.doWithConnection(connection);
+				} finally {
+					Tracing.endRoot(root);
+					if (root.getDurationNanos() >= slowThresholdNanos) {
+						slowQueryLog.slowAction(root);
+					}
+				}
+			}
+
+			@Override
+			public String toString() {
+				return action.toString();
+			}
+		};
+		return ReadOnlyJdbcAction.isReadOnly(action) ? JdbcCanBeNice
+				.sqlReadOnly(traced) : traced;
+	}
+}
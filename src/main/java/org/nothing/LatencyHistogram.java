@@ -0,0 +1,181 @@
+package org.nothing;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * A lock free histogram of durations in nanoseconds, in the spirit of HDR
+ * histograms : the values are counted in log-linear buckets, 32 per power of
+ * two, so that every recorded value is known to within about 3% whatever its
+ * magnitude. Recording a value costs a couple of bit operations and a
+ * {@link LongAdder} increment, so it can be done from many threads on hot
+ * paths. Values above about 36 minutes are counted in the last bucket.
+ * 
+ * @author Jawher
+ * 
+ */
+public final class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int MAX_EXPONENT = 40;
+	private static final int BUCKETS = bucket((1L << (MAX_EXPONENT + 1)) - 1) + 1;
+
+	/**
+	 * Lazily created, as most histograms only ever hit a few buckets
+	 */
+	private final AtomicReferenceArray<LongAdder> buckets = new AtomicReferenceArray<LongAdder>(
+			BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(
+			new LongBinaryOperator() {
+
+				public long applyAsLong(long left, long right) {
+					return Math.max(left, right);
+				}
+			}, 0);
+
+	/**
+	 * Records a duration
+	 * 
+	 * @param nanos
+	 *            the duration in nanoseconds. Negative values are recorded as
+	 *            0.
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		int index = bucket(nanos);
+		LongAdder bucket = buckets.get(index);
+		if (bucket == null) {
+			buckets.compareAndSet(index, null, new LongAdder());
+			bucket = buckets.get(index);
+		}
+		bucket.increment();
+		count.increment();
+		sum.add(nanos);
+		max.accumulate(nanos);
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * @return the sum of the recorded durations, in nanoseconds
+	 */
+	public long getTotalNanos() {
+		return sum.sum();
+	}
+
+	/**
+	 * @return the longest recorded duration, in nanoseconds
+	 */
+	public long getMaxNanos() {
+		return max.get();
+	}
+
+	/**
+	 * @return the mean recorded duration, in nanoseconds
+	 */
+	public double getMeanNanos() {
+		long n = count.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+
+	/**
+	 * @param percentile
+	 *            between 0 and 100
+	 * @return the duration under which the given percentage of the recorded
+	 *         durations fall, in nanoseconds (the upper bound of its bucket,
+	 *         and at most the max)
+	 */
+	public long getPercentileNanos(double percentile) {
+		if (percentile < 0 || percentile > 100) {
+			throw new IllegalArgumentException(
+					"percentile must be between 0 and 100");
+		}
+		long total = 0;
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			LongAdder bucket = buckets.get(i);
+			if (bucket != null) {
+				counts[i] = bucket.sum();
+				total += counts[i];
+			}
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(upperBound(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Forgets all the recorded durations. Durations recorded concurrently may
+	 * or may not be forgotten.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			LongAdder bucket = buckets.get(i);
+			if (bucket != null) {
+				bucket.reset();
+			}
+		}
+		count.reset();
+		sum.reset();
+		max.reset();
+	}
+
+	/**
+	 * Values under 2 * SUB_BUCKETS have their own bucket, the others share
+	 * the SUB_BUCKETS buckets of their power of two
+	 */
+	static int bucket(long value) {
+		if (value < 2 * SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = Math.min(63 - Long.numberOfLeadingZeros(value),
+				MAX_EXPONENT);
+		int shift = exponent - SUB_BUCKET_BITS;
+		long mantissa = Math.min(value >>> shift, 2 * SUB_BUCKETS - 1);
+		return shift * SUB_BUCKETS + (int) mantissa;
+	}
+
+	/**
+	 * @return the highest value counted in a bucket
+	 */
+	static long upperBound(int bucket) {
+		if (bucket < 2 * SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		long mantissa = bucket - shift * SUB_BUCKETS;
+		return ((mantissa + 1) << shift) - 1;
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + getCount() + ", mean="
+				+ format(getMeanNanos()) + ", p50="
+				+ format(getPercentileNanos(50)) + ", p99="
+				+ format(getPercentileNanos(99)) + ", max="
+				+ format(getMaxNanos());
+	}
+
+	private static String format(double nanos) {
+		return String.format("%.3fms", nanos
+				/ TimeUnit.MILLISECONDS.toNanos(1));
+	}
+}
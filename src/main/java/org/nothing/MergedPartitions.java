@@ -0,0 +1,156 @@
+package org.nothing;
+
+import java.io.Closeable;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Merges the rows mapped by the partitions of a {@link PartitionedScan},
+ * running on their own threads, into a single iterator. The partitions block
+ * when the consumer falls more than a bounded number of rows behind, and stop
+ * once the iterator is closed.
+ * 
+ * @author Jawher
+ * 
+ * @param <T>
+ *            the type of the mapped rows
+ */
+final class MergedPartitions<T> implements Iterator<T>, Closeable {
+	private static final Object NULL = new Object();
+	private static final Object END = new Object();
+
+	private final BlockingQueue<Object> queue;
+	private volatile boolean closed;
+	private volatile Throwable failure;
+	private Object next;
+	private boolean ended;
+
+	MergedPartitions(int capacity) {
+		queue = new ArrayBlockingQueue<Object>(capacity);
+	}
+
+	/**
+	 * @return a callback that maps the rows of a partition and queues them
+	 */
+	RowCallback rowCallback(final RowMapper<T> rowMapper) {
+		return new RowCallback() {
+
+			public void processRow(ResultSet resultSet, int row)
+					throws SQLException {
+				T value = rowMapper.mapRow(resultSet, row);
+				if (!offer(value == null ? NULL : value)) {
+					throw new SQLException("The partitioned query was closed");
+				}
+			}
+		};
+	}
+
+	/**
+	 * Signals that all the partitions finished
+	 * 
+	 * @param e
+	 *            the failure of the scan, or null if it succeeded
+	 */
+	void finish(Throwable e) {
+		failure = e;
+		offer(END);
+	}
+
+	/**
+	 * Waits for room in the queue
+	 * 
+	 * @return false if the iterator was closed in the meantime
+	 */
+	private boolean offer(Object value) {
+		try {
+			while (!closed) {
+				if (queue.offer(value, 100, TimeUnit.MILLISECONDS)) {
+					return true;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return false;
+	}
+
+	public boolean hasNext() {
+		if (next != null) {
+			return true;
+		}
+		if (ended || closed) {
+			return false;
+		}
+		Object value;
+		try {
+			value = queue.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			close();
+			throw new RuntimeException(e);
+		}
+		if (value == END) {
+			ended = true;
+			Throwable e = failure;
+			if (e instanceof RuntimeException) {
+				throw (RuntimeException) e;
+			} else if (e instanceof Error) {
+				throw (Error) e;
+			} else if (e != null) {
+				throw new RuntimeException(e);
+			}
+			return false;
+		}
+		next = value;
+		return true;
+	}
+
+	@SuppressWarnings("unchecked")
+	public T next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		Object value = next;
+		next = null;
+		return value == NULL ? null : (T) value;
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException(
+				"Partitioned queries are read only");
+	}
+
+	/**
+	 * @return a sequential stream over the remaining rows. Closing the stream
+	 *         stops the partitions.
+	 */
+	Stream<T> stream() {
+		return StreamSupport.stream(
+				Spliterators.spliteratorUnknownSize(this, 0), false).onClose(
+				new Runnable() {
+
+					public void run() {
+						close();
+					}
+				});
+	}
+
+	/**
+	 * Stops the partitions still running, which release their connections
+	 * once their current row is mapped
+	 */
+	public void close() {
+		closed = true;
+		next = null;
+		queue.clear();
+	}
+}
@@ -0,0 +1,255 @@
+package org.nothing;
+
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Binds query parameters with the setter matching their class
+ * ({@link PreparedStatement#setLong(int, long)},
+ * {@link PreparedStatement#setString(int, String)}, etc.) rather than with
+ * {@link PreparedStatement#setObject(int, Object)}, which some drivers handle
+ * by inferring the parameter's type on every execution.
+ * 
+ * The binder of a class is resolved once. The binders of the parameters of a
+ * statement are remembered per sql, and reused as long as the parameters
+ * have the same classes, so that binding a statement executed over and over
+ * costs a map lookup and a class comparison per parameter.
+ * 
+ * @author Jawher
+ * 
+ */
+final class ParameterBinders {
+	/**
+	 * Binds a parameter of a given class
+	 */
+	private static abstract class Binder {
+		abstract void bind(PreparedStatement ps, int index, Object value)
+				throws SQLException;
+	}
+
+	/**
+	 * The binders resolved for the parameters of a statement
+	 */
+	private static final class Shape {
+		private final Class<?>[] classes;
+		private final Binder[] binders;
+
+		public Shape(Class<?>[] classes, Binder[] binders) {
+			this.classes = classes;
+			this.binders = binders;
+		}
+
+		boolean matches(Object[] params) {
+			if (params.length != classes.length) {
+				return false;
+			}
+			for (int i = 0; i < params.length; i++) {
+				if (classOf(params[i]) != classes[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Bounds the shapes cache, as sql generated on the fly would otherwise
+	 * make it grow forever
+	 */
+	private static final int MAX_SHAPES = 4096;
+
+	private static final Map<Class<?>, Binder> BY_CLASS = new ConcurrentHashMap<Class<?>, Binder>();
+	private static final Map<String, Shape> SHAPES = new ConcurrentHashMap<String, Shape>();
+
+	private static final Binder NULL = new Binder() {
+		void bind(PreparedStatement ps, int index, Object value)
+				throws SQLException {
+			ps.setObject(index, null);
+		}
+	};
+
+	private static final Binder OBJECT = new Binder() {
+		void bind(PreparedStatement ps, int index, Object value)
+				throws SQLException {
+			ps.setObject(index, value);
+		}
+	};
+
+	static {
+		BY_CLASS.put(Long.class, new Binder() {
+			void bind(PreparedStatement ps, int index, Object value)
+					throws SQLException {
+				ps.setLong(index, (Long) value);
+			}
+		});
+		BY_CLASS.put(Integer.class, new Binder() {
+			void bind(PreparedStatement ps, int index, Object value)
+					throws SQLException {
+				ps.setInt(index, (Integer) value);
+			}
+		});
+		BY_CLASS.put(Short.class, new Binder() {
+			void bind(PreparedStatement ps, int index, Object value)
+					throws SQLException {
+				ps.setShort(index, (Short) value);
+			}
+		});
+		BY_CLASS.put(Byte.class, new Binder() {
+			void bind(PreparedStatement ps, int index, Object value)
+					throws SQLException {
+				ps.setByte(index, (Byte) value);
+			}
+		});
+		BY_CLASS.put(Double.class, new Binder() {
+			void bind(PreparedStatement ps, int index, Object value)
+					throws SQLException {
+				ps.setDouble(index, (Double) value);
+			}
+		});
+		BY_CLASS.put(Float.class, new Binder() {
+			void bind(PreparedStatement ps, int index, Object value)
+					throws SQLException {
+				ps.setFloat(index, (Float) value);
+			}
+		});
+		BY_CLASS.put(Boolean.class, new Binder() {
+			void bind(PreparedStatement ps, int index, Object value)
+					throws SQLException {
+				ps.setBoolean(index, (Boolean) value);
+			}
+		});
+		BY_CLASS.put(String.class, new Binder() {
+			void bind(PreparedStatement ps, int index, Object value)
+					throws SQLException {
+				ps.setString(index, (String) value);
+			}
+		});
+		BY_CLASS.put(Character.class, new Binder() {
+			void bind(PreparedStatement ps, int index, Object value)
+					throws SQLException {
+				ps.setString(index, value.toString());
+			}
+		});
+		BY_CLASS.put(BigDecimal.class, new Binder() {
+			void bind(PreparedStatement ps, int index, Object value)
+					throws SQLException {
+				ps.setBigDecimal(index, (BigDecimal) value);
+			}
+		});
+		BY_CLASS.put(byte[].class, new Binder() {
+			void bind(PreparedStatement ps, int index, Object value)
+					throws SQLException {
+				ps.setBytes(index, (byte[]) value);
+			}
+		});
+		BY_CLASS.put(SqlParameter.class, new Binder() {
+			void bind(PreparedStatement ps, int index, Object value)
+					throws SQLException {
+				SqlParameter param = (SqlParameter) value;
+				if (param.getValue() == null) {
+					ps.setNull(index, param.getSqlType());
+				} else {
+					ps.setObject(index, param.getValue(), param.getSqlType());
+				}
+			}
+		});
+	}
+
+	private ParameterBinders() {
+	}
+
+	/**
+	 * Binds the parameters of a statement
+	 * 
+	 * @param sql
+	 *            the statement's sql, under which the resolved binders are
+	 *            remembered
+	 */
+	static void bind(String sql, PreparedStatement ps, Object[] params)
+			throws SQLException {
+		if (params.length == 0) {
+			return;
+		}
+		Shape shape = SHAPES.get(sql);
+		if (shape == null || !shape.matches(params)) {
+			shape = resolve(params);
+			if (SHAPES.size() >= MAX_SHAPES) {
+				SHAPES.clear();
+			}
+			SHAPES.put(sql, shape);
+		}
+		Binder[] binders = shape.binders;
+		for (int i = 0; i < params.length; i++) {
+			binders[i].bind(ps, i + 1, params[i]);
+		}
+	}
+
+	private static Shape resolve(Object[] params) {
+		Class<?>[] classes = new Class<?>[params.length];
+		Binder[] binders = new Binder[params.length];
+		for (int i = 0; i < params.length; i++) {
+			classes[i] = classOf(params[i]);
+			binders[i] = binder(classes[i]);
+		}
+		return new Shape(classes, binders);
+	}
+
+	private static Class<?> classOf(Object param) {
+		return param == null ? null : param.getClass();
+	}
+
+	private static Binder binder(Class<?> type) {
+		if (type == null) {
+			return NULL;
+		}
+		Binder binder = BY_CLASS.get(type);
+		if (binder == null) {
+			binder = subclassBinder(type);
+			BY_CLASS.put(type, binder);
+		}
+		return binder;
+	}
+
+	/**
+	 * Resolves the binder of a class that isn't one of the directly mapped
+	 * ones. The java.sql date types are subclasses of {@link java.util.Date},
+	 * so they have to be checked before it.
+	 */
+	private static Binder subclassBinder(Class<?> type) {
+		if (Timestamp.class.isAssignableFrom(type)) {
+			return new Binder() {
+				void bind(PreparedStatement ps, int index, Object value)
+						throws SQLException {
+					ps.setTimestamp(index, (Timestamp) value);
+				}
+			};
+		} else if (java.sql.Date.class.isAssignableFrom(type)) {
+			return new Binder() {
+				void bind(PreparedStatement ps, int index, Object value)
+						throws SQLException {
+					ps.setDate(index, (java.sql.Date) value);
+				}
+			};
+		} else if (java.sql.Time.class.isAssignableFrom(type)) {
+			return new Binder() {
+				void bind(PreparedStatement ps, int index, Object value)
+						throws SQLException {
+					ps.setTime(index, (java.sql.Time) value);
+				}
+			};
+		} else if (java.util.Date.class.isAssignableFrom(type)) {
+			return new Binder() {
+				void bind(PreparedStatement ps, int index, Object value)
+						throws SQLException {
+					ps.setTimestamp(index, new Timestamp(
+							((java.util.Date) value).getTime()));
+				}
+			};
+		}
+		return OBJECT;
+	}
+}
@@ -0,0 +1,196 @@
+package org.nothing;
+
+import java.math.BigInteger;
+
+/**
+ * Describes a table scan that
+ * {@link JdbcCanBeNice#doPartitionedQuery(ConnectionProvider, PartitionedScan, RowMapper, Object...)}
+ * splits on a numeric key column into ranges queried in parallel, each on its
+ * own connection. The setters return the scan itself so that they can be
+ * chained :
+ * 
+ * <pre>
+ * <code>PartitionedScan scan = new PartitionedScan("orders", "id")
+ * 		.columns("id, customer_id, amount").where("status = ?")
+ * 		.partitions(8);</code>
+ * </pre>
+ * 
+ * Partition <code>i</code> runs
+ * <code>select {columns} from {table} where ({where}) and {key} &gt;= ? and {key} &lt; ?</code>
+ * , the last partition's upper bound being inclusive. Unless they were given,
+ * the bounds are first read with a
+ * <code>select min({key}), max({key})</code> query. Rows whose key is null or
+ * out of the bounds aren't returned.
+ * 
+ * The ranges are of equal width, so the partitions are only balanced if the
+ * keys are evenly spread between the bounds, as with generated ids.
+ * 
+ * @author Jawher
+ * 
+ */
+public class PartitionedScan {
+	private final String table;
+	private final String keyColumn;
+	private String columns = "*";
+	private String where;
+	private int partitions = Runtime.getRuntime().availableProcessors();
+	private Integer parallelism;
+	private Long min;
+	private Long max;
+	private QueryOptions options;
+
+	/**
+	 * @param table
+	 *            the scanned table
+	 * @param keyColumn
+	 *            the numeric column the scan is partitioned on, ideally
+	 *            indexed
+	 */
+	public PartitionedScan(String table, String keyColumn) {
+		this.table = table;
+		this.keyColumn = keyColumn;
+	}
+
+	/**
+	 * @param columns
+	 *            the selected columns. Defaults to <code>*</code>.
+	 * @return this scan
+	 */
+	public PartitionedScan columns(String columns) {
+		this.columns = columns;
+		return this;
+	}
+
+	/**
+	 * @param where
+	 *            a condition the scanned rows must satisfy, which can use the
+	 *            ? placeholders. None by default.
+	 * @return this scan
+	 */
+	public PartitionedScan where(String where) {
+		this.where = where;
+		return this;
+	}
+
+	/**
+	 * @param partitions
+	 *            the number of ranges the key is split into. Defaults to the
+	 *            number of available processors.
+	 * @return this scan
+	 */
+	public PartitionedScan partitions(int partitions) {
+		if (partitions < 1) {
+			throw new IllegalArgumentException("partitions must be >= 1");
+		}
+		this.partitions = partitions;
+		return this;
+	}
+
+	/**
+	 * @param parallelism
+	 *            the maximum number of partitions queried at the same time,
+	 *            hence of connections used. Defaults to the number of
+	 *            partitions.
+	 * @return this scan
+	 */
+	public PartitionedScan parallelism(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be >= 1");
+		}
+		this.parallelism = parallelism;
+		return this;
+	}
+
+	/**
+	 * @param min
+	 *            the lowest scanned key
+	 * @param max
+	 *            the highest scanned key
+	 * @return this scan
+	 */
+	public PartitionedScan bounds(long min, long max) {
+		if (min > max) {
+			throw new IllegalArgumentException("min must be <= max");
+		}
+		this.min = min;
+		this.max = max;
+		return this;
+	}
+
+	/**
+	 * @param options
+	 *            the options of the partition queries (a large fetch size is
+	 *            usually a good idea)
+	 * @return this scan
+	 */
+	public PartitionedScan options(QueryOptions options) {
+		this.options = options == null ? null : options.copy();
+		return this;
+	}
+
+	public String getTable() {
+		return table;
+	}
+
+	public String getKeyColumn() {
+		return keyColumn;
+	}
+
+	public int getPartitions() {
+		return partitions;
+	}
+
+	public int getParallelism() {
+		return parallelism == null ? partitions : parallelism;
+	}
+
+	QueryOptions getOptions() {
+		return options;
+	}
+
+	Long getMin() {
+		return min;
+	}
+
+	Long getMax() {
+		return max;
+	}
+
+	String boundsSql() {
+		return "select min(" + keyColumn + "), max(" + keyColumn + ") from "
+				+ table + (where == null ? "" : " where " + where);
+	}
+
+	String partitionSql(boolean last) {
+		return "select " + columns + " from " + table + " where "
+				+ (where == null ? "" : "(" + where + ") and ") + keyColumn
+				+ " >= ? and " + keyColumn + (last ? " <= ?" : " < ?");
+	}
+
+	/**
+	 * Splits [min, max] into ranges of equal width
+	 * 
+	 * @return the lower bound of every range, followed by max. There are
+	 *         fewer ranges than partitions if max - min + 1 is smaller.
+	 */
+	static long[] split(long min, long max, int partitions) {
+		BigInteger low = BigInteger.valueOf(min);
+		BigInteger span = BigInteger.valueOf(max).subtract(low).add(
+				BigInteger.ONE);
+		int count = (int) Math.min(partitions, span.min(
+				BigInteger.valueOf(Integer.MAX_VALUE)).longValue());
+		long[] bounds = new long[count + 1];
+		for (int i = 0; i < count; i++) {
+			bounds[i] = low.add(
+					span.multiply(BigInteger.valueOf(i)).divide(
+							BigInteger.valueOf(count))).longValue();
+		}
+		bounds[count] = max;
+		return bounds;
+	}
+
+	@Override
+	public String toString() {
+		return "partitioned " + partitionSql(false) + " x " + partitions;
+	}
+}
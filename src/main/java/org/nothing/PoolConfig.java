@@ -0,0 +1,148 @@
+package org.nothing;
+
+/**
+ * The settings of a {@link PooledConnectionProvider}. The setters return the
+ * configuration itself so that they can be chained :
+ * 
+ * <pre>
+ * <code>PoolConfig config = new PoolConfig().minSize(2).maxSize(20)
+ * 		.maxWaitMillis(5000).validationQuery("select 1");</code>
+ * </pre>
+ * 
+ * @author Jawher
+ * 
+ */
+public class PoolConfig {
+	private int minSize = 0;
+	private int maxSize = 10;
+	private long maxWaitMillis = 30000;
+	private long idleTimeoutMillis = 10 * 60 * 1000;
+	private boolean validateOnBorrow = true;
+	private String validationQuery;
+	private int statementCacheSize = 0;
+
+	/**
+	 * @param minSize
+	 *            the number of idle connections that are never evicted, even
+	 *            when they exceed the idle timeout. Defaults to 0.
+	 * @return this configuration
+	 */
+	public PoolConfig minSize(int minSize) {
+		if (minSize < 0) {
+			throw new IllegalArgumentException("minSize must be >= 0");
+		}
+		this.minSize = minSize;
+		return this;
+	}
+
+	/**
+	 * @param maxSize
+	 *            the maximum number of open connections (idle or borrowed).
+	 *            Defaults to 10.
+	 * @return this configuration
+	 */
+	public PoolConfig maxSize(int maxSize) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("maxSize must be >= 1");
+		}
+		this.maxSize = maxSize;
+		return this;
+	}
+
+	/**
+	 * @param maxWaitMillis
+	 *            how long {@link PooledConnectionProvider#get()} waits for a
+	 *            connection when the pool is exhausted before failing.
+	 *            Defaults to 30 seconds.
+	 * @return this configuration
+	 */
+	public PoolConfig maxWaitMillis(long maxWaitMillis) {
+		this.maxWaitMillis = maxWaitMillis;
+		return this;
+	}
+
+	/**
+	 * @param idleTimeoutMillis
+	 *            idle connections older than this are closed (as long as
+	 *            there are more than <code>minSize</code> of them). A value
+	 *            <= 0 disables idle eviction. Defaults to 10 minutes.
+	 * @return this configuration
+	 */
+	public PoolConfig idleTimeoutMillis(long idleTimeoutMillis) {
+		this.idleTimeoutMillis = idleTimeoutMillis;
+		return this;
+	}
+
+	/**
+	 * @param validateOnBorrow
+	 *            whether idle connections are checked before being handed
+	 *            out. Defaults to true.
+	 * @return this configuration
+	 */
+	public PoolConfig validateOnBorrow(boolean validateOnBorrow) {
+		this.validateOnBorrow = validateOnBorrow;
+		return this;
+	}
+
+	/**
+	 * @param validationQuery
+	 *            the query used to validate a connection on borrow, e.g.
+	 *            <code>select 1</code>. When not set, a connection is
+	 *            checked with {@link java.sql.Connection#isValid(int)}.
+	 * @return this configuration
+	 */
+	public PoolConfig validationQuery(String validationQuery) {
+		this.validationQuery = validationQuery;
+		return this;
+	}
+
+	/**
+	 * @param statementCacheSize
+	 *            when > 0, a {@link StatementCache} of this size is attached
+	 *            to every pooled connection, so that prepared statements
+	 *            survive from one borrowing to the next. Defaults to 0
+	 *            (disabled).
+	 * @return this configuration
+	 */
+	public PoolConfig statementCacheSize(int statementCacheSize) {
+		this.statementCacheSize = statementCacheSize;
+		return this;
+	}
+
+	public int getMinSize() {
+		return minSize;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getMaxWaitMillis() {
+		return maxWaitMillis;
+	}
+
+	public long getIdleTimeoutMillis() {
+		return idleTimeoutMillis;
+	}
+
+	public boolean isValidateOnBorrow() {
+		return validateOnBorrow;
+	}
+
+	public String getValidationQuery() {
+		return validationQuery;
+	}
+
+	public int getStatementCacheSize() {
+		return statementCacheSize;
+	}
+
+	@Override
+	public String toString() {
+		return "PoolConfig [minSize=" + minSize + ", maxSize=" + maxSize
+				+ ", maxWaitMillis=" + maxWaitMillis + ", idleTimeoutMillis="
+				+ idleTimeoutMillis + ", validateOnBorrow=" + validateOnBorrow
+				+ ", validationQuery=" + validationQuery
+				+ ", statementCacheSize=" + statementCacheSize + "]";
+	}
+}
@@ -0,0 +1,353 @@
+package org.nothing;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded connection pool on top of another {@link ConnectionProvider}.
+ * Connections are created lazily with the encapsulated provider, at most
+ * {@link PoolConfig#getMaxSize()} of them at a time, and handed back to the
+ * pool via {@link #release(Connection)} (which
+ * {@link JdbcCanBeNice#doWithConnection(JdbcAction, ConnectionProvider)} does
+ * for you).
+ * 
+ * Idle connections are kept in a lock-free queue, checked before being handed
+ * out (see {@link PoolConfig#validateOnBorrow(boolean)}) and closed once they
+ * have been idle for longer than {@link PoolConfig#getIdleTimeoutMillis()}.
+ * A connection released out of auto-commit mode is rolled back and put back
+ * in auto-commit mode before being pooled (or closed if that fails), so that
+ * the next borrower doesn't inherit a pending transaction.
+ * 
+ * @author Jawher
+ * 
+ */
+public class PooledConnectionProvider implements ReleasableConnectionProvider {
+	/**
+	 * How long {@link Connection#isValid(int)} may take to validate a
+	 * connection on borrow
+	 */
+	private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+
+	private static class IdleConnection {
+		private final Connection connection;
+		private final long idleSince;
+
+		public IdleConnection(Connection connection, long idleSince) {
+			this.connection = connection;
+			this.idleSince = idleSince;
+		}
+	}
+
+	private final ConnectionProvider connectionProvider;
+	private final int minSize;
+	private final int maxSize;
+	private final long maxWaitMillis;
+	private final long idleTimeoutMillis;
+	private final boolean validateOnBorrow;
+	private final String validationQuery;
+	private final int statementCacheSize;
+
+	private final Queue<IdleConnection> idle = new ConcurrentLinkedQueue<IdleConnection>();
+	private final ConcurrentHashMap<Connection, Boolean> borrowed = new ConcurrentHashMap<Connection, Boolean>();
+	private final Semaphore permits;
+	private final AtomicInteger openCount = new AtomicInteger();
+	private final AtomicInteger idleCount = new AtomicInteger();
+	private final AtomicLong nextEviction = new AtomicLong();
+	private volatile boolean closed;
+	private final CopyOnWriteArrayList<LatencyHistogram> waitHistograms = new CopyOnWriteArrayList<LatencyHistogram>();
+
+	/**
+	 * @param connectionProvider
+	 *            the provider used to open the pooled connections
+	 * @param config
+	 *            the pool settings. They are copied, so changing the
+	 *            configuration afterwards has no effect on this pool.
+	 */
+	public PooledConnectionProvider(ConnectionProvider connectionProvider,
+			PoolConfig config) {
+		if (config.getMinSize() > config.getMaxSize()) {
+			throw new IllegalArgumentException("minSize (" + config.getMinSize()
+					+ ") is greater than maxSize (" + config.getMaxSize() + ")");
+		}
+		this.connectionProvider = connectionProvider;
+		this.minSize = config.getMinSize();
+		this.maxSize = config.getMaxSize();
+		this.maxWaitMillis = config.getMaxWaitMillis();
+		this.idleTimeoutMillis = config.getIdleTimeoutMillis();
+		this.validateOnBorrow = config.isValidateOnBorrow();
+		this.validationQuery = config.getValidationQuery();
+		this.statementCacheSize = config.getStatementCacheSize();
+		this.permits = new Semaphore(maxSize);
+	}
+
+	/**
+	 * Borrows a connection from the pool, reusing an idle one when possible
+	 * and opening a new one otherwise. Waits up to
+	 * {@link PoolConfig#getMaxWaitMillis()} when all the connections are
+	 * borrowed.
+	 * 
+	 * @return a connection that must be handed back with
+	 *         {@link #release(Connection)}
+	 * @throws SQLException
+	 *             if the pool is closed, if no connection became available in
+	 *             time or if a new connection couldn't be opened
+	 */
+	public Connection get() throws SQLException {
+		if (closed) {
+			throw new SQLException("The connection pool is closed");
+		}
+		acquirePermit();
+		try {
+			Connection connection = pollIdle();
+			if (connection == null) {
+				connection = open();
+			}
+			borrowed.put(connection, Boolean.TRUE);
+			return connection;
+		} catch (SQLException e) {
+			permits.release();
+			throw e;
+		} catch (RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Hands a borrowed connection back to the pool. Connections that weren't
+	 * borrowed from this pool (or that were already released) are ignored.
+	 */
+	public void release(Connection connection) throws SQLException {
+		if (borrowed.remove(connection) == null) {
+			return;
+		}
+		try {
+			if (closed || !reset(connection)) {
+				discard(connection);
+			} else {
+				idle.offer(new IdleConnection(connection, System
+						.currentTimeMillis()));
+				idleCount.incrementAndGet();
+			}
+		} finally {
+			permits.release();
+		}
+		evictIdleIfDue();
+	}
+
+	/**
+	 * Opens new connections until the pool holds at least
+	 * {@link PoolConfig#getMinSize()} of them. The pool being lazy, call this
+	 * method right after creating it if you want it warmed up.
+	 * 
+	 * @throws SQLException
+	 */
+	public void fill() throws SQLException {
+		while (!closed && openCount.get() < minSize && permits.tryAcquire()) {
+			try {
+				Connection connection = open();
+				idle.offer(new IdleConnection(connection, System
+						.currentTimeMillis()));
+				idleCount.incrementAndGet();
+			} finally {
+				permits.release();
+			}
+		}
+	}
+
+	/**
+	 * Closes the idle connections that exceeded the idle timeout, keeping at
+	 * least {@link PoolConfig#getMinSize()} open connections. This is also
+	 * done periodically when connections are released.
+	 */
+	public void evictIdle() {
+		if (idleTimeoutMillis <= 0) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		Iterator<IdleConnection> it = idle.iterator();
+		while (it.hasNext() && openCount.get() > minSize) {
+			IdleConnection candidate = it.next();
+			if (now - candidate.idleSince >= idleTimeoutMillis
+					&& idle.remove(candidate)) {
+				idleCount.decrementAndGet();
+				discard(candidate.connection);
+			}
+		}
+	}
+
+	/**
+	 * Closes all the idle connections and refuses any further borrowing.
+	 * Borrowed connections are closed when they are released.
+	 */
+	public void close() {
+		closed = true;
+		IdleConnection candidate;
+		while ((candidate = idle.poll()) != null) {
+			idleCount.decrementAndGet();
+			discard(candidate.connection);
+		}
+	}
+
+	/**
+	 * @return the number of open connections, idle or borrowed
+	 */
+	public int getOpenCount() {
+		return openCount.get();
+	}
+
+	/**
+	 * @return the number of connections waiting in the pool
+	 */
+	public int getIdleCount() {
+		return idleCount.get();
+	}
+
+	/**
+	 * @return the number of connections currently borrowed
+	 */
+	public int getBorrowedCount() {
+		return borrowed.size();
+	}
+
+	/**
+	 * Records how long every {@link #get()} on this pool waits for a permit
+	 * from now on, in addition to the histograms already registered. Adding
+	 * the same histogram twice has no effect.
+	 */
+	void recordWaitsInto(LatencyHistogram histogram) {
+		waitHistograms.addIfAbsent(histogram);
+	}
+
+	private void acquirePermit() throws SQLException {
+		boolean measured = !waitHistograms.isEmpty();
+		long start = measured ? System.nanoTime() : 0;
+		try {
+			if (maxWaitMillis < 0) {
+				permits.acquire();
+			} else if (!permits.tryAcquire(maxWaitMillis,
+					TimeUnit.MILLISECONDS)) {
+				throw new SQLException(
+						"Timed out waiting for a pooled connection after "
+								+ maxWaitMillis + " ms (maxSize=" + maxSize
+								+ ")");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			SQLException sqlException = new SQLException(
+					"Interrupted while waiting for a pooled connection");
+			sqlException.initCause(e);
+			throw sqlException;
+		} finally {
+			if (measured) {
+				long nanos = System.nanoTime() - start;
+				for (LatencyHistogram histogram : waitHistograms) {
+					histogram.record(nanos);
+				}
+			}
+		}
+	}
+
+	private Connection pollIdle() {
+		IdleConnection candidate;
+		while ((candidate = idle.poll()) != null) {
+			idleCount.decrementAndGet();
+			if (idleTimeoutMillis > 0
+					&& System.currentTimeMillis() - candidate.idleSince >= idleTimeoutMillis
+					&& openCount.get() > minSize) {
+				discard(candidate.connection);
+			} else if (validateOnBorrow && !isValid(candidate.connection)) {
+				discard(candidate.connection);
+			} else {
+				return candidate.connection;
+			}
+		}
+		return null;
+	}
+
+	private boolean isValid(Connection connection) {
+		try {
+			if (validationQuery == null) {
+				return connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+			}
+			if (connection.isClosed()) {
+				return false;
+			}
+			Statement st = connection.createStatement();
+			try {
+				st.execute(validationQuery);
+			} finally {
+				try {
+					st.close();
+				} catch (SQLException e1) {
+				}
+			}
+			return true;
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Rolls back the transaction a released connection was left in, if any
+	 * 
+	 * @return whether the connection can be pooled again
+	 */
+	private boolean reset(Connection connection) {
+		try {
+			if (!connection.getAutoCommit()) {
+				connection.rollback();
+				connection.setAutoCommit(true);
+			}
+			return true;
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	private void evictIdleIfDue() {
+		if (idleTimeoutMillis <= 0) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		long due = nextEviction.get();
+		if (now >= due
+				&& nextEviction.compareAndSet(due, now + idleTimeoutMillis / 2)) {
+			evictIdle();
+		}
+	}
+
+	private Connection open() throws SQLException {
+		Connection connection = connectionProvider.get();
+		openCount.incrementAndGet();
+		if (statementCacheSize > 0) {
+			connection = StatementCache.attach(connection, statementCacheSize);
+		}
+		return connection;
+	}
+
+	private void discard(Connection connection) {
+		openCount.decrementAndGet();
+		// also closes the statement cache wrapping the connection, if any
+		try {
+			connection.close();
+		} catch (SQLException e1) {
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "pool {" + connectionProvider + ", open=" + openCount.get()
+				+ ", idle=" + idleCount.get() + "}";
+	}
+}
@@ -0,0 +1,370 @@
+package org.nothing;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A bounded cache of query results, keyed by the query's sql and parameter
+ * values, for reference data that is read far more often than it changes.
+ * Use it with
+ * {@link JdbcCanBeNice#sqlCachedQuery(QueryCache, String, String, RowMapper, Object...)}
+ * and declare the updates of the cached tables with
+ * {@link JdbcCanBeNice#sqlInvalidating(QueryCache, String, JdbcAction)} so
+ * that the stale results are dropped :
+ * 
+ * <pre>
+ * <code>QueryCache cache = new QueryCache().maxEntries(500).ttlMillis(60000);
+ * List&lt;Country&gt; countries = doWithConnection(sqlCachedQuery(cache,
+ * 		"country", "select * from country", countryMapper),
+ * 		connectionProvider);
+ * ...
+ * doWithConnection(sqlTx(sqlInvalidating(cache, "country", sqlUpdate(
+ * 		"update country set name=? where code=?", "Tunisia", "tn"))),
+ * 		connectionProvider);</code>
+ * </pre>
+ * 
+ * The cache is bounded by a number of entries and by a total weight (the
+ * number of rows of the cached results), and entries expire after a time to
+ * live. When full, the least recently used (or least frequently used, see
+ * {@link EvictionPolicy}) entry is evicted.
+ * 
+ * @author Jawher
+ * 
+ */
+public class QueryCache {
+	/**
+	 * Which entry to evict when the cache is full
+	 */
+	public enum EvictionPolicy {
+		/**
+		 * Evicts the least recently used entry
+		 */
+		LRU,
+		/**
+		 * Evicts the least frequently used entry (the least recently used one
+		 * among those with the fewest hits). Finding it is linear in the
+		 * number of entries.
+		 */
+		LFU
+	}
+
+	static final class Key {
+		private final String sql;
+		private final Object[] params;
+		private final int hashCode;
+
+		Key(String sql, Object[] params) {
+			this.sql = sql;
+			this.params = params.clone();
+			this.hashCode = 31 * sql.hashCode() + Arrays.deepHashCode(params);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return sql.equals(other.sql)
+					&& Arrays.deepEquals(params, other.params);
+		}
+
+		@Override
+		public String toString() {
+			return sql + " " + Arrays.deepToString(params);
+		}
+	}
+
+	private static final class Entry {
+		private final Object value;
+		private final String table;
+		private final long weight;
+		private final long expiresAt;
+		private long hits;
+
+		public Entry(Object value, String table, long weight, long expiresAt) {
+			this.value = value;
+			this.table = table;
+			this.weight = weight;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private int maxEntries = 1000;
+	private long maxWeight = Long.MAX_VALUE;
+	private long ttlMillis = 60 * 1000;
+	private EvictionPolicy evictionPolicy = EvictionPolicy.LRU;
+
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(
+			16, 0.75f, true);
+	private final Map<String, Set<Key>> keysByTable = new HashMap<String, Set<Key>>();
+	private final Map<String, Long> generations = new HashMap<String, Long>();
+	private long weight;
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long expirations;
+	private long invalidations;
+
+	/**
+	 * @param maxEntries
+	 *            the maximum number of cached results. Defaults to 1000.
+	 * @return this cache
+	 */
+	public synchronized QueryCache maxEntries(int maxEntries) {
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("maxEntries must be >= 1");
+		}
+		this.maxEntries = maxEntries;
+		return this;
+	}
+
+	/**
+	 * @param maxWeight
+	 *            the maximum total number of rows of the cached results.
+	 *            Unbounded by default.
+	 * @return this cache
+	 */
+	public synchronized QueryCache maxWeight(long maxWeight) {
+		if (maxWeight < 1) {
+			throw new IllegalArgumentException("maxWeight must be >= 1");
+		}
+		this.maxWeight = maxWeight;
+		return this;
+	}
+
+	/**
+	 * @param ttlMillis
+	 *            how long a result stays cached, <= 0 meaning forever.
+	 *            Defaults to 1 minute.
+	 * @return this cache
+	 */
+	public synchronized QueryCache ttlMillis(long ttlMillis) {
+		this.ttlMillis = ttlMillis;
+		return this;
+	}
+
+	/**
+	 * @param evictionPolicy
+	 *            which entry to evict when the cache is full. Defaults to
+	 *            {@link EvictionPolicy#LRU}.
+	 * @return this cache
+	 */
+	public synchronized QueryCache evictionPolicy(EvictionPolicy evictionPolicy) {
+		this.evictionPolicy = evictionPolicy;
+		return this;
+	}
+
+	/**
+	 * @return the cached result, or null if there is none (or it expired)
+	 */
+	synchronized Object get(Key key) {
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+		if (entry.expiresAt <= System.currentTimeMillis()) {
+			remove(key, entry);
+			expirations++;
+			misses++;
+			return null;
+		}
+		entry.hits++;
+		hits++;
+		return entry.value;
+	}
+
+	/**
+	 * @return the current generation of a table, to be passed to
+	 *         {@link #put(Key, String, long, Object)}
+	 */
+	synchronized long generation(String table) {
+		Long generation = generations.get(table);
+		return generation == null ? 0 : generation;
+	}
+
+	/**
+	 * Caches a result, unless the table was invalidated since the generation
+	 * was read, in which case the result may already be stale
+	 */
+	synchronized void put(Key key, String table, long generation, Object value) {
+		if (table != null && generation(table) != generation) {
+			return;
+		}
+		Entry previous = entries.get(key);
+		if (previous != null) {
+			remove(key, previous);
+		}
+		long now = System.currentTimeMillis();
+		Entry entry = new Entry(value, table, weigh(value),
+				ttlMillis > 0 ? now + ttlMillis : Long.MAX_VALUE);
+		entries.put(key, entry);
+		weight += entry.weight;
+		if (table != null) {
+			Set<Key> keys = keysByTable.get(table);
+			if (keys == null) {
+				keys = new HashSet<Key>();
+				keysByTable.put(table, keys);
+			}
+			keys.add(key);
+		}
+		while (entries.size() > maxEntries
+				|| (weight > maxWeight && entries.size() > 1)) {
+			evictOne(now);
+		}
+	}
+
+	/**
+	 * Drops all the results cached for a table
+	 * 
+	 * @param table
+	 *            the table, as declared when caching the queries
+	 */
+	public synchronized void invalidate(String table) {
+		Long generation = generations.get(table);
+		generations.put(table, generation == null ? 1 : generation + 1);
+		Set<Key> keys = keysByTable.remove(table);
+		if (keys != null) {
+			for (Key key : keys) {
+				Entry entry = entries.remove(key);
+				if (entry != null) {
+					weight -= entry.weight;
+					invalidations++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drops all the cached results
+	 */
+	public synchronized void clear() {
+		for (String table : keysByTable.keySet()) {
+			Long generation = generations.get(table);
+			generations.put(table, generation == null ? 1 : generation + 1);
+		}
+		invalidations += entries.size();
+		entries.clear();
+		keysByTable.clear();
+		weight = 0;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return the total number of rows of the cached results
+	 */
+	public synchronized long getWeight() {
+		return weight;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return the hits / (hits + misses) ratio, 0 if the cache was never
+	 *         queried
+	 */
+	public synchronized double getHitRatio() {
+		long requests = hits + misses;
+		return requests == 0 ? 0 : (double) hits / requests;
+	}
+
+	/**
+	 * @return the number of entries evicted because the cache was full
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * @return the number of entries dropped because they expired
+	 */
+	public synchronized long getExpirations() {
+		return expirations;
+	}
+
+	/**
+	 * @return the number of entries dropped by {@link #invalidate(String)}
+	 *         and {@link #clear()}
+	 */
+	public synchronized long getInvalidations() {
+		return invalidations;
+	}
+
+	private void evictOne(long now) {
+		Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+		Map.Entry<Key, Entry> victim = null;
+		while (it.hasNext()) {
+			Map.Entry<Key, Entry> candidate = it.next();
+			if (candidate.getValue().expiresAt <= now) {
+				// an expired entry is the best victim
+				victim = candidate;
+				break;
+			}
+			if (victim == null) {
+				victim = candidate;
+				if (evictionPolicy == EvictionPolicy.LRU) {
+					break;
+				}
+			} else if (candidate.getValue().hits < victim.getValue().hits) {
+				victim = candidate;
+			}
+		}
+		if (victim.getValue().expiresAt <= now) {
+			expirations++;
+		} else {
+			evictions++;
+		}
+		remove(victim.getKey(), victim.getValue());
+	}
+
+	private void remove(Key key, Entry entry) {
+		entries.remove(key);
+		weight -= entry.weight;
+		if (entry.table != null) {
+			Set<Key> keys = keysByTable.get(entry.table);
+			if (keys != null) {
+				keys.remove(key);
+				if (keys.isEmpty()) {
+					keysByTable.remove(entry.table);
+				}
+			}
+		}
+	}
+
+	private static long weigh(Object value) {
+		if (value instanceof Collection<?>) {
+			return Math.max(1, ((Collection<?>) value).size());
+		}
+		return 1;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "QueryCache [size=" + entries.size() + ", weight=" + weight
+				+ ", hits=" + hits + ", misses=" + misses + ", evictions="
+				+ evictions + ", expirations=" + expirations
+				+ ", invalidations=" + invalidations + "]";
+	}
+}
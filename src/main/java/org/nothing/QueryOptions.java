@@ -0,0 +1,267 @@
+package org.nothing;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Statement level settings of a query : how many rows are fetched per round
+ * trip, how many rows at most are returned, the result set type, etc. Every
+ * setting left unset keeps the driver's default. The setters return the
+ * options themselves so that they can be chained :
+ * 
+ * <pre>
+ * <code>QueryOptions exportOptions = new QueryOptions().fetchSize(5000)
+ * 		.queryTimeoutSeconds(600);
+ * doWithConnection(sqlQueryForEach("select * from orders", exportOptions,
+ * 		csvExporter), connectionProvider);</code>
+ * </pre>
+ * 
+ * The query factory methods take a copy of the options when the action is
+ * created, so changing them afterwards only affects the actions created
+ * later.
+ * 
+ * @author Jawher
+ * 
+ */
+public class QueryOptions {
+	private Integer fetchSize;
+	private Integer maxRows;
+	private Integer queryTimeoutSeconds;
+	private Integer fetchDirection;
+	private int resultSetType = ResultSet.TYPE_FORWARD_ONLY;
+	private int resultSetConcurrency = ResultSet.CONCUR_READ_ONLY;
+	private Integer expectedRows;
+
+	/**
+	 * @param fetchSize
+	 *            the number of rows fetched from the database per round trip
+	 *            (see {@link java.sql.Statement#setFetchSize(int)})
+	 * @return these options
+	 */
+	public QueryOptions fetchSize(int fetchSize) {
+		if (fetchSize < 0) {
+			throw new IllegalArgumentException("fetchSize must be >= 0");
+		}
+		this.fetchSize = fetchSize;
+		return this;
+	}
+
+	/**
+	 * @param maxRows
+	 *            the maximum number of rows returned, 0 meaning no limit (see
+	 *            {@link java.sql.Statement#setMaxRows(int)})
+	 * @return these options
+	 */
+	public QueryOptions maxRows(int maxRows) {
+		if (maxRows < 0) {
+			throw new IllegalArgumentException("maxRows must be >= 0");
+		}
+		this.maxRows = maxRows;
+		return this;
+	}
+
+	/**
+	 * @param queryTimeoutSeconds
+	 *            how long the driver waits for the query to execute, 0
+	 *            meaning no limit (see
+	 *            {@link java.sql.Statement#setQueryTimeout(int)})
+	 * @return these options
+	 */
+	public QueryOptions queryTimeoutSeconds(int queryTimeoutSeconds) {
+		if (queryTimeoutSeconds < 0) {
+			throw new IllegalArgumentException(
+					"queryTimeoutSeconds must be >= 0");
+		}
+		this.queryTimeoutSeconds = queryTimeoutSeconds;
+		return this;
+	}
+
+	/**
+	 * @param fetchDirection
+	 *            one of {@link ResultSet#FETCH_FORWARD},
+	 *            {@link ResultSet#FETCH_REVERSE} or
+	 *            {@link ResultSet#FETCH_UNKNOWN}
+	 * @return these options
+	 */
+	public QueryOptions fetchDirection(int fetchDirection) {
+		this.fetchDirection = fetchDirection;
+		return this;
+	}
+
+	/**
+	 * @param resultSetType
+	 *            one of {@link ResultSet#TYPE_FORWARD_ONLY} (the default),
+	 *            {@link ResultSet#TYPE_SCROLL_INSENSITIVE} or
+	 *            {@link ResultSet#TYPE_SCROLL_SENSITIVE}
+	 * @return these options
+	 */
+	public QueryOptions resultSetType(int resultSetType) {
+		this.resultSetType = resultSetType;
+		return this;
+	}
+
+	/**
+	 * @param resultSetConcurrency
+	 *            one of {@link ResultSet#CONCUR_READ_ONLY} (the default) or
+	 *            {@link ResultSet#CONCUR_UPDATABLE}
+	 * @return these options
+	 */
+	public QueryOptions resultSetConcurrency(int resultSetConcurrency) {
+		this.resultSetConcurrency = resultSetConcurrency;
+		return this;
+	}
+
+	/**
+	 * @param expectedRows
+	 *            a hint of how many rows the query returns, used to size the
+	 *            arrays and lists the results are collected into. Unlike the
+	 *            other options, it isn't a statement setting.
+	 * @return these options
+	 */
+	public QueryOptions expectedRows(int expectedRows) {
+		if (expectedRows < 0) {
+			throw new IllegalArgumentException("expectedRows must be >= 0");
+		}
+		this.expectedRows = expectedRows;
+		return this;
+	}
+
+	public Integer getFetchSize() {
+		return fetchSize;
+	}
+
+	public Integer getMaxRows() {
+		return maxRows;
+	}
+
+	public Integer getQueryTimeoutSeconds() {
+		return queryTimeoutSeconds;
+	}
+
+	public Integer getFetchDirection() {
+		return fetchDirection;
+	}
+
+	public int getResultSetType() {
+		return resultSetType;
+	}
+
+	public int getResultSetConcurrency() {
+		return resultSetConcurrency;
+	}
+
+	public Integer getExpectedRows() {
+		return expectedRows;
+	}
+
+	/**
+	 * @return the expected rows hint of the options, or a default capacity
+	 *         if they are null or have no hint
+	 */
+	static int initialCapacity(QueryOptions options) {
+		if (options == null || options.expectedRows == null) {
+			return 16;
+		}
+		return options.expectedRows;
+	}
+
+	QueryOptions copy() {
+		QueryOptions copy = new QueryOptions();
+		copy.fetchSize = fetchSize;
+		copy.maxRows = maxRows;
+		copy.queryTimeoutSeconds = queryTimeoutSeconds;
+		copy.fetchDirection = fetchDirection;
+		copy.resultSetType = resultSetType;
+		copy.resultSetConcurrency = resultSetConcurrency;
+		copy.expectedRows = expectedRows;
+		return copy;
+	}
+
+	/**
+	 * @return a copy of the statement settings only, without the expected
+	 *         rows hint, so that statement keys compare the same settings as
+	 *         {@link #equals(Object)}
+	 */
+	QueryOptions statementCopy() {
+		QueryOptions copy = copy();
+		copy.expectedRows = null;
+		return copy;
+	}
+
+	boolean hasDefaultResultSetTypeAndConcurrency() {
+		return resultSetType == ResultSet.TYPE_FORWARD_ONLY
+				&& resultSetConcurrency == ResultSet.CONCUR_READ_ONLY;
+	}
+
+	/**
+	 * Applies the statement level settings that were set
+	 */
+	void applyTo(PreparedStatement ps) throws SQLException {
+		if (fetchSize != null) {
+			ps.setFetchSize(fetchSize);
+		}
+		if (maxRows != null) {
+			ps.setMaxRows(maxRows);
+		}
+		if (queryTimeoutSeconds != null) {
+			ps.setQueryTimeout(queryTimeoutSeconds);
+		}
+		if (fetchDirection != null) {
+			ps.setFetchDirection(fetchDirection);
+		}
+	}
+
+	/**
+	 * Only the statement settings are compared, so that queries that differ
+	 * only by their expected rows hint share their cached statements. The
+	 * statement keys hold a {@link #statementCopy()}, so that no hint is
+	 * kept with them.
+	 */
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result
+				+ ((fetchDirection == null) ? 0 : fetchDirection.hashCode());
+		result = prime * result
+				+ ((fetchSize == null) ? 0 : fetchSize.hashCode());
+		result = prime * result + ((maxRows == null) ? 0 : maxRows.hashCode());
+		result = prime
+				* result
+				+ ((queryTimeoutSeconds == null) ? 0 : queryTimeoutSeconds
+						.hashCode());
+		result = prime * result + resultSetConcurrency;
+		result = prime * result + resultSetType;
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		QueryOptions other = (QueryOptions) obj;
+		return eq(fetchSize, other.fetchSize) && eq(maxRows, other.maxRows)
+				&& eq(queryTimeoutSeconds, other.queryTimeoutSeconds)
+				&& eq(fetchDirection, other.fetchDirection)
+				&& resultSetType == other.resultSetType
+				&& resultSetConcurrency == other.resultSetConcurrency;
+	}
+
+	private static boolean eq(Integer a, Integer b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	@Override
+	public String toString() {
+		return "QueryOptions [fetchSize=" + fetchSize + ", maxRows=" + maxRows
+				+ ", queryTimeoutSeconds=" + queryTimeoutSeconds
+				+ ", fetchDirection=" + fetchDirection + ", resultSetType="
+				+ resultSetType + ", resultSetConcurrency="
+				+ resultSetConcurrency + ", expectedRows=" + expectedRows + "]";
+	}
+}
@@ -0,0 +1,26 @@
+package org.nothing;
+
+/**
+ * Marks the actions that only read, like the queries. A
+ * {@link RoutingConnectionProvider} runs them on a replica. See
+ * {@link JdbcCanBeNice#sqlReadOnly(JdbcAction)} to mark other actions.
+ * 
+ * @author Jawher
+ * 
+ * @param <T>
+ *            the action's return type
+ */
+abstract class ReadOnlyJdbcAction<T> extends BaseChainableJdbcAction<T> {
+
+	/**
+	 * @return whether the action was marked as read only, or is a chain of
+	 *         read only actions
+	 */
+	static boolean isReadOnly(JdbcAction<?> action) {
+		if (action instanceof ReadOnlyJdbcAction<?>) {
+			return true;
+		}
+		return action instanceof ChainedJdbcAction<?>
+				&& ((ChainedJdbcAction<?>) action).isReadOnly();
+	}
+}
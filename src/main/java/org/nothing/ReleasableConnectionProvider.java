@@ -0,0 +1,41 @@
+/**
+ * 
+ */
+package org.nothing;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * A {@link ConnectionProvider} that wants its connections back once they are
+ * no longer needed, like a connection pool.
+ * {@link JdbcCanBeNice#doWithConnection(JdbcAction, ConnectionProvider)}
+ * calls {@link #release(Connection)} when the action finishes.
+ * 
+ * @author Jawher
+ * 
+ */
+public interface ReleasableConnectionProvider extends ConnectionProvider {
+	/**
+	 * Hands back a connection previously obtained via
+	 * {@link ConnectionProvider#get()}
+	 * 
+	 * @param connection
+	 *            the connection to release
+	 * @throws SQLException
+	 */
+	void release(Connection connection) throws SQLException;
+
+	/**
+	 * Provides a connection for a read only action (see
+	 * {@link JdbcCanBeNice#sqlReadOnly(JdbcAction)}). Providers that can
+	 * serve reads elsewhere, like {@link RoutingConnectionProvider}, override
+	 * it, and the providers wrapping another one delegate it.
+	 * 
+	 * @return a connection, by default the one {@link #get()} returns
+	 * @throws SQLException
+	 */
+	default Connection getForReading() throws SQLException {
+		return get();
+	}
+}
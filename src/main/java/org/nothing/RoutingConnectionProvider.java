@@ -0,0 +1,382 @@
+package org.nothing;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+/**
+ * Splits the reads from the writes : the connections are taken from a
+ * primary provider, except for the read only actions (the queries, and the
+ * actions marked with {@link JdbcCanBeNice#sqlReadOnly(JdbcAction)}), which
+ * {@link JdbcCanBeNice#doWithConnection(JdbcAction, ConnectionProvider)} runs
+ * on a connection taken from one of the replica providers, through
+ * {@link #getForReading()} (which the providers wrapping this one delegate).
+ * A chain of actions goes to a replica only if all its actions are read
+ * only, and transactions ({@link JdbcCanBeNice#sqlTx(JdbcAction)}) and updates always
+ * go to the primary.
+ * 
+ * The replicas are balanced by sending each read to the one with the least
+ * outstanding reads relative to its weight (the default), or in a weighted
+ * round robin :
+ * 
+ * <pre>
+ * <code>RoutingConnectionProvider routing = routingConnectionProvider(primary,
+ * 		replica1, replica2).weights(2, 1).lagCheck(replicationLagQuery,
+ * 		500, 1000);</code>
+ * </pre>
+ * 
+ * A replica whose provider fails to give a connection is left aside for
+ * {@link #failureBackoffMillis(long)}, and, if a lag check is set, a replica
+ * lagging too much behind the primary is left aside until the next check
+ * finds it caught up. Reads go to the primary when no replica is available.
+ * 
+ * Connections are released to the provider they came from. Settings must be
+ * changed before the provider is used.
+ * 
+ * @author Jawher
+ * 
+ */
+public class RoutingConnectionProvider implements ReleasableConnectionProvider {
+	/**
+	 * How the reads are spread on the replicas
+	 */
+	public enum Balancing {
+		/**
+		 * To the replica with the fewest outstanding reads relative to its
+		 * weight
+		 */
+		LEAST_OUTSTANDING,
+		/**
+		 * In turn, each replica getting as many reads as its weight
+		 */
+		ROUND_ROBIN
+	}
+
+	/**
+	 * The primary or a replica
+	 */
+	private static final class Target {
+		private final ConnectionProvider provider;
+		private final AtomicInteger outstanding = new AtomicInteger();
+		private final AtomicLong routed = new AtomicLong();
+		private final AtomicLong nextLagCheck = new AtomicLong();
+		private int weight = 1;
+		private volatile long downUntil;
+		private volatile boolean lagging;
+
+		public Target(ConnectionProvider provider) {
+			this.provider = provider;
+		}
+	}
+
+	/**
+	 * A connection handed out by a target, as many times as count (providers
+	 * like the caching one hand out the same connection to concurrent
+	 * callers)
+	 */
+	private static final class Borrowed {
+		private final Target target;
+		private final int count;
+
+		public Borrowed(Target target, int count) {
+			this.target = target;
+			this.count = count;
+		}
+	}
+
+	private static final BiFunction<Connection, Borrowed, Borrowed> RETURN = new BiFunction<Connection, Borrowed, Borrowed>() {
+
+		public Borrowed apply(Connection connection, Borrowed borrowed) {
+			return borrowed.count == 1 ? null : new Borrowed(borrowed.target,
+					borrowed.count - 1);
+		}
+	};
+
+	private final Target primary;
+	private final Target[] replicas;
+	private final ConcurrentHashMap<Connection, Borrowed> borrowed = new ConcurrentHashMap<Connection, Borrowed>();
+	private final AtomicLong turn = new AtomicLong();
+	private Balancing balancing = Balancing.LEAST_OUTSTANDING;
+	private int[] schedule;
+	private long failureBackoffMillis = 5000;
+	private JdbcAction<? extends Number> lagQuery;
+	private long maxLagMillis;
+	private long lagCheckIntervalMillis;
+
+	/**
+	 * @param primary
+	 *            provides the connections to the primary database
+	 * @param replicas
+	 *            provide the connections to the replicas
+	 */
+	public RoutingConnectionProvider(ConnectionProvider primary,
+			ConnectionProvider... replicas) {
+		this.primary = new Target(primary);
+		this.replicas = new Target[replicas.length];
+		for (int i = 0; i < replicas.length; i++) {
+			this.replicas[i] = new Target(replicas[i]);
+		}
+		this.schedule = schedule(this.replicas);
+	}
+
+	/**
+	 * @param balancing
+	 *            how the reads are spread on the replicas. Defaults to
+	 *            {@link Balancing#LEAST_OUTSTANDING}.
+	 * @return this provider
+	 */
+	public RoutingConnectionProvider balancing(Balancing balancing) {
+		this.balancing = balancing;
+		return this;
+	}
+
+	/**
+	 * @param weights
+	 *            the relative capacity of each replica, in the order they
+	 *            were given. All replicas weigh 1 by default.
+	 * @return this provider
+	 */
+	public RoutingConnectionProvider weights(int... weights) {
+		if (weights.length != replicas.length) {
+			throw new IllegalArgumentException("Expected " + replicas.length
+					+ " weights, got " + weights.length);
+		}
+		for (int i = 0; i < weights.length; i++) {
+			if (weights[i] < 1) {
+				throw new IllegalArgumentException("weights must be >= 1");
+			}
+			replicas[i].weight = weights[i];
+		}
+		schedule = schedule(replicas);
+		return this;
+	}
+
+	/**
+	 * @param failureBackoffMillis
+	 *            how long a replica that failed to give a connection is left
+	 *            aside. Defaults to 5 seconds.
+	 * @return this provider
+	 */
+	public RoutingConnectionProvider failureBackoffMillis(
+			long failureBackoffMillis) {
+		this.failureBackoffMillis = failureBackoffMillis;
+		return this;
+	}
+
+	/**
+	 * Checks how far behind the primary the replicas are, at most every
+	 * <code>checkIntervalMillis</code> per replica, with the connection just
+	 * taken for a read. A replica whose check fails or returns more than
+	 * <code>maxLagMillis</code> is left aside until the next check.
+	 * 
+	 * @param lagQuery
+	 *            returns how many milliseconds the replica it runs on lags
+	 *            behind the primary
+	 * @return this provider
+	 */
+	public RoutingConnectionProvider lagCheck(
+			JdbcAction<? extends Number> lagQuery, long maxLagMillis,
+			long checkIntervalMillis) {
+		this.lagQuery = lagQuery;
+		this.maxLagMillis = maxLagMillis;
+		this.lagCheckIntervalMillis = checkIntervalMillis;
+		return this;
+	}
+
+	/**
+	 * @return a connection to the primary
+	 */
+	public Connection get() throws SQLException {
+		return borrow(primary, primary.provider.get());
+	}
+
+	/**
+	 * @return a connection to an available replica, or to the primary if
+	 *         none is
+	 */
+	@Override
+	public Connection getForReading() throws SQLException {
+		for (int attempt = 0; attempt < replicas.length; attempt++) {
+			long now = System.currentTimeMillis();
+			Target replica = balancing == Balancing.ROUND_ROBIN ? nextInTurn(now)
+					: leastOutstanding(now);
+			if (replica == null) {
+				break;
+			}
+			Connection connection = tryGet(replica, now);
+			if (connection != null) {
+				return borrow(replica, connection);
+			}
+		}
+		return get();
+	}
+
+	/**
+	 * Releases the connection to the provider it came from
+	 */
+	public void release(Connection connection) throws SQLException {
+		Borrowed borrowedConnection = borrowed.get(connection);
+		if (borrowedConnection == null) {
+			return;
+		}
+		borrowed.computeIfPresent(connection, RETURN);
+		borrowedConnection.target.outstanding.decrementAndGet();
+		JdbcCanBeNice.releaseConnection(borrowedConnection.target.provider,
+				connection);
+	}
+
+	/**
+	 * @return the number of connections handed out for the primary
+	 */
+	public long getRoutedToPrimary() {
+		return primary.routed.get();
+	}
+
+	/**
+	 * @param replica
+	 *            the replica's index, in the order they were given
+	 * @return the number of connections handed out for the replica
+	 */
+	public long getRoutedToReplica(int replica) {
+		return replicas[replica].routed.get();
+	}
+
+	/**
+	 * @param replica
+	 *            the replica's index, in the order they were given
+	 * @return the number of the replica's connections not released yet
+	 */
+	public int getOutstanding(int replica) {
+		return replicas[replica].outstanding.get();
+	}
+
+	private Connection borrow(final Target target, Connection connection) {
+		target.outstanding.incrementAndGet();
+		target.routed.incrementAndGet();
+		borrowed.compute(connection,
+				new BiFunction<Connection, Borrowed, Borrowed>() {
+
+					public Borrowed apply(Connection connection,
+							Borrowed borrowed) {
+						return new Borrowed(target, borrowed == null ? 1
+								: borrowed.count + 1);
+					}
+				});
+		return connection;
+	}
+
+	/**
+	 * @return the replica's connection, or null if it failed to give one or
+	 *         lags too much
+	 */
+	private Connection tryGet(Target replica, long now) {
+		Connection connection;
+		try {
+			connection = replica.provider.get();
+		} catch (SQLException e) {
+			replica.downUntil = now + failureBackoffMillis;
+			return null;
+		} catch (RuntimeException e) {
+			replica.downUntil = now + failureBackoffMillis;
+			return null;
+		}
+		boolean lagging = replica.lagging;
+		long nextLagCheck = replica.nextLagCheck.get();
+		if (lagQuery != null
+				&& now >= nextLagCheck
+				&& replica.nextLagCheck.compareAndSet(nextLagCheck, now
+						+ lagCheckIntervalMillis)) {
+			lagging = lags(connection);
+			replica.lagging = lagging;
+		}
+		if (lagging) {
+			try {
+				JdbcCanBeNice.releaseConnection(replica.provider, connection);
+			} catch (SQLException e) {
+			}
+			return null;
+		}
+		return connection;
+	}
+
+	private boolean lags(Connection connection) {
+		try {
+			Number lag = lagQuery.doWithConnection(connection);
+			return lag == null || lag.longValue() > maxLagMillis;
+		} catch (SQLException e) {
+			return true;
+		} catch (RuntimeException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * A replica is available unless it failed recently or lagged at its last
+	 * check (in which case it is available again once the next check is due)
+	 */
+	private boolean isAvailable(Target replica, long now) {
+		return now >= replica.downUntil
+				&& (!replica.lagging || now >= replica.nextLagCheck.get());
+	}
+
+	private Target leastOutstanding(long now) {
+		int start = (int) (turn.getAndIncrement() % replicas.length);
+		Target res = null;
+		for (int i = 0; i < replicas.length; i++) {
+			Target candidate = replicas[(start + i) % replicas.length];
+			if (isAvailable(candidate, now)
+					&& (res == null || (long) candidate.outstanding.get()
+							* res.weight < (long) res.outstanding.get()
+							* candidate.weight)) {
+				res = candidate;
+			}
+		}
+		return res;
+	}
+
+	private Target nextInTurn(long now) {
+		int[] schedule = this.schedule;
+		long start = turn.getAndIncrement();
+		for (int i = 0; i < schedule.length; i++) {
+			Target candidate = replicas[schedule[(int) ((start + i) % schedule.length)]];
+			if (isAvailable(candidate, now)) {
+				return candidate;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Lays out a smooth weighted round robin : every replica appears as many
+	 * times as its weight, spread instead of grouped
+	 */
+	private static int[] schedule(Target[] replicas) {
+		int total = 0;
+		for (Target replica : replicas) {
+			total += replica.weight;
+		}
+		int[] schedule = new int[total];
+		int[] current = new int[replicas.length];
+		for (int slot = 0; slot < total; slot++) {
+			int best = 0;
+			for (int i = 0; i < replicas.length; i++) {
+				current[i] += replicas[i].weight;
+				if (current[i] > current[best]) {
+					best = i;
+				}
+			}
+			current[best] -= total;
+			schedule[slot] = best;
+		}
+		return schedule;
+	}
+
+	@Override
+	public String toString() {
+		return "routing {" + primary.provider + ", " + replicas.length
+				+ " replicas}";
+	}
+}
@@ -0,0 +1,39 @@
+/**
+ * 
+ */
+package org.nothing;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Processes the rows of a result set one at a time, as they are fetched, for
+ * example to write them to a file :
+ * 
+ * <pre>
+ * <code>
+ * class CsvExporter implements RowCallback {
+ * 		public void processRow(ResultSet resultSet, int row) throws SQLException {
+ * 			writer.println(resultSet.getLong("id") + ";" + resultSet.getString("name"));
+ * 		}
+ * 	}
+ * </code>
+ * </pre>
+ * 
+ * See {@link JdbcCanBeNice#sqlQueryForEach(String, RowCallback, Object...)}
+ * 
+ * @author Jawher
+ * 
+ */
+public interface RowCallback {
+	/**
+	 * Processes a row in a result set
+	 * 
+	 * @param resultSet
+	 *            a resultset positioned on the row to process
+	 * @param row
+	 *            the current row index of the resultset (starts from 0)
+	 * @throws SQLException
+	 */
+	void processRow(ResultSet resultSet, int row) throws SQLException;
+}
@@ -0,0 +1,87 @@
+package org.nothing;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of the statements prepared on the connections used by
+ * {@link JdbcCanBeNice#doWithConnectionAsync(JdbcAction, ConnectionProvider, java.util.concurrent.Executor)}
+ * , so that cancelling the returned future can cancel the statement being
+ * executed. The tracking is bound to the thread running the action, so
+ * nothing outlives the action and connections that aren't tracked cost a
+ * thread local lookup.
+ * 
+ * @author Jawher
+ * 
+ */
+final class RunningStatements {
+	private static final ThreadLocal<RunningStatements> TRACKED = new ThreadLocal<RunningStatements>();
+
+	private final Connection connection;
+	private final Set<Statement> statements = ConcurrentHashMap.newKeySet();
+	private volatile boolean cancelled;
+
+	private RunningStatements(Connection connection) {
+		this.connection = connection;
+	}
+
+	/**
+	 * Starts tracking the statements prepared on a connection by the current
+	 * thread, until {@link #untrack(Connection)} is called
+	 */
+	static RunningStatements track(Connection connection) {
+		RunningStatements running = new RunningStatements(connection);
+		TRACKED.set(running);
+		return running;
+	}
+
+	static void untrack(Connection connection) {
+		TRACKED.remove();
+	}
+
+	/**
+	 * Registers a statement that was just prepared on a connection
+	 * 
+	 * @throws SQLException
+	 *             if the tracking was cancelled, so that the action stops
+	 *             before executing anything else
+	 */
+	static void started(Connection connection, Statement statement)
+			throws SQLException {
+		RunningStatements running = TRACKED.get();
+		if (running != null && running.connection == connection) {
+			if (running.cancelled) {
+				throw new SQLException("The action was cancelled");
+			}
+			running.statements.add(statement);
+		}
+	}
+
+	/**
+	 * Unregisters a statement that is being closed (or handed back to the
+	 * cache)
+	 */
+	static void finished(Connection connection, Statement statement) {
+		RunningStatements running = TRACKED.get();
+		if (running != null && running.connection == connection) {
+			running.statements.remove(statement);
+		}
+	}
+
+	/**
+	 * Cancels the registered statements, and makes the next ones fail
+	 */
+	void cancel() {
+		cancelled = true;
+		for (Statement statement : statements) {
+			try {
+				statement.cancel();
+			} catch (SQLException e) {
+
+			}
+		}
+	}
+}
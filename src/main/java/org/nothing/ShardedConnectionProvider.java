@@ -0,0 +1,190 @@
+package org.nothing;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Maps a shard key (a customer id for example) to the provider of the
+ * database holding that key's rows, so that the actions touching a single
+ * shard go straight to it :
+ * 
+ * <pre>
+ * <code>ShardedConnectionProvider shards = shardedConnectionProvider(shard0,
+ * 		shard1, shard2);
+ * doWithConnection(sqlQuery("select * from orders where customer_id = ?",
+ * 		orderMapper, customerId), shards.forKey(customerId));</code>
+ * </pre>
+ * 
+ * while {@link JdbcCanBeNice#doScatterQuery(ShardedConnectionProvider, String, RowMapper, Object...)}
+ * queries all of them at once.
+ * 
+ * Keys are mapped either through a consistent hash ring, on which every shard
+ * owns several virtual nodes, so that adding a shard (at the end of the list)
+ * only moves about 1/n of the keys, or through ranges of numeric keys.
+ * Integral numbers are hashed by value, so that <code>42</code> and
+ * <code>42L</code> go to the same shard.
+ * 
+ * @author Jawher
+ * 
+ */
+public class ShardedConnectionProvider {
+	private final List<ConnectionProvider> shards;
+	/**
+	 * The sorted hash ring positions, or the sorted lower bounds of the
+	 * ranges
+	 */
+	private final long[] points;
+	/**
+	 * The shard owning each point
+	 */
+	private final int[] owners;
+	private final boolean ranges;
+
+	private ShardedConnectionProvider(ConnectionProvider[] shards,
+			long[] points, int[] owners, boolean ranges) {
+		if (shards.length == 0) {
+			throw new IllegalArgumentException("No shards");
+		}
+		this.shards = Collections.unmodifiableList(Arrays.asList(shards
+				.clone()));
+		this.points = points;
+		this.owners = owners;
+		this.ranges = ranges;
+	}
+
+	/**
+	 * @param virtualNodes
+	 *            the number of positions of every shard on the hash ring. The
+	 *            more, the more evenly spread the keys.
+	 * @param shards
+	 *            the shards' providers
+	 * @return a provider mapping the keys to the shards through a consistent
+	 *         hash ring
+	 */
+	static ShardedConnectionProvider consistentHash(int virtualNodes,
+			ConnectionProvider... shards) {
+		if (virtualNodes < 1) {
+			throw new IllegalArgumentException("virtualNodes must be >= 1");
+		}
+		long[] ring = new long[shards.length * virtualNodes];
+		for (int shard = 0; shard < shards.length; shard++) {
+			for (int node = 0; node < virtualNodes; node++) {
+				// the position in the high bits, the owner in the low ones
+				ring[shard * virtualNodes + node] = ((long) mix((long) shard << 32
+						| node) << 32)
+						| shard;
+			}
+		}
+		Arrays.sort(ring);
+		long[] points = new long[ring.length];
+		int[] owners = new int[ring.length];
+		for (int i = 0; i < ring.length; i++) {
+			points[i] = ring[i] >> 32;
+			owners[i] = (int) ring[i];
+		}
+		return new ShardedConnectionProvider(shards, points, owners, false);
+	}
+
+	/**
+	 * @param lowerBounds
+	 *            the smallest key of every shard, in increasing order : shard
+	 *            <code>i</code> holds the keys from
+	 *            <code>lowerBounds[i]</code> included to
+	 *            <code>lowerBounds[i + 1]</code> excluded
+	 * @param shards
+	 *            the shards' providers
+	 * @return a provider mapping numeric keys to the shards by range
+	 */
+	static ShardedConnectionProvider ranges(long[] lowerBounds,
+			ConnectionProvider... shards) {
+		if (lowerBounds.length != shards.length) {
+			throw new IllegalArgumentException("Expected " + shards.length
+					+ " lower bounds, got " + lowerBounds.length);
+		}
+		int[] owners = new int[shards.length];
+		for (int i = 0; i < shards.length; i++) {
+			if (i > 0 && lowerBounds[i] <= lowerBounds[i - 1]) {
+				throw new IllegalArgumentException(
+						"The lower bounds must be increasing");
+			}
+			owners[i] = i;
+		}
+		return new ShardedConnectionProvider(shards, lowerBounds.clone(),
+				owners, true);
+	}
+
+	/**
+	 * @return the index of the shard holding the key
+	 * @throws IllegalArgumentException
+	 *             if the shards are ranges and the key isn't a number or is
+	 *             below the first range
+	 */
+	public int shardOf(Object key) {
+		if (ranges) {
+			if (!(key instanceof Number)) {
+				throw new IllegalArgumentException("Range sharded keys must be numbers, got "
+						+ key);
+			}
+			long value = ((Number) key).longValue();
+			int i = Arrays.binarySearch(points, value);
+			if (i < 0) {
+				i = -i - 2;
+				if (i < 0) {
+					throw new IllegalArgumentException("The key " + key
+							+ " is below the first shard's range");
+				}
+			}
+			return owners[i];
+		}
+		int i = Arrays.binarySearch(points, (long) mix(hash(key)));
+		if (i < 0) {
+			i = -i - 1;
+			if (i == points.length) {
+				// wraps around the ring
+				i = 0;
+			}
+		}
+		return owners[i];
+	}
+
+	/**
+	 * @return the provider of the shard holding the key
+	 */
+	public ConnectionProvider forKey(Object key) {
+		return shards.get(shardOf(key));
+	}
+
+	/**
+	 * @return the shards' providers, in the order they were given
+	 */
+	public List<ConnectionProvider> getShards() {
+		return shards;
+	}
+
+	private static long hash(Object key) {
+		if (key instanceof Long || key instanceof Integer
+				|| key instanceof Short || key instanceof Byte) {
+			return ((Number) key).longValue();
+		}
+		return key.hashCode();
+	}
+
+	/**
+	 * The 64 bits finalizer of MurmurHash3, folded to 32 bits
+	 */
+	private static int mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return (int) h;
+	}
+
+	@Override
+	public String toString() {
+		return (ranges ? "range" : "hash") + " sharded {" + shards.size()
+				+ " shards}";
+	}
+}
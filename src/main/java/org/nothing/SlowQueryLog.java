@@ -0,0 +1,19 @@
+package org.nothing;
+
+/**
+ * Where a {@link JdbcTracer} reports the traced actions that were slower
+ * than its threshold
+ * 
+ * @author Jawher
+ * 
+ */
+public interface SlowQueryLog {
+	/**
+	 * Called, by the thread that ran it, once a slow action finished
+	 * 
+	 * @param root
+	 *            the span of the traced action, whose descendants are the
+	 *            transactions and statements it ran
+	 */
+	void slowAction(Span root);
+}
@@ -0,0 +1,139 @@
+package org.nothing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A timed step of a traced action (see {@link JdbcTracer}) : a transaction,
+ * a statement, or one of a statement's phases (prepare, execute, fetch).
+ * Spans form a tree, the root being the traced action.
+ * 
+ * @author Jawher
+ * 
+ */
+public final class Span {
+	private final String name;
+	private final Span parent;
+	private final long startNanos;
+	private long endNanos = -1;
+	private int params = -1;
+	private long rows = -1;
+	private List<Span> children;
+
+	Span(String name, Span parent) {
+		this.name = name;
+		this.parent = parent;
+		this.startNanos = System.nanoTime();
+		if (parent != null) {
+			if (parent.children == null) {
+				parent.children = new ArrayList<Span>(4);
+			}
+			parent.children.add(this);
+		}
+	}
+
+	void finish() {
+		if (endNanos < 0) {
+			endNanos = System.nanoTime();
+		}
+	}
+
+	void setParams(int params) {
+		this.params = params;
+	}
+
+	void setRows(long rows) {
+		this.rows = rows;
+	}
+
+	Span getParent() {
+		return parent;
+	}
+
+	/**
+	 * @return the sql of statements, <code>tx</code> for transactions, the
+	 *         phase for phases (<code>prepare</code>, <code>execute</code> or
+	 *         <code>fetch</code>)
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return how long the step took, or has been running if it isn't
+	 *         finished
+	 */
+	public long getDurationNanos() {
+		return (endNanos < 0 ? System.nanoTime() : endNanos) - startNanos;
+	}
+
+	/**
+	 * @return whether the step finished. The steps interrupted by an
+	 *         exception don't.
+	 */
+	public boolean isFinished() {
+		return endNanos >= 0;
+	}
+
+	/**
+	 * @return the number of parameters of a statement, -1 for the other
+	 *         steps
+	 */
+	public int getParams() {
+		return params;
+	}
+
+	/**
+	 * @return the number of rows a statement fetched or updated, -1 if
+	 *         unknown
+	 */
+	public long getRows() {
+		return rows;
+	}
+
+	public List<Span> getChildren() {
+		return children == null ? Collections.<Span> emptyList()
+				: Collections.unmodifiableList(children);
+	}
+
+	/**
+	 * @return the span and its descendants, one per line, indented by depth
+	 */
+	public String toTreeString() {
+		StringBuilder res = new StringBuilder();
+		appendTo(res, 0);
+		return res.toString();
+	}
+
+	private void appendTo(StringBuilder res, int depth) {
+		for (int i = 0; i < depth; i++) {
+			res.append("  ");
+		}
+		res.append(this);
+		if (children != null) {
+			for (Span child : children) {
+				res.append('\n');
+				child.appendTo(res, depth + 1);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder res = new StringBuilder(name).append(' ').append(
+				String.format("%.3fms", (double) getDurationNanos()
+						/ TimeUnit.MILLISECONDS.toNanos(1)));
+		if (params >= 0) {
+			res.append(" params=").append(params);
+		}
+		if (rows >= 0) {
+			res.append(" rows=").append(rows);
+		}
+		if (!isFinished()) {
+			res.append(" (unfinished)");
+		}
+		return res.toString();
+	}
+}
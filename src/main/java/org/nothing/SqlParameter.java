@@ -0,0 +1,79 @@
+package org.nothing;
+
+import java.sql.Types;
+
+/**
+ * A query parameter with an explicit SQL type (one of the {@link Types}
+ * constants), bound with {@link java.sql.PreparedStatement#setNull(int, int)}
+ * when its value is null and
+ * {@link java.sql.PreparedStatement#setObject(int, Object, int)} otherwise.
+ * It can be passed among the params of any of the factory methods, typically
+ * for nulls, which drivers can't otherwise type :
+ * 
+ * <pre>
+ * <code>doWithConnection(sqlUpdate("update person set birth_date=? where id=?",
+ * 		SqlParameter.nullOf(Types.DATE), 8), connectionProvider);</code>
+ * </pre>
+ * 
+ * @author Jawher
+ * 
+ */
+public final class SqlParameter {
+	private final Object value;
+	private final int sqlType;
+
+	private SqlParameter(Object value, int sqlType) {
+		this.value = value;
+		this.sqlType = sqlType;
+	}
+
+	/**
+	 * @param value
+	 *            the parameter's value, possibly null
+	 * @param sqlType
+	 *            the parameter's SQL type, one of the {@link Types} constants
+	 * @return a typed parameter
+	 */
+	public static SqlParameter of(Object value, int sqlType) {
+		return new SqlParameter(value, sqlType);
+	}
+
+	/**
+	 * @param sqlType
+	 *            the parameter's SQL type, one of the {@link Types} constants
+	 * @return a typed null parameter
+	 */
+	public static SqlParameter nullOf(int sqlType) {
+		return new SqlParameter(null, sqlType);
+	}
+
+	public Object getValue() {
+		return value;
+	}
+
+	public int getSqlType() {
+		return sqlType;
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * sqlType + (value == null ? 0 : value.hashCode());
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof SqlParameter))
+			return false;
+		SqlParameter other = (SqlParameter) obj;
+		return sqlType == other.sqlType
+				&& (value == null ? other.value == null : value
+						.equals(other.value));
+	}
+
+	@Override
+	public String toString() {
+		return value + " (type " + sqlType + ")";
+	}
+}
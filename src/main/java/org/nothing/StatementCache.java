@@ -0,0 +1,249 @@
+package org.nothing;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, least recently used cache of the {@link PreparedStatement}s of a
+ * connection, keyed by their sql (and generated keys mode).
+ * 
+ * A cache is attached to a connection by wrapping it (see
+ * {@link #attach(Connection, int)}, {@link PoolConfig#statementCacheSize(int)}
+ * or
+ * {@link JdbcCanBeNice#statementCachingConnectionProvider(ConnectionProvider, int)}
+ * ) : the actions created by {@link JdbcCanBeNice}'s factory methods run with
+ * the wrapping connection take their statements from the cache and put them
+ * back instead of closing them. The cache lives as long as the wrapping
+ * connection, and closing the latter closes the cached statements.
+ * 
+ * A cached statement is removed from the cache while it is in use, so that
+ * nested or concurrent usages of the same sql on the same connection each get
+ * their own statement.
+ * 
+ * @author Jawher
+ * 
+ */
+public class StatementCache {
+	/**
+	 * Implemented by the wrapping connections
+	 */
+	interface CachingConnection {
+		StatementCache statementCache();
+
+		Connection wrappedConnection();
+	}
+
+	/**
+	 * Forwards the calls to the wrapped connection, closing the cache along
+	 * with the connection
+	 */
+	private static final class Handler implements InvocationHandler {
+		private final StatementCache cache;
+
+		public Handler(StatementCache cache) {
+			this.cache = cache;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args)
+				throws Throwable {
+			String name = method.getName();
+			if (method.getDeclaringClass() == CachingConnection.class) {
+				return name.equals("statementCache") ? cache
+						: cache.connection;
+			} else if (name.equals("equals") && args.length == 1) {
+				return proxy == args[0];
+			} else if (name.equals("hashCode") && args == null) {
+				return System.identityHashCode(proxy);
+			} else if (name.equals("toString") && args == null) {
+				return "cached statements {" + cache.connection + "}";
+			} else if (name.equals("close") && args == null) {
+				cache.close();
+			}
+			try {
+				return method.invoke(cache.connection, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+	}
+
+	private final Connection connection;
+	private final int maxSize;
+	private final LinkedHashMap<StatementKey, PreparedStatement> statements = new LinkedHashMap<StatementKey, PreparedStatement>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private boolean closed;
+
+	private StatementCache(Connection connection, int maxSize) {
+		this.connection = connection;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Attaches a statement cache to a connection by wrapping it. Connections
+	 * that already have an open cache are returned as is.
+	 * 
+	 * @param connection
+	 * @param maxSize
+	 *            the maximum number of statements kept open
+	 * @return the connection to use in place of the given one, with a
+	 *         statement cache (see {@link #forConnection(Connection)})
+	 */
+	public static Connection attach(Connection connection, int maxSize) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("maxSize must be >= 1");
+		}
+		if (forConnection(connection) != null) {
+			return connection;
+		}
+		return (Connection) Proxy.newProxyInstance(StatementCache.class
+				.getClassLoader(), new Class<?>[] { Connection.class,
+				CachingConnection.class }, new Handler(new StatementCache(
+				unwrap(connection), maxSize)));
+	}
+
+	/**
+	 * @param connection
+	 * @return the statement cache of a connection returned by
+	 *         {@link #attach(Connection, int)}, or <code>null</code> if it
+	 *         has none or if it was closed
+	 */
+	public static StatementCache forConnection(Connection connection) {
+		if (connection instanceof CachingConnection) {
+			StatementCache cache = ((CachingConnection) connection)
+					.statementCache();
+			return cache.isClosed() ? null : cache;
+		}
+		return null;
+	}
+
+	/**
+	 * @return the connection wrapped by {@link #attach(Connection, int)}, or
+	 *         the connection itself if it isn't a wrapping one
+	 */
+	static Connection unwrap(Connection connection) {
+		if (connection instanceof CachingConnection) {
+			return ((CachingConnection) connection).wrappedConnection();
+		}
+		return connection;
+	}
+
+	/**
+	 * Takes the statement matching the key out of the cache, or creates a new
+	 * one if none is cached.
+	 */
+	PreparedStatement prepare(StatementKey key) throws SQLException {
+		PreparedStatement ps;
+		synchronized (this) {
+			ps = statements.remove(key);
+		}
+		if (ps != null) {
+			hits.incrementAndGet();
+			return ps;
+		}
+		misses.incrementAndGet();
+		return key.prepare(connection);
+	}
+
+	/**
+	 * Puts a statement obtained via {@link #prepare(StatementKey)} back into
+	 * the cache, evicting (and closing) the least recently used statement if
+	 * the cache is full.
+	 */
+	void release(StatementKey key, PreparedStatement ps) {
+		PreparedStatement toClose = null;
+		synchronized (this) {
+			if (closed || statements.containsKey(key)) {
+				toClose = ps;
+			} else {
+				statements.put(key, ps);
+				if (statements.size() > maxSize) {
+					Iterator<PreparedStatement> eldest = statements.values()
+							.iterator();
+					toClose = eldest.next();
+					eldest.remove();
+					evictions.incrementAndGet();
+				}
+			}
+		}
+		if (toClose != null) {
+			try {
+				toClose.close();
+			} catch (SQLException e1) {
+			}
+		}
+	}
+
+	/**
+	 * Closes all the cached statements. The wrapping connection then
+	 * prepares a new statement every time.
+	 */
+	public void close() {
+		List<PreparedStatement> toClose;
+		synchronized (this) {
+			closed = true;
+			toClose = new ArrayList<PreparedStatement>(statements.values());
+			statements.clear();
+		}
+		for (PreparedStatement ps : toClose) {
+			try {
+				ps.close();
+			} catch (SQLException e1) {
+			}
+		}
+	}
+
+	synchronized boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * @return the number of times a cached statement was reused
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of times a statement had to be prepared
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return the number of statements closed to make room for newer ones
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * @return the number of statements currently cached
+	 */
+	public synchronized int size() {
+		return statements.size();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	@Override
+	public String toString() {
+		return "StatementCache [size=" + size() + ", maxSize=" + maxSize
+				+ ", hits=" + hits + ", misses=" + misses + ", evictions="
+				+ evictions + "]";
+	}
+}
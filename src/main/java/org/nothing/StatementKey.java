@@ -0,0 +1,103 @@
+package org.nothing;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Identifies a prepared statement : its sql and the options it was created
+ * with. Used as the key of the {@link StatementCache}.
+ * 
+ * @author Jawher
+ * 
+ */
+final class StatementKey {
+	private final String sql;
+	private final int autoGeneratedKeys;
+	private final QueryOptions options;
+	private final int hashCode;
+
+	/**
+	 * @param options
+	 *            the query options, or null for the driver defaults. They
+	 *            must not be modified afterwards, and shouldn't have an
+	 *            expected rows hint, which isn't part of the key.
+	 */
+	StatementKey(String sql, int autoGeneratedKeys, QueryOptions options) {
+		this.sql = sql;
+		this.autoGeneratedKeys = autoGeneratedKeys;
+		this.options = options;
+		this.hashCode = 31 * (31 * sql.hashCode() + autoGeneratedKeys)
+				+ (options == null ? 0 : options.hashCode());
+	}
+
+	static StatementKey of(String sql) {
+		return new StatementKey(sql, Statement.NO_GENERATED_KEYS, null);
+	}
+
+	static StatementKey of(String sql, QueryOptions options) {
+		return new StatementKey(sql, Statement.NO_GENERATED_KEYS,
+				options == null ? null : options.statementCopy());
+	}
+
+	static StatementKey returningKeys(String sql) {
+		return new StatementKey(sql, Statement.RETURN_GENERATED_KEYS, null);
+	}
+
+	/**
+	 * Creates a brand new (uncached) statement matching this key. The query
+	 * options are part of the key, so they are applied once and for all here.
+	 */
+	PreparedStatement prepare(Connection connection) throws SQLException {
+		if (autoGeneratedKeys == Statement.RETURN_GENERATED_KEYS) {
+			return connection.prepareStatement(sql,
+					Statement.RETURN_GENERATED_KEYS);
+		}
+		if (options == null) {
+			return connection.prepareStatement(sql);
+		}
+		PreparedStatement ps = options.hasDefaultResultSetTypeAndConcurrency() ? connection
+				.prepareStatement(sql)
+				: connection.prepareStatement(sql, options.getResultSetType(),
+						options.getResultSetConcurrency());
+		try {
+			options.applyTo(ps);
+		} catch (SQLException e) {
+			try {
+				ps.close();
+			} catch (SQLException e1) {
+			}
+			throw e;
+		}
+		return ps;
+	}
+
+	String getSql() {
+		return sql;
+	}
+
+	@Override
+	public int hashCode() {
+		return hashCode;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof StatementKey))
+			return false;
+		StatementKey other = (StatementKey) obj;
+		return autoGeneratedKeys == other.autoGeneratedKeys
+				&& sql.equals(other.sql)
+				&& (options == null ? other.options == null : options
+						.equals(other.options));
+	}
+
+	@Override
+	public String toString() {
+		return autoGeneratedKeys == Statement.RETURN_GENERATED_KEYS ? sql
+				+ " -> key" : sql;
+	}
+}
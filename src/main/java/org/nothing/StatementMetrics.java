@@ -0,0 +1,81 @@
+package org.nothing;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The metrics of the actions sharing a key (their sql) in a
+ * {@link JdbcMetrics} registry : their latency, the number of rows they
+ * returned or updated and the number of them that failed.
+ * 
+ * @author Jawher
+ * 
+ */
+public final class StatementMetrics {
+	private final String key;
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final LongAdder rows = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+
+	StatementMetrics(String key) {
+		this.key = key;
+	}
+
+	void record(long nanos, long rowCount, boolean failed) {
+		latency.record(nanos);
+		if (rowCount > 0) {
+			rows.add(rowCount);
+		}
+		if (failed) {
+			errors.increment();
+		}
+	}
+
+	/**
+	 * @return the key of the actions, as returned by their
+	 *         <code>toString()</code> method
+	 */
+	public String getKey() {
+		return key;
+	}
+
+	/**
+	 * @return the latency of the actions, which also counts them
+	 */
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	/**
+	 * @return the number of times the actions ran
+	 */
+	public long getCount() {
+		return latency.getCount();
+	}
+
+	/**
+	 * @return the number of rows returned by the queries or updated by the
+	 *         updates
+	 */
+	public long getRows() {
+		return rows.sum();
+	}
+
+	/**
+	 * @return the number of times the actions failed
+	 */
+	public long getErrors() {
+		return errors.sum();
+	}
+
+	void reset() {
+		latency.reset();
+		rows.reset();
+		errors.reset();
+	}
+
+	@Override
+	public String toString() {
+		return key + " : " + latency + ", rows=" + getRows() + ", errors="
+				+ getErrors();
+	}
+}
@@ -0,0 +1,201 @@
+package org.nothing;
+
+import java.lang.ref.WeakReference;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Gives every thread its own connection, opened lazily with another
+ * {@link ConnectionProvider} the first time the thread asks for one and then
+ * handed back to that thread only. Unlike
+ * {@link JdbcCanBeNice#cachingConnectionProvider(ConnectionProvider)}, no
+ * connection is ever shared between threads, and getting the connection
+ * already opened for the current thread takes no lock : it is a thread local
+ * lookup.
+ * 
+ * At most <code>maxConnections</code> connections are open at a time. When
+ * the cap is reached, the connections of the threads that died are closed
+ * before giving up. Note that every virtual thread counts as a thread, so
+ * this provider fits long lived (platform or virtual) worker threads, not a
+ * thread per task : use a {@link PooledConnectionProvider} for those.
+ * 
+ * Call {@link #closeCurrent()} when a thread is done with the database (or
+ * its connection broke) and {@link #close()} at shutdown.
+ * 
+ * @author Jawher
+ * 
+ */
+public class ThreadAffineConnectionProvider implements ConnectionProvider {
+	/**
+	 * A thread's connection
+	 */
+	private static final class Slot {
+		private final WeakReference<Thread> owner;
+		private final Connection connection;
+		private volatile boolean closed;
+
+		public Slot(Thread owner, Connection connection) {
+			this.owner = new WeakReference<Thread>(owner);
+			this.connection = connection;
+		}
+
+		boolean isOwnerDead() {
+			Thread thread = owner.get();
+			return thread == null || !thread.isAlive();
+		}
+	}
+
+	private final ConnectionProvider connectionProvider;
+	private final int maxConnections;
+	private final ThreadLocal<Slot> current = new ThreadLocal<Slot>();
+	private final Queue<Slot> slots = new ConcurrentLinkedQueue<Slot>();
+	private final AtomicInteger openCount = new AtomicInteger();
+	private volatile boolean closed;
+
+	/**
+	 * @param connectionProvider
+	 *            the provider used to open the connections
+	 * @param maxConnections
+	 *            the maximum number of connections open at a time
+	 */
+	public ThreadAffineConnectionProvider(
+			ConnectionProvider connectionProvider, int maxConnections) {
+		if (maxConnections < 1) {
+			throw new IllegalArgumentException("maxConnections must be >= 1");
+		}
+		this.connectionProvider = connectionProvider;
+		this.maxConnections = maxConnections;
+	}
+
+	/**
+	 * @return the current thread's connection, opened if needed
+	 * @throws SQLException
+	 *             if the provider is closed, if the connection couldn't be
+	 *             opened or if <code>maxConnections</code> connections are
+	 *             already open by live threads
+	 */
+	public Connection get() throws SQLException {
+		Slot slot = current.get();
+		if (slot != null && !slot.closed) {
+			return slot.connection;
+		}
+		return open();
+	}
+
+	/**
+	 * Closes the current thread's connection, if any. The thread gets a new
+	 * one the next time it calls {@link #get()}.
+	 */
+	public void closeCurrent() {
+		Slot slot = current.get();
+		current.remove();
+		if (slot != null) {
+			discard(slot);
+		}
+	}
+
+	/**
+	 * Closes the connections of the threads that died
+	 * 
+	 * @return the number of closed connections
+	 */
+	public int reclaimDeadThreads() {
+		int reclaimed = 0;
+		Iterator<Slot> it = slots.iterator();
+		while (it.hasNext()) {
+			Slot slot = it.next();
+			if (slot.isOwnerDead() && discard(slot)) {
+				reclaimed++;
+			}
+		}
+		return reclaimed;
+	}
+
+	/**
+	 * Closes all the connections (including those of the live threads, which
+	 * must no longer be using them) and refuses to open new ones
+	 */
+	public void close() {
+		closed = true;
+		Slot slot;
+		while ((slot = slots.peek()) != null) {
+			discard(slot);
+		}
+	}
+
+	/**
+	 * @return the number of open connections
+	 */
+	public int getOpenCount() {
+		return openCount.get();
+	}
+
+	private Connection open() throws SQLException {
+		if (closed) {
+			throw new SQLException("The connection provider is closed");
+		}
+		reserve();
+		Connection connection;
+		try {
+			connection = connectionProvider.get();
+		} catch (SQLException e) {
+			openCount.decrementAndGet();
+			throw e;
+		} catch (RuntimeException e) {
+			openCount.decrementAndGet();
+			throw e;
+		}
+		Slot slot = new Slot(Thread.currentThread(), connection);
+		slots.offer(slot);
+		current.set(slot);
+		if (closed) {
+			closeCurrent();
+			throw new SQLException("The connection provider is closed");
+		}
+		return connection;
+	}
+
+	private void reserve() throws SQLException {
+		boolean reclaimed = false;
+		while (true) {
+			int open = openCount.get();
+			if (open < maxConnections) {
+				if (openCount.compareAndSet(open, open + 1)) {
+					return;
+				}
+			} else if (!reclaimed) {
+				reclaimDeadThreads();
+				reclaimed = true;
+			} else {
+				throw new SQLException("All the " + maxConnections
+						+ " connections are taken by live threads");
+			}
+		}
+	}
+
+	/**
+	 * @return whether this call closed the slot's connection
+	 */
+	private boolean discard(Slot slot) {
+		if (!slots.remove(slot)) {
+			return false;
+		}
+		slot.closed = true;
+		openCount.decrementAndGet();
+		try {
+			slot.connection.close();
+		} catch (SQLException e) {
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "thread affine {" + connectionProvider + ", open="
+				+ openCount.get() + "}";
+	}
+}
@@ -0,0 +1,136 @@
+package org.nothing;
+
+/**
+ * The hooks through which {@link JdbcCanBeNice}'s actions report their steps
+ * to the {@link JdbcTracer} tracing the current thread, if any. When no
+ * tracer is active, every hook costs a thread local lookup.
+ * 
+ * @author Jawher
+ * 
+ */
+final class Tracing {
+	private static final ThreadLocal<Span> CURRENT = new ThreadLocal<Span>();
+	/**
+	 * The rows reported by the statements run under the innermost action
+	 * measured by a {@link JdbcMetrics}, -1 while none reported any
+	 */
+	private static final ThreadLocal<long[]> ROWS = new ThreadLocal<long[]>();
+
+	private Tracing() {
+	}
+
+	/**
+	 * Starts a span, child of the current one
+	 * 
+	 * @return the started span, or null if the thread isn't traced
+	 */
+	static Span begin(String name) {
+		Span parent = CURRENT.get();
+		if (parent == null) {
+			return null;
+		}
+		Span span = new Span(name, parent);
+		CURRENT.set(span);
+		return span;
+	}
+
+	/**
+	 * Starts the span of a statement
+	 * 
+	 * @return the started span, or null if the thread isn't traced
+	 */
+	static Span beginStatement(String sql, int params) {
+		Span span = begin(sql);
+		if (span != null) {
+			span.setParams(params);
+		}
+		return span;
+	}
+
+	/**
+	 * Ends a span, making its parent the current span again. Also makes it
+	 * the current span's parent when a child wasn't ended (because of an
+	 * exception), so that ending the enclosing spans in finally blocks is
+	 * enough to keep the tree consistent.
+	 */
+	static void end(Span span) {
+		if (span != null) {
+			span.finish();
+			CURRENT.set(span.getParent());
+		}
+	}
+
+	/**
+	 * Ends a span, recording the number of rows it fetched or updated
+	 */
+	static void end(Span span, long rows) {
+		if (span != null) {
+			span.setRows(rows);
+			end(span);
+		}
+	}
+
+	/**
+	 * Ends the span of a statement, recording the number of rows it fetched
+	 * or updated, and reports them to the enclosing row count, if any
+	 */
+	static void endStatement(Span span, long rows) {
+		long[] counter = ROWS.get();
+		if (counter != null && rows >= 0) {
+			counter[0] = counter[0] < 0 ? rows : counter[0] + rows;
+		}
+		end(span, rows);
+	}
+
+	/**
+	 * Starts counting the rows reported by the statements run by the current
+	 * thread
+	 * 
+	 * @return the enclosing count, to be handed to {@link #endRowCount(long[])}
+	 */
+	static long[] beginRowCount() {
+		long[] enclosing = ROWS.get();
+		ROWS.set(new long[] { -1 });
+		return enclosing;
+	}
+
+	/**
+	 * Stops counting rows, adding them to the enclosing count
+	 * 
+	 * @return the number of rows reported since
+	 *         {@link #beginRowCount()}, -1 if no statement reported any
+	 */
+	static long endRowCount(long[] enclosing) {
+		long rows = ROWS.get()[0];
+		if (enclosing == null) {
+			ROWS.remove();
+		} else {
+			if (rows >= 0) {
+				enclosing[0] = enclosing[0] < 0 ? rows : enclosing[0] + rows;
+			}
+			ROWS.set(enclosing);
+		}
+		return rows;
+	}
+
+	/**
+	 * Starts tracing the current thread
+	 */
+	static Span beginRoot(String name) {
+		Span span = new Span(name, null);
+		CURRENT.set(span);
+		return span;
+	}
+
+	static boolean isTracing() {
+		return CURRENT.get() != null;
+	}
+
+	/**
+	 * Stops tracing the current thread
+	 */
+	static void endRoot(Span root) {
+		root.finish();
+		CURRENT.remove();
+	}
+}
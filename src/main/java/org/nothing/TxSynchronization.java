@@ -0,0 +1,95 @@
+package org.nothing;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of the transactions started by
+ * {@link JdbcCanBeNice#sqlTx(JdbcAction)} on every connection, so that
+ * actions running inside them can register callbacks to run once the
+ * transaction is over, whether it was committed or rolled back. The transactions are tracked by the thread
+ * running them, so they must be joined from that thread, and nothing
+ * outlives them.
+ * 
+ * @author Jawher
+ * 
+ */
+final class TxSynchronization {
+	private static final ThreadLocal<Map<Connection, List<Runnable>>> ACTIVE = new ThreadLocal<Map<Connection, List<Runnable>>>();
+
+	private TxSynchronization() {
+	}
+
+	/**
+	 * Marks a transaction as active on a connection
+	 * 
+	 * @return true if the caller started the outermost transaction, and hence
+	 *         has to call {@link #end(Connection)}
+	 */
+	static boolean begin(Connection connection) {
+		Map<Connection, List<Runnable>> active = ACTIVE.get();
+		if (active == null) {
+			active = new IdentityHashMap<Connection, List<Runnable>>();
+			ACTIVE.set(active);
+		} else if (active.containsKey(connection)) {
+			return false;
+		}
+		active.put(connection, new ArrayList<Runnable>());
+		return true;
+	}
+
+	/**
+	 * @return whether a transaction is active on the connection
+	 */
+	static boolean isActive(Connection connection) {
+		return callbacks(connection) != null;
+	}
+
+	/**
+	 * Registers a callback to run after the current transaction of the
+	 * connection commits or rolls back. Does nothing if no transaction is
+	 * active.
+	 */
+	static void afterCompletion(Connection connection, Runnable callback) {
+		List<Runnable> callbacks = callbacks(connection);
+		if (callbacks != null) {
+			callbacks.add(callback);
+		}
+	}
+
+	/**
+	 * Runs (and forgets) the callbacks registered so far, to be called right
+	 * after a commit or a rollback
+	 */
+	static void completed(Connection connection) {
+		List<Runnable> callbacks = callbacks(connection);
+		if (callbacks != null && !callbacks.isEmpty()) {
+			List<Runnable> toRun = new ArrayList<Runnable>(callbacks);
+			callbacks.clear();
+			for (Runnable callback : toRun) {
+				callback.run();
+			}
+		}
+	}
+
+	/**
+	 * Marks the transaction started by {@link #begin(Connection)} as finished
+	 */
+	static void end(Connection connection) {
+		Map<Connection, List<Runnable>> active = ACTIVE.get();
+		if (active != null) {
+			active.remove(connection);
+			if (active.isEmpty()) {
+				ACTIVE.remove();
+			}
+		}
+	}
+
+	private static List<Runnable> callbacks(Connection connection) {
+		Map<Connection, List<Runnable>> active = ACTIVE.get();
+		return active == null ? null : active.get(connection);
+	}
+}
@@ -0,0 +1,352 @@
+package org.nothing;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Buffers updates submitted by many threads and writes them in groups : every
+ * flush executes the buffered updates as JDBC batches (consecutive updates
+ * with the same sql share a batch) in a single transaction, so that they
+ * share a commit instead of paying one each. A flush happens once
+ * maxBatchSize updates are buffered, or flushIntervalMillis after the
+ * previous one.
+ * 
+ * <pre>
+ * <code>WriteBehindWriter events = new WriteBehindWriter(pool, 500, 10, 10000);
+ * ...
+ * events.submit("insert into event(type, at) values(?, ?)", type, now);
+ * ...
+ * events.close();</code>
+ * </pre>
+ * 
+ * Each submission returns a future completed with the update count once the
+ * group's transaction commits. When a group fails, it is rolled back and its
+ * updates are written again one at a time, each in its own transaction, so
+ * that only the futures of the failing updates fail. At most maxPending
+ * updates can be buffered :
+ * {@link #submit(String, Object...)} then waits for room, and
+ * {@link #trySubmit(String, Object...)} fails right away.
+ * {@link #close()} stops accepting updates and writes the buffered ones.
+ * 
+ * @author Jawher
+ * 
+ */
+public class WriteBehindWriter implements Closeable {
+	private static final class PendingUpdate {
+		private final String sql;
+		private final Object[] params;
+		private final CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+
+		public PendingUpdate(String sql, Object[] params) {
+			this.sql = sql;
+			this.params = params;
+		}
+	}
+
+	private static final AtomicInteger WRITER_COUNT = new AtomicInteger();
+
+	private final ConnectionProvider connectionProvider;
+	private final int maxBatchSize;
+	private final long flushIntervalNanos;
+	private final Queue<PendingUpdate> queue = new ConcurrentLinkedQueue<PendingUpdate>();
+	private final AtomicInteger queued = new AtomicInteger();
+	private final Semaphore room;
+	private final Thread flusher;
+	private final AtomicLong flushes = new AtomicLong();
+	private final AtomicLong written = new AtomicLong();
+	private volatile boolean closed;
+
+	/**
+	 * Same as {@link #WriteBehindWriter(ConnectionProvider, int, long, int)}
+	 * with groups of at most 1000 updates, flushed at least every 10
+	 * milliseconds, and at most 10000 buffered updates
+	 */
+	public WriteBehindWriter(ConnectionProvider connectionProvider) {
+		this(connectionProvider, 1000, 10, 10000);
+	}
+
+	/**
+	 * Creates the writer and starts its flushing thread
+	 * 
+	 * @param connectionProvider
+	 *            provides the connection of every flush
+	 * @param maxBatchSize
+	 *            the maximum number of updates written per flush. A flush
+	 *            starts as soon as that many updates are buffered.
+	 * @param flushIntervalMillis
+	 *            the maximum time between two flushes, and hence how long an
+	 *            update can wait to be written when the writer isn't busy
+	 * @param maxPending
+	 *            the maximum number of buffered updates
+	 */
+	public WriteBehindWriter(ConnectionProvider connectionProvider,
+			int maxBatchSize, long flushIntervalMillis, int maxPending) {
+		if (maxBatchSize < 1) {
+			throw new IllegalArgumentException("maxBatchSize must be >= 1");
+		}
+		if (flushIntervalMillis < 1) {
+			throw new IllegalArgumentException(
+					"flushIntervalMillis must be >= 1");
+		}
+		if (maxPending < maxBatchSize) {
+			throw new IllegalArgumentException(
+					"maxPending must be >= maxBatchSize");
+		}
+		this.connectionProvider = connectionProvider;
+		this.maxBatchSize = maxBatchSize;
+		this.flushIntervalNanos = TimeUnit.MILLISECONDS
+				.toNanos(flushIntervalMillis);
+		this.room = new Semaphore(maxPending);
+		this.flusher = new Thread(new Runnable() {
+
+			public void run() {
+				flushLoop();
+			}
+		}, "jdbc-can-be-nice-write-behind-" + WRITER_COUNT.incrementAndGet());
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * Buffers an update, waiting for room if maxPending updates are already
+	 * buffered
+	 * 
+	 * @param sql
+	 *            the update, which can use the ? placeholders as with regular
+	 *            JDBC prepared statements
+	 * @param params
+	 *            the update's params
+	 * @return a future of the update count, completed once the update is
+	 *         committed
+	 * @throws IllegalStateException
+	 *             if the writer is closed
+	 */
+	public CompletableFuture<Integer> submit(String sql, Object... params) {
+		ensureOpen();
+		try {
+			room.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			CompletableFuture<Integer> failed = new CompletableFuture<Integer>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+		return enqueue(sql, params);
+	}
+
+	/**
+	 * Buffers an update if there is room for it
+	 * 
+	 * @return a future of the update count, completed once the update is
+	 *         committed, or null if maxPending updates are already buffered
+	 * @throws IllegalStateException
+	 *             if the writer is closed
+	 */
+	public CompletableFuture<Integer> trySubmit(String sql, Object... params) {
+		ensureOpen();
+		if (!room.tryAcquire()) {
+			return null;
+		}
+		return enqueue(sql, params);
+	}
+
+	private void ensureOpen() {
+		if (closed) {
+			throw new IllegalStateException("The writer is closed");
+		}
+	}
+
+	private CompletableFuture<Integer> enqueue(String sql, Object[] params) {
+		PendingUpdate update = new PendingUpdate(sql, params);
+		queue.add(update);
+		if (queued.incrementAndGet() == maxBatchSize) {
+			LockSupport.unpark(flusher);
+		}
+		if (closed && !flusher.isAlive()) {
+			// raced with close(), which may have drained the queue already
+			while (!update.future.isDone()) {
+				flush();
+			}
+		}
+		return update.future;
+	}
+
+	private void flushLoop() {
+		long nextFlush = System.nanoTime() + flushIntervalNanos;
+		while (!closed || queued.get() > 0) {
+			long wait = nextFlush - System.nanoTime();
+			if (!closed && wait > 0 && queued.get() < maxBatchSize) {
+				LockSupport.parkNanos(this, wait);
+				continue;
+			}
+			nextFlush = System.nanoTime() + flushIntervalNanos;
+			flush();
+		}
+	}
+
+	/**
+	 * Writes up to maxBatchSize buffered updates in a single transaction
+	 */
+	private void flush() {
+		final List<PendingUpdate> group = new ArrayList<PendingUpdate>(Math
+				.min(maxBatchSize, Math.max(queued.get(), 1)));
+		PendingUpdate update;
+		while (group.size() < maxBatchSize && (update = queue.poll()) != null) {
+			group.add(update);
+		}
+		if (group.isEmpty()) {
+			return;
+		}
+		queued.addAndGet(-group.size());
+		try {
+			int[] counts = write(group);
+			for (int i = 0; i < group.size(); i++) {
+				group.get(i).future.complete(counts[i]);
+			}
+		} catch (Throwable e) {
+			if (group.size() == 1) {
+				group.get(0).future.completeExceptionally(e);
+			} else {
+				// find the failing updates rather than fail their neighbours
+				for (PendingUpdate alone : group) {
+					try {
+						alone.future.complete(write(Collections
+								.singletonList(alone))[0]);
+					} catch (Throwable e1) {
+						alone.future.completeExceptionally(e1);
+					}
+				}
+			}
+		} finally {
+			room.release(group.size());
+		}
+	}
+
+	/**
+	 * Writes a group of updates in a single transaction, rolled back if any
+	 * of them fails
+	 * 
+	 * @return the update counts, in the group's order
+	 */
+	private int[] write(final List<PendingUpdate> group) {
+		int[] counts = JdbcCanBeNice.doWithConnection(JdbcCanBeNice
+				.sqlTx(new JdbcAction<int[]>() {
+
+					public int[] doWithConnection(Connection connection)
+							throws SQLException {
+						try {
+							return writeGroup(connection, group);
+						} catch (SQLException e) {
+							// sqlTx only rolls back on runtime exceptions
+							throw new RuntimeException(e);
+						}
+					}
+
+					@Override
+					public String toString() {
+						return "write behind " + group.size() + " updates";
+					}
+				}), connectionProvider);
+		flushes.incrementAndGet();
+		written.addAndGet(group.size());
+		return counts;
+	}
+
+	/**
+	 * Executes every run of consecutive updates with the same sql as a
+	 * batch
+	 * 
+	 * @return the update counts, in the group's order
+	 */
+	private static int[] writeGroup(Connection connection,
+			List<PendingUpdate> group) throws SQLException {
+		int[] counts = new int[group.size()];
+		int start = 0;
+		while (start < group.size()) {
+			String sql = group.get(start).sql;
+			int end = start + 1;
+			while (end < group.size() && group.get(end).sql.equals(sql)) {
+				end++;
+			}
+			List<Object[]> paramsList = new ArrayList<Object[]>(end - start);
+			for (int i = start; i < end; i++) {
+				paramsList.add(group.get(i).params);
+			}
+			int[] runCounts = JdbcCanBeNice.sqlBatchUpdate(sql, paramsList,
+					paramsList.size()).doWithConnection(connection);
+			System.arraycopy(runCounts, 0, counts, start, Math.min(
+					runCounts.length, end - start));
+			if (runCounts.length < end - start) {
+				Arrays.fill(counts, start + runCounts.length, end,
+						java.sql.Statement.SUCCESS_NO_INFO);
+			}
+			start = end;
+		}
+		return counts;
+	}
+
+	/**
+	 * @return the number of buffered updates
+	 */
+	public int getPendingCount() {
+		return queued.get();
+	}
+
+	/**
+	 * @return the number of committed groups
+	 */
+	public long getFlushCount() {
+		return flushes.get();
+	}
+
+	/**
+	 * @return the number of committed updates
+	 */
+	public long getWrittenCount() {
+		return written.get();
+	}
+
+	/**
+	 * Stops accepting updates, writes the buffered ones and stops the
+	 * flushing thread. The submissions racing with the closing may be
+	 * written or rejected.
+	 */
+	public void close() {
+		closed = true;
+		LockSupport.unpark(flusher);
+		boolean interrupted = false;
+		while (flusher.isAlive()) {
+			try {
+				flusher.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		// updates enqueued after the flusher's last check
+		while (queued.get() > 0) {
+			flush();
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "WriteBehindWriter [pending=" + queued.get() + ", flushes="
+				+ flushes.get() + ", written=" + written.get() + "]";
+	}
+}
@@ -6,12 +6,25 @@ import static org.nothing.JdbcCanBeNice.*;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Savepoint;
 import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import static org.mockito.Mockito.*;
 
 public class JdbcCanBeNiceTest {
@@ -20,6 +33,7 @@ public class JdbcCanBeNiceTest {
 		ConnectionProvider connectionProvider = mock(ConnectionProvider.class);
 		try {
 			Connection connection = mock(Connection.class);
+			when(connection.isValid(anyInt())).thenReturn(true);
 			when(connectionProvider.get()).thenReturn(connection);
 		} catch (SQLException e1) {
 			fail("Shouldn't happen");
@@ -149,9 +163,9 @@ public class JdbcCanBeNiceTest {
 			doWithConnection(action, connectionProvider);
 
 			verify(connection).prepareStatement(sql);
-			verify(preparedStatement).setObject(1, 1);
-			verify(preparedStatement).setObject(2, true);
-			verify(preparedStatement).setObject(3, "string");
+			verify(preparedStatement).setInt(1, 1);
+			verify(preparedStatement).setBoolean(2, true);
+			verify(preparedStatement).setString(3, "string");
 			verify(preparedStatement).executeUpdate();
 		} catch (SQLException e) {
 			fail("Shouldn't happen");
@@ -218,9 +232,9 @@ public class JdbcCanBeNiceTest {
 
 			verify(connection).prepareStatement(sql,
 					Statement.RETURN_GENERATED_KEYS);
-			verify(preparedStatement).setObject(1, 1);
-			verify(preparedStatement).setObject(2, true);
-			verify(preparedStatement).setObject(3, "string");
+			verify(preparedStatement).setInt(1, 1);
+			verify(preparedStatement).setBoolean(2, true);
+			verify(preparedStatement).setString(3, "string");
 			verify(preparedStatement).executeUpdate();
 			verify(preparedStatement).getGeneratedKeys();
 			verify(resultSet).next();
@@ -316,9 +330,9 @@ public class JdbcCanBeNiceTest {
 					personMapper, 1, true, "string");
 			List<Person> persons = doWithConnection(action, connectionProvider);
 			verify(connection).prepareStatement(sql);
-			verify(preparedStatement).setObject(1, 1);
-			verify(preparedStatement).setObject(2, true);
-			verify(preparedStatement).setObject(3, "string");
+			verify(preparedStatement).setInt(1, 1);
+			verify(preparedStatement).setBoolean(2, true);
+			verify(preparedStatement).setString(3, "string");
 			verify(preparedStatement).executeQuery();
 			assertEquals(expectedPersons, persons);
 		} catch (SQLException e) {
@@ -514,4 +528,1943 @@ public class JdbcCanBeNiceTest {
 			fail("Shouldn't happen");
 		}
 	}
+
+	@Test
+	public void testLongChainsDontNestCalls() {
+		final int[] calls = new int[1];
+		JdbcAction<Integer> counter = new JdbcAction<Integer>() {
+
+			public Integer doWithConnection(Connection connection)
+					throws SQLException {
+				return ++calls[0];
+			}
+		};
+
+		ChainableJdbcAction<Integer> action = sqlMakeChainable(counter);
+		for (int i = 1; i < 100000; i++) {
+			action = i == 50000 ? action.thenReturn(counter) : action
+					.then(counter);
+		}
+		try {
+			assertEquals(Integer.valueOf(50001), action.doWithConnection(null));
+			assertEquals(100000, calls[0]);
+		} catch (SQLException e) {
+			fail("Shouldn't happen");
+		}
+	}
+
+	@Test
+	public void testChainsSharingAPrefixAreIndependent() {
+		JdbcAction<String> a = constant("a");
+		ChainableJdbcAction<String> prefix = sqlMakeChainable(a).then(a);
+		ChainableJdbcAction<String> b = prefix.thenReturn(constant("b"));
+		ChainableJdbcAction<String> c = prefix.thenReturn(constant("c"))
+				.then(a);
+
+		try {
+			assertEquals("a", prefix.doWithConnection(null));
+			assertEquals("b", b.doWithConnection(null));
+			assertEquals("c", c.doWithConnection(null));
+			assertEquals("b", b.then(a).doWithConnection(null));
+		} catch (SQLException e) {
+			fail("Shouldn't happen");
+		}
+	}
+
+	private static <T> JdbcAction<T> constant(final T value) {
+		return new JdbcAction<T>() {
+
+			public T doWithConnection(Connection connection)
+					throws SQLException {
+				return value;
+			}
+		};
+	}
+
+	@Test
+	public void testThreadAffineConnectionProvider() throws Exception {
+		ConnectionProvider connectionProvider = new ConnectionProvider() {
+
+			public Connection get() throws SQLException {
+				return mock(Connection.class);
+			}
+		};
+		final ThreadAffineConnectionProvider threadAffine = threadAffineConnectionProvider(
+				connectionProvider, 1);
+		final Connection[] otherThreadConnection = new Connection[1];
+		Thread other = new Thread() {
+			@Override
+			public void run() {
+				try {
+					otherThreadConnection[0] = threadAffine.get();
+				} catch (SQLException e) {
+				}
+			}
+		};
+		other.start();
+		other.join();
+		assertNotNull(otherThreadConnection[0]);
+		assertEquals(1, threadAffine.getOpenCount());
+
+		try {
+			// the dead thread's connection is reclaimed
+			Connection connection = threadAffine.get();
+			verify(otherThreadConnection[0]).close();
+			assertSame(connection, threadAffine.get());
+			assertEquals(1, threadAffine.getOpenCount());
+
+			threadAffine.closeCurrent();
+			verify(connection).close();
+			assertNotSame(connection, threadAffine.get());
+
+			threadAffine.close();
+			assertEquals(0, threadAffine.getOpenCount());
+		} catch (SQLException e) {
+			fail("Shouldn't happen");
+		}
+		try {
+			threadAffine.get();
+			fail("The provider is closed");
+		} catch (SQLException e) {
+		}
+	}
+
+	@Test
+	public void testReadOnlyActions() {
+		assertTrue(ReadOnlyJdbcAction.isReadOnly(sqlQuery("select 1",
+				singleColumnRowMapper(Integer.class))));
+		assertTrue(ReadOnlyJdbcAction.isReadOnly(sqlQueryLongs("select 1")
+				.then(sqlQueryInts("select 2"))));
+		assertTrue(ReadOnlyJdbcAction.isReadOnly(sqlReadOnly(mock(JdbcAction.class))));
+		assertFalse(ReadOnlyJdbcAction.isReadOnly(sqlUpdate("delete from t")));
+		assertFalse(ReadOnlyJdbcAction.isReadOnly(sqlQueryLongs("select 1")
+				.then(sqlUpdate("delete from t"))));
+		assertFalse(ReadOnlyJdbcAction.isReadOnly(sqlTx(sqlQueryLongs("select 1"))));
+	}
+
+	@Test
+	public void testRoutingConnectionProvider() {
+		ConnectionProvider primary = createConnectionProvider();
+		ConnectionProvider replica1 = createConnectionProvider();
+		ConnectionProvider replica2 = createConnectionProvider();
+		RoutingConnectionProvider routing = routingConnectionProvider(primary,
+				replica1, replica2).weights(2, 1).balancing(
+				RoutingConnectionProvider.Balancing.ROUND_ROBIN);
+		JdbcAction<Connection> read = sqlReadOnly(new JdbcAction<Connection>() {
+
+			public Connection doWithConnection(Connection connection)
+					throws SQLException {
+				return connection;
+			}
+		});
+		try {
+			for (int i = 0; i < 3; i++) {
+				doWithConnection(read, routing);
+			}
+			assertEquals(2, routing.getRoutedToReplica(0));
+			assertEquals(1, routing.getRoutedToReplica(1));
+			assertEquals(0, routing.getOutstanding(0));
+
+			assertSame(primary.get(), doWithConnection(
+					sqlTx(sqlMakeChainable(read)), routing));
+			assertEquals(1, routing.getRoutedToPrimary());
+
+			// still routed through the decorators
+			JdbcMetrics metrics = new JdbcMetrics();
+			ConnectionProvider decorated = metrics
+					.instrument(statementCachingConnectionProvider(routing, 4));
+			Connection connection = doWithConnection(metrics
+					.instrument(new JdbcTracer(60000).trace(read)), decorated);
+			assertNotSame(primary.get(), StatementCache.unwrap(connection));
+			assertEquals(4, routing.getRoutedToReplica(0)
+					+ routing.getRoutedToReplica(1));
+			assertEquals(1, routing.getRoutedToPrimary());
+
+			// so are the cache misses of cached queries
+			String sql = "jdbc.can.be.nice";
+			for (ConnectionProvider replica : Arrays.asList(replica1,
+					replica2)) {
+				PreparedStatement preparedStatement = mock(PreparedStatement.class);
+				ResultSet resultSet = mock(ResultSet.class);
+				when(replica.get().prepareStatement(sql)).thenReturn(
+						preparedStatement);
+				when(preparedStatement.executeQuery()).thenReturn(resultSet);
+			}
+			doWithConnection(sqlCachedQuery(new QueryCache(), "t", sql,
+					JdbcCanBeNice.singleColumnRowMapper(String.class)),
+					routing);
+			assertEquals(5, routing.getRoutedToReplica(0)
+					+ routing.getRoutedToReplica(1));
+			assertEquals(1, routing.getRoutedToPrimary());
+
+			when(replica1.get()).thenThrow(new SQLException("down"));
+			when(replica2.get()).thenThrow(new SQLException("down"));
+			assertSame(primary.get(), doWithConnection(read, routing));
+			assertEquals(2, routing.getRoutedToPrimary());
+		} catch (SQLException e) {
+			fail("Shouldn't happen");
+		}
+	}
+
+	@Test
+	public void testRoutingConnectionProviderLagCheck() {
+		ConnectionProvider primary = createConnectionProvider();
+		ConnectionProvider replica = createConnectionProvider();
+		final long[] lag = { 10000 };
+		RoutingConnectionProvider routing = routingConnectionProvider(primary,
+				replica).lagCheck(new JdbcAction<Long>() {
+
+			public Long doWithConnection(Connection connection)
+					throws SQLException {
+				return lag[0];
+			}
+		}, 1000, 0);
+		try {
+			assertSame(primary.get(), routing.getForReading());
+			lag[0] = 10;
+			assertSame(replica.get(), routing.getForReading());
+			assertEquals(1, routing.getOutstanding(0));
+		} catch (SQLException e) {
+			fail("Shouldn't happen");
+		}
+	}
+
+	@Test
+	public void testPooledConnectionProviderReusesConnections() {
+		ConnectionProvider connectionProvider = createConnectionProvider();
+		PooledConnectionProvider pool = pooledConnectionProvider(
+				connectionProvider, new PoolConfig().maxSize(2));
+
+		try {
+			Connection connection = pool.get();
+			assertEquals(1, pool.getBorrowedCount());
+			pool.release(connection);
+			assertEquals(0, pool.getBorrowedCount());
+			assertEquals(1, pool.getIdleCount());
+
+			assertSame(connection, pool.get());
+			verify(connectionProvider, times(1)).get();
+			assertEquals(1, pool.getOpenCount());
+		} catch (SQLException e) {
+			fail("Shouldn't happen");
+		}
+	}
+
+	@Test
+	public void testPooledConnectionProviderTimesOutWhenExhausted() {
+		ConnectionProvider connectionProvider = createConnectionProvider();
+		PooledConnectionProvider pool = pooledConnectionProvider(
+				connectionProvider, new PoolConfig().maxSize(1)
+						.maxWaitMillis(10));
+
+		try {
+			pool.get();
+		} catch (SQLException e) {
+			fail("Shouldn't happen");
+		}
+		try {
+			pool.get();
+			fail("Should have timed out");
+		} catch (SQLException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testPooledConnectionProviderDiscardsInvalidConnections() {
+		ConnectionProvider connectionProvider = mock(ConnectionProvider.class);
+		Connection brokenConnection = mock(Connection.class);
+		Connection freshConnection = mock(Connection.class);
+
+		try {
+			when(connectionProvider.get()).thenReturn(brokenConnection,
+					freshConnection);
+			PooledConnectionProvider pool = pooledConnectionProvider(
+					connectionProvider, new PoolConfig());
+			pool.release(pool.get());
+			// e.g. the server closed it
+			when(brokenConnection.isValid(anyInt())).thenReturn(false);
+
+			assertSame(freshConnection, pool.get());
+			verify(brokenConnection).close();
+			assertEquals(1, pool.getOpenCount());
+		} catch (SQLException e) {
+			fail("Shouldn't happen");
+		}
+	}
+
+	@Test
+	public void testPooledConnectionProviderResetsReleasedConnections() {
+		ConnectionProvider connectionProvider = mock(ConnectionProvider.class);
+		Connection dirtyConnection = mock(Connection.class);
+		Connection brokenConnection = mock(Connection.class);
+
+		try {
+			when(connectionProvider.get()).thenReturn(dirtyConnection,
+					brokenConnection);
+			when(dirtyConnection.isValid(anyInt())).thenReturn(true);
+			PooledConnectionProvider pool = pooledConnectionProvider(
+					connectionProvider, new PoolConfig());
+
+			// left in a transaction : rolled back before being pooled
+			when(dirtyConnection.getAutoCommit()).thenReturn(false);
+			pool.release(pool.get());
+			verify(dirtyConnection).rollback();
+			verify(dirtyConnection).setAutoCommit(true);
+			assertEquals(1, pool.getIdleCount());
+
+			// a connection that can't be reset is closed instead
+			Connection connection = pool.get();
+			Connection other = pool.get();
+			assertSame(brokenConnection, other);
+			doThrow(new SQLException("broken")).when(brokenConnection)
+					.rollback();
+			pool.release(other);
+			verify(brokenConnection).close();
+			assertEquals(1, pool.getOpenCount());
+			assertEquals(0, pool.getIdleCount());
+			pool.release(connection);
+		} catch (SQLException e) {
+			fail("Shouldn't happen");
+		}
+	}
+
+	@Test
+	public void testPooledConnectionProviderEvictsIdleConnections() {
+		ConnectionProvider connectionProvider = createConnectionProvider();
+		PooledConnectionProvider pool = pooledConnectionProvider(
+				connectionProvider, new PoolConfig().idleTimeoutMillis(1));
+
+		try {
+			Connection connection = pool.get();
+			pool.release(connection);
+			Thread.sleep(5);
+			pool.evictIdle();
+
+			verify(connection).close();
+			assertEquals(0, pool.getOpenCount());
+			assertEquals(0, pool.getIdleCount());
+		} catch (SQLException e) {
+			fail("Shouldn't happen");
+		} catch (InterruptedException e) {
+			fail("Shouldn't happen");
+		}
+	}
+
+	@Test
+	public void testDoWithConnectionReleasesPooledConnection() {
+		ConnectionProvider connectionProvider = createConnectionProvider();
+		PooledConnectionProvider pool = pooledConnectionProvider(
+				connectionProvider, new PoolConfig().maxSize(1)
+						.maxWaitMillis(0));
+
+		JdbcAction<Object> jdbcAction = mock(JdbcAction.class);
+		try {
+			when(jdbcAction.doWithConnection(connectionProvider.get()))
+					.thenThrow(new SQLException());
+		} catch (SQLException e) {
+			fail("Shouldn't happen");
+		}
+
+		try {
+			doWithConnection(jdbcAction, pool);
+			fail("Should have thrown an exception");
+		} catch (RuntimeException e) {
+			// expected
+		}
+		assertEquals(0, pool.getBorrowedCount());
+		assertEquals(1, pool.getIdleCount());
+	}
+
+	@Test
+	public void testStatementCacheReusesStatements() {
+		final Connection connection = mock(Connection.class);
+		ConnectionProvider connectionProvider = statementCachingConnectionProvider(
+				new ConnectionProvider() {
+
+					public Connection get() throws SQLException {
+						return connection;
+					}
+				}, 10);
+
+		PreparedStatement preparedStatement = mock(PreparedStatement.class);
+		String sql = "jdbc.can.be.nice";
+
+		try {
+			when(connection.prepareStatement(sql))
+					.thenReturn(preparedStatement);
+			ChainableJdbcAction<Integer> action = sqlUpdate(sql, 1);
+			doWithConnection(action, connectionProvider);
+			doWithConnection(action, connectionProvider);
+
+			verify(connection, times(1)).prepareStatement(sql);
+			verify(preparedStatement, times(2)).executeUpdate();
+			verify(preparedStatement, never()).close();
+
+			StatementCache statementCache = StatementCache
+					.forConnection(connectionProvider.get());
+			assertEquals(1, statementCache.getHits());
+			assertEquals(1, statementCache.getMisses());
+			assertEquals(1, statementCache.size());
+
+			assertNull(StatementCache.forConnection(connection));
+			statementCache.close();
+			verify(preparedStatement).close();
+		} catch (SQLException e) {
+			fail("Shouldn't happen");
+		}
+	}
+
+	@Test
+	public void testStatementCacheEvictsLeastRecentlyUsed() {
+		final Connection connection = mock(Connection.class);
+		final Connection cachingConnection = StatementCache.attach(connection,
+				1);
+		StatementCache statementCache = StatementCache
+				.forConnection(cachingConnection);
+		ConnectionProvider connectionProvider = new ConnectionProvider() {
+
+			public Connection get() throws SQLException {
+				return cachingConnection;
+			}
+		};
+
+		PreparedStatement preparedStatement1 = mock(PreparedStatement.class);
+		PreparedStatement preparedStatement2 = mock(PreparedStatement.class);
+		ResultSet generatedKeys = mock(ResultSet.class);
+
+		try {
+			when(connection.prepareStatement("sql1")).thenReturn(
+					preparedStatement1);
+			when(
+					connection.prepareStatement("sql1",
+							Statement.RETURN_GENERATED_KEYS)).thenReturn(
+					preparedStatement2);
+			when(preparedStatement2.getGeneratedKeys()).thenReturn(
+					generatedKeys);
+			when(generatedKeys.getObject(1)).thenReturn(82);
+
+			doWithConnection(sqlUpdate("sql1"), connectionProvider);
+			doWithConnection(sqlUpdateAndReturnKey("sql1"), connectionProvider);
+
+			verify(preparedStatement1).close();
+			verify(preparedStatement2, never()).close();
+			assertEquals(1, statementCache.getEvictions());
+			assertEquals(2, statementCache.getMisses());
+		} catch (SQLException e) {
+			fail("Shouldn't happen");
+		} finally {
+			statementCache.close();
+		}
+	}
+
+	@Test
+	public void testPooledConnectionProviderStatementCache() {
+		ConnectionProvider connectionProvider = createConnectionProvider();
+		PooledConnectionProvider pool = pooledConnectionProvider(
+				connectionProvider, new PoolConfig().statementCacheSize(5));
+
+		try {
+			Connection connection = pool.get();
+			StatementCache statementCache = StatementCache
+					.forConnection(connection);
+			assertEquals(5, statementCache.getMaxSize());
+
+			pool.release(connection);
+			pool.close();
+			// closing the connection closed its cache
+			assertNull(StatementCache.forConnection(connection));
+		} catch (SQLException e) {
+			fail("Shouldn't happen");
+		}
+	}
+
+	@Test
+	public void testSqlBatchUpdate() {
+		final Connection connection = mock(Connection.class);
+		ConnectionProvider connectionProvider = new ConnectionProvider() {
+
+			public Connection get() throws SQLException {
+				return connection;
+			}
+		};
+
+		PreparedStatement preparedStatement = mock(PreparedStatement.class);
+		String sql = "jdbc.can.be.nice";
+
+		try {
+			when(connection.prepareStatement(sql))
+					.thenReturn(preparedStatement);
+			when(preparedStatement.executeBatch()).thenReturn(
+					new int[] { 1, 1 }, new int[] { 0 });
+			List<Object[]> rows = Arrays.asList(new Object[] { 1, "a" },
+					new Object[] { 2, "b" }, new Object[] { 3, "c" });
+			ChainableJdbcAction<int[]> action = sqlBatchUpdate(sql, rows, 2);
+			int[] counts = doWithConnection(sqlTx(action), connectionProvider);
+
+			verify(connection, times(1)).prepareStatement(sql);
+			verify(preparedStatement).setInt(1, 1);
+			verify(preparedStatement).setString(2, "a");
+			verify(preparedStatement).setInt(1, 3);
+			verify(preparedStatement).setString(2, "c");
+			verify(preparedStatement, times(3)).addBatch();
+			verify(preparedStatement, times(2)).executeBatch();
+			verify(preparedStatement).close();
+			verify(connection).commit();
+			assertTrue(Arrays.equals(new int[] { 1, 1, 0 }, counts));
+		} catch (SQLException e) {
+			fail("Shouldn't happen");
+		}
+	}
+
+	@Test
+	public void testSqlQueryForEach() {
+		final Connection connection = mock(Connection.class);
+		ConnectionProvider connectionProvider = new ConnectionProvider() {
+
+			public Connection get() throws SQLException {
+				return connection;
+			}
+		};
+
+		PreparedStatement preparedStatement = mock(PreparedStatement.class);
+		ResultSet resultSet = mock(ResultSet.class);
+		String sql = "jdbc.can.be.nice";
+		final List<String> names = new ArrayList<String>();
+
+		try {
+			when(resultSet.next()).thenReturn(true, true, false);
+			when(resultSet.getString("name")).thenReturn("a", "b");
+			when(preparedStatement.executeQuery()).thenReturn(resultSet);
+			when(connection.prepareStatement(sql))
+					.thenReturn(preparedStatement);
+
+			ChainableJdbcAction<Integer> action = sqlQueryForEach(sql,
+					new RowCallback() {
+
+						public void processRow(ResultSet resultSet, int row)
+								throws SQLException {
+							names.add(row + resultSet.getString("name"));
+						}
+					}, 20);
+			int count = doWithConnection(action, connectionProvider);
+
+			verify(preparedStatement).setInt(1, 20);
+			verify(resultSet).close();
+			verify(preparedStatement).close();
+			assertEquals(2, count);
+			assertEquals(Arrays.asList("0a", "1b"), names);
+		} catch (SQLException e) {
+			fail("Shouldn't happen");
+		}
+	}
+
+	@Test
+	public void testSqlQueryFold() {
+		final Connection connection = mock(Connection.class);
+		ConnectionProvider connectionProvider = new ConnectionProvider() {
+
+			public Connection get() throws SQLException {
+				return connection;
+			}
+		};
+
+		PreparedStatement preparedStatement = mock(PreparedStatement.class);
+		ResultSet resultSet = mock(ResultSet.class);
+		String sql = "jdbc.can.be.nice";
+
+		try {
+			when(resultSet.next()).thenReturn(true, true, true, false);
+			when(resultSet.getLong(1)).thenReturn(1L, 2L, 39L);
+			when(preparedStatement.executeQuery()).thenReturn(resultSet);
+			when(connection.prepareStatement(sql))
+					.thenReturn(preparedStatement);
+
+			ChainableJdbcAction<Long> action = sqlQueryFold(sql, 40L,
+					new Folder<Long>() {
+
+						public Long fold(Long total, ResultSet resultSet,
+								int row) throws SQLException {
+							return total + resultSet.getLong(1);
+						}
+					});
+
+			assertEquals(Long.valueOf(82), doWithConnection(action,
+					connectionProvider));
+		} catch (SQLException e) {
+			fail("Shouldn't happen");
+		}
+	}
+
+	@Test
+	public void testSqlCursor() {
+		ConnectionProvider connectionProvider = createConnectionProvider();
+		PooledConnectionProvider pool = pooledConnectionProvider(
+				connectionProvider, new PoolConfig());
+
+		PreparedStatement preparedStatement = mock(PreparedStatement.class);
+		ResultSet resultSet = mock(ResultSet.class);
+		String sql = "jdbc.can.be.nice";
+
+		try {
+			Connection connection = connectionProvider.get();
+			when(resultSet.next()).thenReturn(true, true, true, false);
+			when(resultSet.getObject(1)).thenReturn("a", "b", "c");
+			when(preparedStatement.executeQuery()).thenReturn(resultSet);
+			when(connection.prepareStatement(sql))
+					.thenReturn(preparedStatement);
+
+			Cursor<String> cursor = doWithConnection(sqlCursor(sql,
+					singleColumnRowMapper(String.class), 1), pool);
+			assertEquals(1, pool.getBorrowedCount());
+			verify(resultSet, never()).next();
+
+			assertTrue(cursor.hasNext());
+			assertEquals("a", cursor.next());
+			verify(resultSet, times(1)).next();
+
+			cursor.close();
+			assertFalse(cursor.hasNext());
+			verify(resultSet).close();
+			verify(preparedStatement).close();
+			assertEquals(0, pool.getBorrowedCount());
+		} catch (SQLException e) {
+			fail("Shouldn't happen");
+		}
+	}
+
+	@Test
+	public void testSqlCursorStream() {
+		final Connection connection = mock(Connection.class);
+		ConnectionProvider connectionProvider = new ConnectionProvider() {
+
+			public Connection get() throws SQLException {
+				return connection;
+			}
+		};
+
+		PreparedStatement preparedStatement = mock(PreparedStatement.class);
+		ResultSet resultSet = mock(ResultSet.class);
+		String sql = "jdbc.can.be.nice";
+
+		try {
+			when(resultSet.next()).thenReturn(true, true, false);
+			when(resultSet.getObject(1)).thenReturn("a", "b");
+			when(preparedStatement.executeQuery()).thenReturn(resultSet);
+			when(connection.prepareStatement(sql))
+					.thenReturn(preparedStatement);
+
+			Cursor<String> cursor = doWithConnection(sqlCursor(sql,
+					singleColumnRowMapper(String.class)), connectionProvider);
+			List<String> names = cursor.stream().collect(
+					Collectors.<String> toList());
+
+			assertEquals(Arrays.asList("a", "b"), names);
+			assertTrue(cursor.isClosed());
+			verify(resultSet).close();
+			verify(preparedStatement).close();
+		} catch (SQLException e) {
+			fail("Shouldn't happen");
+		}
+	}
+
+	@Test
+	public void testSqlQueryWithOptions() {
+		final Connection connection = mock(Connection.class);
+		ConnectionProvider connectionProvider = new ConnectionProvider() {
+
+			public Connection get() throws SQLException {
+				return connection;
+			}
+		};
+
+		PreparedStatement preparedStatement = mock(PreparedStatement.class);
+		ResultSet resultSet = mock(ResultSet.class);
+		String sql = "jdbc.can.be.nice";
+
+		try {
+			when(resultSet.next()).thenReturn(false);
+			when(preparedStatement.executeQuery()).thenReturn(resultSet);
+			when(
+					connection.prepareStatement(sql,
+							ResultSet.TYPE_SCROLL_INSENSITIVE,
+							ResultSet.CONCUR_READ_ONLY)).thenReturn(
+					preparedStatement);
+
+			QueryOptions options = new QueryOptions().fetchSize(500).maxRows(
+					10).queryTimeoutSeconds(3).fetchDirection(
+					ResultSet.FETCH_REVERSE).resultSetType(
+					ResultSet.TYPE_SCROLL_INSENSITIVE);
+			ChainableJdbcAction<List<String>> action = sqlQuery(sql, options,
+					singleColumnRowMapper(String.class));
+			// later changes don't affect the already created action
+			options.fetchSize(1);
+			doWithConnection(action, connectionProvider);
+
+			verify(preparedStatement).setFetchSize(500);
+			verify(preparedStatement).setMaxRows(10);
+			verify(preparedStatement).setQueryTimeout(3);
+			verify(preparedStatement).setFetchDirection(
+					ResultSet.FETCH_REVERSE);
+			verify(preparedStatement).executeQuery();
+		} catch (SQLException e) {
+			fail("Shouldn't happen");
+		}
+	}
+
+	@Test
+	public void testStatementCacheKeysOnQueryOptions() {
+		final Connection connection = mock(Connection.class);
+		final Connection cachingConnection = StatementCache.attach(connection,
+				10);
+		StatementCache statementCache = StatementCache
+				.forConnection(cachingConnection);
+		ConnectionProvider connectionProvider = new ConnectionProvider() {
+
+			public Connection get() throws SQLException {
+				return cachingConnection;
+			}
+		};
+
+		PreparedStatement preparedStatement = mock(PreparedStatement.class);
+		ResultSet resultSet = mock(ResultSet.class);
+		String sql = "jdbc.can.be.nice";
+
+		try {
+			when(resultSet.next()).thenReturn(false);
+			when(preparedStatement.executeQuery()).thenReturn(resultSet);
+			when(connection.prepareStatement(sql))
+					.thenReturn(preparedStatement);
+
+			RowMapper<String> rowMapper = singleColumnRowMapper(String.class);
+			doWithConnection(sqlQuery(sql, new QueryOptions().fetchSize(100),
+					rowMapper), connectionProvider);
+			doWithConnection(sqlQuery(sql, new QueryOptions().fetchSize(100),
+					rowMapper), connectionProvider);
+			doWithConnection(sqlQuery(sql, rowMapper), connectionProvider);
+
+			verify(connection, times(2)).prepareStatement(sql);
+			verify(preparedStatement, times(1)).setFetchSize(100);
+			assertEquals(1, statementCache.getHits());
+			assertEquals(2, statementCache.getMisses());
+		} catch (SQLException e) {
+			fail("Shouldn't happen");
+		} finally {
+			statementCache.close();
+		}
+	}
+
+	public static class Account {
+		private long id;
+		private String ownerName;
+		private Integer score;
+
+		public long getId() {
+			return id;
+		}
+
+		public void setId(long id) {
+			this.id = id;
+		}
+
+		public String getOwnerName() {
+			return ownerName;
+		}
+
+		public void setOwnerName(String ownerName) {
+			this.ownerName = ownerName;
+		}
+
+		public Integer getScore() {
+			return score;
+		}
+
+		public void setScore(Integer score) {
+			this.score = score;
+		}
+	}
+
+	@Test
+	public void testBeanRowMapper() {
+		ResultSet resultSet = mock(ResultSet.class);
+		ResultSetMetaData metaData = mock(ResultSetMetaData.class);
+		RowMapper<Account> mapper = beanRowMapper(Account.class);
+
+		try {
+			when(resultSet.getMetaData()).thenReturn(metaData);
+			when(metaData.getColumnCount()).thenReturn(4);
+			when(metaData.getColumnLabel(1)).thenReturn("ID");
+			when(metaData.getColumnLabel(2)).thenReturn("OWNER_NAME");
+			when(metaData.getColumnLabel(3)).thenReturn("score");
+			when(metaData.getColumnLabel(4)).thenReturn("unmapped");
+			when(resultSet.getLong(1)).thenReturn(82L, 1L);
+			when(resultSet.getString(2)).thenReturn("a", "b");
+			when(resultSet.getInt(3)).thenReturn(7, 0);
+			when(resultSet.wasNull()).thenReturn(false, false, false, true);
+
+			Account first = mapper.mapRow(resultSet, 0);
+			Account second = mapper.mapRow(resultSet, 1);
+
+			assertEquals(82L, first.getId());
+			assertEquals("a", first.getOwnerName());
+			assertEquals(Integer.valueOf(7), first.getScore());
+			assertEquals(1L, second.getId());
+			assertEquals("b", second.getOwnerName());
+			assertNull(second.getScore());
+			// the columns are resolved once per result set
+			verify(resultSet, times(1)).getMetaData();
+			verify(resultSet, never()).getObject(4);
+		} catch (SQLException e) {
+			fail("Shouldn't happen");
+		}
+	}
+
+	@Test
+	public void testBeanRowMapperSharedByThreads() throws Exception {
+		final RowMapper<Account> mapper = beanRowMapper(Account.class);
+		final ResultSet[] resultSets = new ResultSet[2];
+		for (int i = 0; i < resultSets.length; i++) {
+			ResultSet resultSet = mock(ResultSet.class);
+			ResultSetMetaData metaData = mock(ResultSetMetaData.class);
+			when(resultSet.getMetaData()).thenReturn(metaData);
+			when(metaData.getColumnCount()).thenReturn(1);
+			when(metaData.getColumnLabel(1)).thenReturn("ID");
+			when(resultSet.getLong(1)).thenReturn(i + 1L);
+			resultSets[i] = resultSet;
+		}
+		// the two threads map a row of their result set in turn
+		final Semaphore[] turns = { new Semaphore(1), new Semaphore(0) };
+		final List<Long> ids = new ArrayList<Long>();
+		Thread[] threads = new Thread[2];
+		for (int i = 0; i < threads.length; i++) {
+			final int me = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int row = 0; row < 3; row++) {
+							turns[me].acquire();
+							try {
+								ids.add(mapper.mapRow(resultSets[me], row)
+										.getId());
+							} finally {
+								turns[1 - me].release();
+							}
+						}
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join(5000);
+		}
+
+		assertEquals(Arrays.asList(1L, 2L, 1L, 2L, 1L, 2L), ids);
+		verify(resultSets[0], times(1)).getMetaData();
+		verify(resultSets[1], times(1)).getMetaData();
+	}
+
+	@Test
+	public void testSqlQueryLongs() {
+		final Connection connection = mock(Connection.class);
+		ConnectionProvider connectionProvider = new ConnectionProvider() {
+
+			public Connection get() throws SQLException {
+				return connection;
+			}
+		};
+
+		PreparedStatement preparedStatement = mock(PreparedStatement.class);
+		ResultSet resultSet = mock(ResultSet.class);
+		String sql = "jdbc.can.be.nice";
+
+		try {
+			when(resultSet.next()).thenReturn(true, true, true, false);
+			when(resultSet.getLong(1)).thenReturn(82L, 1L, 3L);
+			when(preparedStatement.executeQuery()).thenReturn(resultSet);
+			when(connection.prepareStatement(sql))
+					.thenReturn(preparedStatement);
+
+			// a too small hint makes the array grow
+			long[] ids = doWithConnection(sqlQueryLongs(sql,
+					new QueryOptions().expectedRows(1), "a"),
+					connectionProvider);
+
+			verify(preparedStatement).setString(1, "a");
+			verify(resultSet, never()).getObject(1);
+			assertTrue(Arrays.equals(new long[] { 82, 1, 3 }, ids));
+		} catch (SQLException e) {
+			fail("Shouldn't happen");
+		}
+	}
+
+	@Test
+	public void testSqlQueryIntsAndDoubles() {
+		final Connection connection = mock(Connection.class);
+		ConnectionProvider connectionProvider = new ConnectionProvider() {
+
+			public Connection get() throws SQLException {
+				return connection;
+			}
+		};
+
+		PreparedStatement preparedStatement = mock(PreparedStatement.class);
+		ResultSet resultSet = mock(ResultSet.class);
+		String sql = "jdbc.can.be.nice";
+
+		try {
+			when(resultSet.next()).thenReturn(true, true, false, true, true,
+					false);
+			when(resultSet.getInt(1)).thenReturn(82, 1);
+			when(resultSet.getDouble(1)).thenReturn(8.2, 0.1);
+			when(preparedStatement.executeQuery()).thenReturn(resultSet);
+			when(connection.prepareStatement(sql))
+					.thenReturn(preparedStatement);
+
+			int[] ints = doWithConnection(sqlQueryInts(sql),
+					connectionProvider);
+			double[] doubles = doWithConnection(sqlQueryDoubles(sql),
+					connectionProvider);
+
+			assertTrue(Arrays.equals(new int[] { 82, 1 }, ints));
+			assertTrue(Arrays.equals(new double[] { 8.2, 0.1 }, doubles));
+		} catch (SQLException e) {
+			fail("Shouldn't happen");
+		}
+	}
+
+	@Test
+	public void testSqlQueryColumnar() {
+		final Connection connection = mock(Connection.class);
+		ConnectionProvider connectionProvider = new ConnectionProvider() {
+
+			public Connection get() throws SQLException {
+				return connection;
+			}
+		};
+
+		PreparedStatement preparedStatement = mock(PreparedStatement.class);
+		ResultSet resultSet = mock(ResultSet.class);
+		ResultSetMetaData metaData = mock(ResultSetMetaData.class);
+		String sql = "jdbc.can.be.nice";
+
+		try {
+			when(metaData.getColumnCount()).thenReturn(3);
+			when(metaData.getColumnLabel(1)).thenReturn("ID");
+			when(metaData.getColumnType(1)).thenReturn(Types.BIGINT);
+			when(metaData.getColumnLabel(2)).thenReturn("COUNTRY");
+			when(metaData.getColumnType(2)).thenReturn(Types.VARCHAR);
+			when(metaData.getColumnLabel(3)).thenReturn("AMOUNT");
+			when(metaData.getColumnType(3)).thenReturn(Types.DOUBLE);
+			when(resultSet.getMetaData()).thenReturn(metaData);
+			when(resultSet.next()).thenReturn(true, true, true, false);
+			when(resultSet.getLong(1)).thenReturn(82L, 1L, 3L);
+			when(resultSet.getString(2)).thenReturn("fr", "tn", "fr");
+			when(resultSet.getDouble(3)).thenReturn(1.5, 0.0, 2.5);
+			// only the second row's amount is NULL
+			when(resultSet.wasNull()).thenReturn(false, false, false, true,
+					false, false);
+			when(preparedStatement.executeQuery()).thenReturn(resultSet);
+			when(connection.prepareStatement(sql))
+					.thenReturn(preparedStatement);
+
+			ColumnarResult res = doWithConnection(sqlQueryColumnar(sql),
+					connectionProvider);
+
+			assertEquals(3, res.getRowCount());
+			assertEquals(3, res.getColumnCount());
+			assertEquals(1, res.getColumnIndex("country"));
+			assertEquals(ColumnarResult.ColumnType.LONG, res.getColumnType(0));
+			assertTrue(Arrays.equals(new long[] { 82, 1, 3 }, res.getLongs(0)));
+			assertTrue(Arrays.equals(new String[] { "fr", "tn" }, res
+					.getDictionary(1)));
+			assertTrue(Arrays.equals(new int[] { 0, 1, 0 }, res.getCodes(1)));
+			assertEquals("tn", res.getString(1, 1));
+			assertTrue(res.isNull(2, 1));
+			assertFalse(res.isNull(2, 2));
+			assertEquals(4.0, res.sumDouble(2));
+			assertEquals(86L, res.sumLong(0));
+			verify(resultSet, never()).getObject(1);
+		} catch (SQLException e) {
+			fail("Shouldn't happen");
+		}
+	}
+
+	@Test
+	public void testSqlCachedQuery() {
+		final Connection connection = mock(Connection.class);
+		ConnectionProvider connectionProvider = new ConnectionProvider() {
+
+			public Connection get() throws SQLException {
+				return connection;
+			}
+		};
+
+		PreparedStatement preparedStatement = mock(PreparedStatement.class);
+		PreparedStatement updateStatement = mock(PreparedStatement.class);
+		ResultSet resultSet = mock(ResultSet.class);
+		String sql = "jdbc.can.be.nice";
+		String update = "jdbc.can.be.nice.update";
+		QueryCache cache = new QueryCache();
+
+		try {
+			when(resultSet.next()).thenReturn(true, false, true, false);
+			when(resultSet.getObject(1)).thenReturn("a", "b");
+			when(preparedStatement.executeQuery()).thenReturn(resultSet);
+			when(connection.prepareStatement(sql))
+					.thenReturn(preparedStatement);
+			when(connection.prepareStatement(update)).thenReturn(
+					updateStatement);
+			when(connection.getAutoCommit()).thenReturn(true);
+			RowMapper<String> mapper = JdbcCanBeNice.singleColumnRowMapper(
+					String.class);
+
+			List<String> first = doWithConnection(sqlCachedQuery(cache,
+					"t", sql, mapper, 8), connectionProvider);
+			List<String> second = doWithConnection(sqlCachedQuery(cache,
+					"t", sql, mapper, 8), connectionProvider);
+			assertEquals(Arrays.asList("a"), first);
+			assertSame(first, second);
+			verify(preparedStatement, times(1)).executeQuery();
+			assertEquals(1, cache.getHits());
+			assertEquals(1, cache.getMisses());
+
+			doWithConnection(sqlTx(sqlInvalidating(cache, "t", sqlUpdate(
+					update, 8))), connectionProvider);
+			assertEquals(0, cache.size());
+
+			List<String> third = doWithConnection(sqlCachedQuery(cache, "t",
+					sql, mapper, 8), connectionProvider);
+			assertEquals(Arrays.asList("b"), third);
+			verify(preparedStatement, times(2)).executeQuery();
+		} catch (SQLException e) {
+			fail("Shouldn't happen");
+		}
+	}
+
+	@Test
+	public void testSqlCachedQueryRolledBack() {
+		final Connection connection = mock(Connection.class);
+		ConnectionProvider connectionProvider = new ConnectionProvider() {
+
+			public Connection get() throws SQLException {
+				return connection;
+			}
+		};
+
+		PreparedStatement preparedStatement = mock(PreparedStatement.class);
+		PreparedStatement updateStatement = mock(PreparedStatement.class);
+		ResultSet resultSet = mock(ResultSet.class);
+		String sql = "jdbc.can.be.nice";
+		String update = "jdbc.can.be.nice.update";
+		final QueryCache cache = new QueryCache();
+
+		try {
+			when(resultSet.next()).thenReturn(true, false);
+			when(resultSet.getObject(1)).thenReturn("uncommitted");
+			when(preparedStatement.executeQuery()).thenReturn(resultSet);
+			when(connection.prepareStatement(sql))
+					.thenReturn(preparedStatement);
+			when(connection.prepareStatement(update)).thenReturn(
+					updateStatement);
+			when(connection.getAutoCommit()).thenReturn(true);
+			final RowMapper<String> mapper = JdbcCanBeNice
+					.singleColumnRowMapper(String.class);
+
+			// the transaction reads its own update, then rolls back
+			try {
+				doWithConnection(sqlTx(sqlInvalidating(cache, "t",
+						sqlUpdate(update, 8)).then(
+						sqlCachedQuery(cache, "t", sql, mapper, 8)).then(
+						new JdbcAction<Object>() {
+
+							public Object doWithConnection(
+									Connection connection)
+									throws SQLException {
+								assertEquals(1, cache.size());
+								throw new IllegalStateException("rollback");
+							}
+						})), connectionProvider);
+				fail("Should have failed");
+			} catch (IllegalStateException e) {
+			}
+			verify(connection).rollback();
+			assertEquals(0, cache.size());
+		} catch (SQLException e) {
+			fail("Shouldn't happen");
+		}
+	}
+
+	@Test
+	public void testQueryCacheEviction() {
+		QueryCache cache = new QueryCache().maxEntries(2).maxWeight(4);
+		QueryCache.Key a = new QueryCache.Key("a", new Object[0]);
+		QueryCache.Key b = new QueryCache.Key("b", new Object[0]);
+		QueryCache.Key c = new QueryCache.Key("c", new Object[] { 1 });
+
+		cache.put(a, "t", cache.generation("t"), Arrays.asList(1));
+		cache.put(b, null, 0, Arrays.asList(1));
+		cache.get(a);
+		cache.put(c, null, 0, Arrays.asList(1));
+		// b was the least recently used one
+		assertNull(cache.get(b));
+		assertNotNull(cache.get(a));
+		assertEquals(1, cache.getEvictions());
+
+		cache.put(b, null, 0, Arrays.asList(1, 2, 3, 4));
+		assertEquals(1, cache.size());
+		assertEquals(4, cache.getWeight());
+
+		// a result read before an invalidation isn't cached
+		long generation = cache.generation("t");
+		cache.invalidate("t");
+		cache.put(a, "t", generation, Arrays.asList(1));
+		assertNull(cache.get(a));
+
+		cache.ttlMillis(-1);
+		cache.put(c, null, 0, Arrays.asList(1));
+		assertNotNull(cache.get(c));
+		cache.ttlMillis(1);
+		cache.put(c, null, 0, Arrays.asList(1));
+		try {
+			Thread.sleep(5);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		assertNull(cache.get(c));
+		assertEquals(1, cache.getExpirations());
+	}
+
+	@Test
+	public void testDoWithConnectionAsync() throws Exception {
+		final Connection connection = mock(Connection.class);
+		final CountDownLatch released = new CountDownLatch(2);
+		ConnectionProvider connectionProvider = new ReleasableConnectionProvider() {
+
+			public Connection get() throws SQLException {
+				return connection;
+			}
+
+			public void release(Connection c) throws SQLException {
+				released.countDown();
+			}
+		};
+
+		PreparedStatement preparedStatement = mock(PreparedStatement.class);
+		final PreparedStatement slowStatement = mock(PreparedStatement.class);
+		ResultSet resultSet = mock(ResultSet.class);
+		final CountDownLatch executing = new CountDownLatch(1);
+		final CountDownLatch cancelled = new CountDownLatch(1);
+		String sql = "jdbc.can.be.nice";
+		String slowSql = "jdbc.can.be.slow";
+
+		when(resultSet.next()).thenReturn(true, true, false);
+		when(preparedStatement.executeQuery()).thenReturn(resultSet);
+		when(connection.prepareStatement(sql)).thenReturn(preparedStatement);
+		when(connection.prepareStatement(slowSql)).thenReturn(slowStatement);
+		when(slowStatement.executeQuery()).thenAnswer(new Answer<ResultSet>() {
+
+			public ResultSet answer(InvocationOnMock invocation)
+					throws Throwable {
+				executing.countDown();
+				cancelled.await(5, TimeUnit.SECONDS);
+				throw new SQLException("cancelled");
+			}
+		});
+		doAnswer(new Answer<Object>() {
+
+			public Object answer(InvocationOnMock invocation)
+					throws Throwable {
+				cancelled.countDown();
+				return null;
+			}
+		}).when(slowStatement).cancel();
+
+		int rows = doWithConnectionAsync(sqlQueryForEach(sql,
+				new RowCallback() {
+
+					public void processRow(ResultSet resultSet, int row)
+							throws SQLException {
+					}
+				}), connectionProvider).thenApply(
+				new java.util.function.Function<Integer, Integer>() {
+
+					public Integer apply(Integer count) {
+						return count * 10;
+					}
+				}).get(5, TimeUnit.SECONDS);
+		assertEquals(20, rows);
+
+		CompletableFuture<Integer> slow = doWithConnectionAsync(
+				sqlQueryForEach(slowSql, new RowCallback() {
+
+					public void processRow(ResultSet resultSet, int row)
+							throws SQLException {
+					}
+				}), connectionProvider);
+		assertTrue(executing.await(5, TimeUnit.SECONDS));
+		assertTrue(slow.cancel(true));
+		assertTrue(cancelled.await(5, TimeUnit.SECONDS));
+		assertTrue(released.await(5, TimeUnit.SECONDS));
+		verify(slowStatement).cancel();
+	}
+
+	@Test
+	public void testDoInParallel() {
+		ConnectionProvider connectionProvider = new ConnectionProvider() {
+
+			public Connection get() throws SQLException {
+				return mock(Connection.class);
+			}
+		};
+		// every action waits for the others, so they must run at the same time
+		final CountDownLatch allRunning = new CountDownLatch(3);
+		final List<Connection> connections = java.util.Collections
+				.synchronizedList(new ArrayList<Connection>());
+		JdbcAction<?>[] actions = new JdbcAction<?>[3];
+		for (int i = 0; i < actions.length; i++) {
+			final int result = i;
+			actions[i] = new JdbcAction<Integer>() {
+
+				public Integer doWithConnection(Connection connection)
+						throws SQLException {
+					connections.add(connection);
+					allRunning.countDown();
+					try {
+						if (!allRunning.await(5, TimeUnit.SECONDS)) {
+							throw new SQLException("not parallel");
+						}
+					} catch (InterruptedException e) {
+						throw new SQLException(e);
+					}
+					return result;
+				}
+			};
+		}
+
+		List<Object> res = doInParallel(connectionProvider, 3, actions);
+
+		assertEquals(Arrays.<Object> asList(0, 1, 2), res);
+		assertEquals(3, new java.util.HashSet<Connection>(connections).size());
+
+		try {
+			doInParallel(connectionProvider, 2, sqlMakeChainable(
+					new JdbcAction<Object>() {
+
+						public Object doWithConnection(Connection connection)
+								throws SQLException {
+							throw new SQLException("boom");
+						}
+					}));
+			fail("Should have failed");
+		} catch (RuntimeException e) {
+			assertEquals("boom", e.getCause().getMessage());
+		}
+	}
+
+	@Test
+	public void testDoPartitionedQuery() {
+		final Connection connection = mock(Connection.class);
+		ConnectionProvider connectionProvider = new ConnectionProvider() {
+
+			public Connection get() throws SQLException {
+				return connection;
+			}
+		};
+
+		PreparedStatement boundsStatement = mock(PreparedStatement.class);
+		PreparedStatement firstStatement = mock(PreparedStatement.class);
+		PreparedStatement lastStatement = mock(PreparedStatement.class);
+		ResultSet boundsResultSet = mock(ResultSet.class);
+		ResultSet firstResultSet = mock(ResultSet.class);
+		ResultSet lastResultSet = mock(ResultSet.class);
+		PartitionedScan scan = new PartitionedScan("t", "id").partitions(2)
+				.parallelism(1);
+
+		assertEquals("select * from t where id >= ? and id < ?", scan
+				.partitionSql(false));
+		assertTrue(Arrays.equals(new long[] { 0, 3, 6, 9 }, PartitionedScan
+				.split(0, 9, 3)));
+		assertTrue(Arrays.equals(new long[] { 5, 6, 6 }, PartitionedScan
+				.split(5, 6, 4)));
+
+		try {
+			when(boundsResultSet.next()).thenReturn(true, false);
+			when(boundsResultSet.getLong(1)).thenReturn(1L);
+			when(boundsResultSet.getLong(2)).thenReturn(100L);
+			when(boundsStatement.executeQuery()).thenReturn(boundsResultSet);
+			when(connection.prepareStatement(scan.boundsSql())).thenReturn(
+					boundsStatement);
+			when(firstResultSet.next()).thenReturn(true, true, false);
+			when(firstResultSet.getObject(1)).thenReturn("a", "b");
+			when(firstStatement.executeQuery()).thenReturn(firstResultSet);
+			when(connection.prepareStatement(scan.partitionSql(false)))
+					.thenReturn(firstStatement);
+			when(lastResultSet.next()).thenReturn(true, false);
+			when(lastResultSet.getObject(1)).thenReturn("c");
+			when(lastStatement.executeQuery()).thenReturn(lastResultSet);
+			when(connection.prepareStatement(scan.partitionSql(true)))
+					.thenReturn(lastStatement);
+
+			List<String> res = doPartitionedQuery(connectionProvider, scan,
+					singleColumnRowMapper(String.class)).sorted().collect(
+					Collectors.<String> toList());
+
+			assertEquals(Arrays.asList("a", "b", "c"), res);
+			verify(firstStatement).setLong(1, 1L);
+			verify(firstStatement).setLong(2, 51L);
+			verify(lastStatement).setLong(1, 51L);
+			verify(lastStatement).setLong(2, 100L);
+		} catch (SQLException e) {
+			fail("Shouldn't happen");
+		}
+	}
+
+	@Test
+	public void testShardedConnectionProvider() {
+		ConnectionProvider[] providers = new ConnectionProvider[4];
+		for (int i = 0; i < providers.length; i++) {
+			providers[i] = createConnectionProvider();
+		}
+		ShardedConnectionProvider three = shardedConnectionProvider(providers[0],
+				providers[1], providers[2]);
+		ShardedConnectionProvider four = shardedConnectionProvider(providers);
+		int[] counts = new int[3];
+		int moved = 0;
+		for (long key = 0; key < 3000; key++) {
+			int shard = three.shardOf(key);
+			counts[shard]++;
+			if (four.shardOf(key) != shard) {
+				moved++;
+			}
+		}
+		for (int count : counts) {
+			assertTrue(count > 600 && count < 1400);
+		}
+		// only the keys going to the new shard move
+		assertTrue(moved < 1200);
+		assertSame(three.forKey(42L), three.forKey(42));
+		assertSame(three.forKey("customer-7"), three.forKey("customer-7"));
+
+		ShardedConnectionProvider ranges = rangeShardedConnectionProvider(
+				new long[] { 0, 100, 1000 }, providers[0], providers[1],
+				providers[2]);
+		assertEquals(0, ranges.shardOf(99));
+		assertEquals(1, ranges.shardOf(100L));
+		assertEquals(2, ranges.shardOf(5000));
+		try {
+			ranges.shardOf(-1);
+			fail("Below the first range");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	@Test
+	public void testDoScatterQuery() {
+		String sql = "select id from orders order by id";
+		ConnectionProvider[] providers = new ConnectionProvider[3];
+		long[][] ids = { { 1, 4, 7 }, {}, { 2, 3, 9 } };
+		try {
+			for (int i = 0; i < providers.length; i++) {
+				final Connection connection = mock(Connection.class);
+				PreparedStatement preparedStatement = mock(PreparedStatement.class);
+				ResultSet resultSet = mock(ResultSet.class);
+				// true for every id, then false
+				Boolean[] next = new Boolean[ids[i].length];
+				Arrays.fill(next, true);
+				next = Arrays.copyOf(next, next.length + 1);
+				next[next.length - 1] = false;
+				Object[] values = new Object[ids[i].length + 1];
+				for (int j = 0; j < ids[i].length; j++) {
+					values[j] = ids[i][j];
+				}
+				when(resultSet.next()).thenReturn(next[0],
+						Arrays.copyOfRange(next, 1, next.length));
+				when(resultSet.getObject(1)).thenReturn(values[0],
+						Arrays.copyOfRange(values, 1, values.length));
+				when(preparedStatement.executeQuery()).thenReturn(resultSet);
+				when(connection.prepareStatement(sql)).thenReturn(
+						preparedStatement);
+				providers[i] = new ConnectionProvider() {
+
+					public Connection get() throws SQLException {
+						return connection;
+					}
+				};
+			}
+		} catch (SQLException e) {
+			fail("Shouldn't happen");
+		}
+		ShardedConnectionProvider shards = shardedConnectionProvider(providers);
+		RowMapper<Long> idMapper = singleColumnRowMapper(Long.class);
+
+		assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 7L, 9L), doScatterQuery(
+				shards, new Comparator<Long>() {
+
+					public int compare(Long a, Long b) {
+						return a.compareTo(b);
+					}
+				}, sql, idMapper));
+	}
+
+	@Test
+	public void testParameterBinders() {
+		final Connection connection = mock(Connection.class);
+		ConnectionProvider connectionProvider = new ConnectionProvider() {
+
+			public Connection get() throws SQLException {
+				return connection;
+			}
+		};
+
+		PreparedStatement preparedStatement = mock(PreparedStatement.class);
+		String sql = "jdbc.can.be.nice";
+		java.sql.Timestamp timestamp = new java.sql.Timestamp(8);
+		java.util.Date date = new java.util.Date(2);
+
+		try {
+			when(connection.prepareStatement(sql))
+					.thenReturn(preparedStatement);
+
+			doWithConnection(sqlUpdate(sql, 8L, timestamp, date, SqlParameter
+					.nullOf(Types.DATE), SqlParameter.of(3, Types.SMALLINT),
+					null), connectionProvider);
+			// same sql, other classes
+			doWithConnection(sqlUpdate(sql, "8", 2.5, new StringBuilder("x"),
+					null, null, null), connectionProvider);
+
+			verify(preparedStatement).setLong(1, 8L);
+			verify(preparedStatement).setTimestamp(2, timestamp);
+			verify(preparedStatement).setTimestamp(3,
+					new java.sql.Timestamp(2));
+			verify(preparedStatement).setNull(4, Types.DATE);
+			verify(preparedStatement).setObject(5, 3, Types.SMALLINT);
+			verify(preparedStatement, times(2)).setObject(6, null);
+			verify(preparedStatement).setString(1, "8");
+			verify(preparedStatement).setDouble(2, 2.5);
+			verify(preparedStatement).setObject(eq(3),
+					any(StringBuilder.class));
+			verify(preparedStatement, never()).setObject(1, 8L);
+		} catch (SQLException e) {
+			fail("Shouldn't happen");
+		}
+	}
+
+	@Test
+	public void testSqlBulkInsert() {
+		final Connection connection = mock(Connection.class);
+		ConnectionProvider connectionProvider = new ConnectionProvider() {
+
+			public Connection get() throws SQLException {
+				return connection;
+			}
+		};
+
+		PreparedStatement chunkStatement = mock(PreparedStatement.class);
+		PreparedStatement lastStatement = mock(PreparedStatement.class);
+		String chunkSql = "insert into t (a, b) values (?, ?), (?, ?)";
+		String lastSql = "insert into t (a, b) values (?, ?)";
+		List<Object[]> rows = new ArrayList<Object[]>();
+		for (int i = 0; i < 5; i++) {
+			rows.add(new Object[] { i, "v" + i });
+		}
+
+		try {
+			when(connection.prepareStatement(chunkSql)).thenReturn(
+					chunkStatement);
+			when(connection.prepareStatement(lastSql)).thenReturn(
+					lastStatement);
+			when(chunkStatement.executeUpdate()).thenReturn(2);
+			when(lastStatement.executeUpdate()).thenReturn(1);
+
+			int inserted = doWithConnection(sqlBulkInsert("t", new String[] {
+					"a", "b" }, rows, 5), connectionProvider);
+
+			assertEquals(5, inserted);
+			verify(connection, times(1)).prepareStatement(chunkSql);
+			verify(chunkStatement, times(2)).executeUpdate();
+			verify(chunkStatement).setInt(3, 1);
+			verify(chunkStatement).setString(4, "v3");
+			verify(lastStatement).setInt(1, 4);
+			verify(lastStatement).setString(2, "v4");
+		} catch (SQLException e) {
+			fail("Shouldn't happen");
+		}
+	}
+
+	@Test
+	public void testSqlChunkedTx() {
+		final Connection connection = mock(Connection.class);
+		ConnectionProvider connectionProvider = new ConnectionProvider() {
+
+			public Connection get() throws SQLException {
+				return connection;
+			}
+		};
+		PreparedStatement preparedStatement = mock(PreparedStatement.class);
+		Savepoint savepoint = mock(Savepoint.class);
+		String sql = "insert into t values(?)";
+		List<Object[]> rows = new ArrayList<Object[]>();
+		for (int i = 0; i < 5; i++) {
+			rows.add(new Object[] { i });
+		}
+		final List<Long> progress = new ArrayList<Long>();
+		ChunkedTxOptions options = new ChunkedTxOptions().rowsPerChunk(2)
+				.retries(1).listener(new ChunkListener() {
+
+					public void chunkCommitted(long committedRows,
+							int chunkRows, long chunkNanos) {
+						progress.add(committedRows);
+					}
+				});
+
+		try {
+			when(connection.getAutoCommit()).thenReturn(true);
+			when(connection.setSavepoint()).thenReturn(savepoint);
+			when(connection.prepareStatement(sql))
+					.thenReturn(preparedStatement);
+			when(preparedStatement.executeBatch()).thenReturn(new int[2],
+					new int[2]).thenThrow(new SQLException("deadlock", "40001"));
+
+			try {
+				doWithConnection(sqlChunkedTx(sql, rows, options),
+						connectionProvider);
+				fail("The third chunk fails");
+			} catch (ChunkedTxException e) {
+				assertEquals(4, e.getCommittedRows());
+				assertEquals("deadlock", e.getCause().getMessage());
+			}
+			assertEquals(Arrays.asList(2L, 4L), progress);
+			verify(connection, times(2)).commit();
+			// the failing batch was retried once from its savepoint
+			verify(connection).rollback(savepoint);
+			verify(connection).rollback();
+			verify(connection).setAutoCommit(true);
+
+			reset(preparedStatement);
+			when(preparedStatement.executeBatch()).thenReturn(new int[1]);
+			long committed = doWithConnection(sqlChunkedTx(sql, rows, options
+					.resumeFrom(4)), connectionProvider);
+			assertEquals(5, committed);
+			assertEquals(Arrays.asList(2L, 4L, 5L), progress);
+			verify(preparedStatement, never()).setInt(1, 3);
+			verify(preparedStatement).setInt(1, 4);
+
+			// a failing listener still tells where to resume from
+			try {
+				doWithConnection(sqlChunkedTx(sql, rows, new ChunkedTxOptions()
+						.rowsPerChunk(2).listener(new ChunkListener() {
+
+							public void chunkCommitted(long committedRows,
+									int chunkRows, long chunkNanos) {
+								throw new IllegalStateException("full disk");
+							}
+						})), connectionProvider);
+				fail("The listener fails");
+			} catch (ChunkedTxException e) {
+				assertEquals(2, e.getCommittedRows());
+				assertEquals("full disk", e.getCause().getMessage());
+			}
+
+			// a permanent error isn't retried
+			reset(preparedStatement);
+			when(preparedStatement.executeBatch()).thenThrow(
+					new SQLException("duplicate key", "23505"));
+			try {
+				doWithConnection(sqlChunkedTx(sql, rows, options
+						.resumeFrom(0)), connectionProvider);
+				fail("The first chunk fails");
+			} catch (ChunkedTxException e) {
+				assertEquals(0, e.getCommittedRows());
+			}
+			verify(preparedStatement, times(1)).executeBatch();
+			verify(connection).rollback(savepoint);
+
+			// the caller's pending work isn't committed
+			when(connection.getAutoCommit()).thenReturn(false);
+			try {
+				doWithConnection(sqlChunkedTx(sql, rows, options),
+						connectionProvider);
+				fail("Should have refused the connection");
+			} catch (IllegalStateException e) {
+			}
+			verify(connection, times(4)).commit();
+		} catch (SQLException e) {
+			fail("Shouldn't happen");
+		}
+	}
+
+	@Test
+	public void testSqlBatchUpdateAndReturnKeys() {
+		final Connection connection = mock(Connection.class);
+		ConnectionProvider connectionProvider = new ConnectionProvider() {
+
+			public Connection get() throws SQLException {
+				return connection;
+			}
+		};
+
+		PreparedStatement preparedStatement = mock(PreparedStatement.class);
+		java.sql.DatabaseMetaData metaData = mock(java.sql.DatabaseMetaData.class);
+		ResultSet firstKeys = mock(ResultSet.class);
+		ResultSet lastKeys = mock(ResultSet.class);
+		ResultSet partialKeys = mock(ResultSet.class);
+		ResultSet rowKeys = mock(ResultSet.class);
+		String sql = "jdbc.can.be.nice";
+		List<Object[]> rows = Arrays.asList(new Object[] { "a" },
+				new Object[] { "b" }, new Object[] { "c" });
+
+		try {
+			when(connection.getMetaData()).thenReturn(metaData);
+			when(metaData.getDriverName()).thenReturn("batch-keys-test");
+			when(metaData.supportsBatchUpdates()).thenReturn(true);
+			when(metaData.supportsGetGeneratedKeys()).thenReturn(true);
+			when(connection.prepareStatement(sql,
+					Statement.RETURN_GENERATED_KEYS)).thenReturn(
+					preparedStatement);
+			when(firstKeys.next()).thenReturn(true, true, false);
+			when(firstKeys.getLong(1)).thenReturn(10L, 11L);
+			when(lastKeys.next()).thenReturn(true, false);
+			when(lastKeys.getLong(1)).thenReturn(12L);
+			when(partialKeys.next()).thenReturn(true, false);
+			when(rowKeys.next()).thenReturn(true, false, true, false, true,
+					false);
+			when(rowKeys.getLong(1)).thenReturn(20L, 21L, 22L);
+			when(preparedStatement.getGeneratedKeys()).thenReturn(firstKeys,
+					lastKeys, partialKeys, rowKeys);
+
+			when(connection.getAutoCommit()).thenReturn(true);
+
+			// the first batch proves the driver in a transaction of its own
+			long[] keys = doWithConnection(sqlBatchUpdateAndReturnKeys(sql,
+					rows, 2), connectionProvider);
+			assertTrue(Arrays.equals(new long[] { 10, 11, 12 }, keys));
+			verify(preparedStatement, times(2)).executeBatch();
+			verify(connection).setAutoCommit(false);
+			verify(connection).commit();
+			verify(connection).setAutoCommit(true);
+
+			// this driver returns a single key for a batch of 2, so the batch
+			// is rolled back and its rows inserted one by one
+			when(metaData.getDriverName()).thenReturn("short-batch-keys-test");
+			keys = doWithConnection(sqlBatchUpdateAndReturnKeys(sql, rows, 2),
+					connectionProvider);
+			assertTrue(Arrays.equals(new long[] { 20, 21, 22 }, keys));
+			verify(connection).rollback();
+			verify(preparedStatement).clearBatch();
+			verify(preparedStatement, times(3)).executeBatch();
+			verify(preparedStatement, times(3)).executeUpdate();
+
+			// which is remembered, so the rows are now inserted one by one
+			when(rowKeys.next()).thenReturn(true, false, true, false, true,
+					false);
+			when(rowKeys.getLong(1)).thenReturn(30L, 31L, 32L);
+			when(preparedStatement.getGeneratedKeys()).thenReturn(rowKeys);
+			keys = doWithConnection(sqlBatchUpdateAndReturnKeys(sql, rows, 2),
+					connectionProvider);
+			assertTrue(Arrays.equals(new long[] { 30, 31, 32 }, keys));
+			verify(preparedStatement, times(3)).executeBatch();
+			verify(preparedStatement, times(6)).executeUpdate();
+
+			// a driver without batch keys support, in a caller's transaction
+			Savepoint savepoint = mock(Savepoint.class);
+			when(connection.getAutoCommit()).thenReturn(false);
+			when(connection.setSavepoint()).thenReturn(savepoint);
+			when(metaData.getDriverName()).thenReturn(
+					"unsupported-batch-keys-test");
+			when(preparedStatement.executeBatch()).thenThrow(
+					new SQLFeatureNotSupportedException());
+			when(rowKeys.next()).thenReturn(true, false, true, false, true,
+					false);
+			when(rowKeys.getLong(1)).thenReturn(40L, 41L, 42L);
+			keys = doWithConnection(sqlBatchUpdateAndReturnKeys(sql, rows, 2),
+					connectionProvider);
+			assertTrue(Arrays.equals(new long[] { 40, 41, 42 }, keys));
+			verify(connection).rollback(savepoint);
+			verify(connection).releaseSavepoint(savepoint);
+			verify(preparedStatement, times(9)).executeUpdate();
+
+			// a successful probe releases its savepoint too
+			ResultSet batchKeys = mock(ResultSet.class);
+			when(batchKeys.next()).thenReturn(true, true, true, false);
+			when(batchKeys.getLong(1)).thenReturn(50L, 51L, 52L);
+			when(preparedStatement.getGeneratedKeys()).thenReturn(batchKeys);
+			doReturn(new int[3]).when(preparedStatement).executeBatch();
+			when(metaData.getDriverName()).thenReturn(
+					"savepoint-batch-keys-test");
+			keys = doWithConnection(sqlBatchUpdateAndReturnKeys(sql, rows, 3),
+					connectionProvider);
+			assertTrue(Arrays.equals(new long[] { 50, 51, 52 }, keys));
+			verify(connection, times(2)).releaseSavepoint(savepoint);
+			verify(connection).rollback(savepoint);
+		} catch (SQLException e) {
+			fail("Shouldn't happen");
+		}
+	}
+
+	@Test
+	public void testWriteBehindWriter() throws Exception {
+		final Connection connection = mock(Connection.class);
+		ConnectionProvider connectionProvider = new ConnectionProvider() {
+
+			public Connection get() throws SQLException {
+				return connection;
+			}
+		};
+
+		PreparedStatement eventStatement = mock(PreparedStatement.class);
+		PreparedStatement counterStatement = mock(PreparedStatement.class);
+		String event = "jdbc.can.be.nice.event";
+		String counter = "jdbc.can.be.nice.counter";
+
+		when(connection.getAutoCommit()).thenReturn(true);
+		when(connection.prepareStatement(event)).thenReturn(eventStatement);
+		when(connection.prepareStatement(counter)).thenReturn(
+				counterStatement);
+		when(eventStatement.executeBatch()).thenReturn(new int[] { 1, 1 });
+		when(counterStatement.executeBatch()).thenReturn(new int[] { 3 });
+
+		// a long interval, so that the group is flushed because it's full
+		WriteBehindWriter writer = new WriteBehindWriter(connectionProvider,
+				3, 60000, 3);
+		CompletableFuture<Integer> first = writer.submit(event, 1);
+		CompletableFuture<Integer> second = writer.submit(event, 2);
+		CompletableFuture<Integer> third = writer.trySubmit(counter, 8);
+		assertNotNull(third);
+
+		assertEquals(1, (int) first.get(5, TimeUnit.SECONDS));
+		assertEquals(1, (int) second.get(5, TimeUnit.SECONDS));
+		assertEquals(3, (int) third.get(5, TimeUnit.SECONDS));
+		writer.close();
+
+		assertEquals(1, writer.getFlushCount());
+		assertEquals(3, writer.getWrittenCount());
+		verify(connection, times(1)).commit();
+		verify(eventStatement).setInt(1, 1);
+		verify(eventStatement).setInt(1, 2);
+		verify(eventStatement, times(1)).executeBatch();
+		try {
+			writer.submit(event, 4);
+			fail("Should have failed");
+		} catch (IllegalStateException e) {
+		}
+	}
+
+	@Test
+	public void testWriteBehindWriterIsolatesFailingUpdates()
+			throws Exception {
+		final Connection connection = mock(Connection.class);
+		ConnectionProvider connectionProvider = new ConnectionProvider() {
+
+			public Connection get() throws SQLException {
+				return connection;
+			}
+		};
+
+		PreparedStatement eventStatement = mock(PreparedStatement.class);
+		String event = "jdbc.can.be.nice.event";
+
+		when(connection.getAutoCommit()).thenReturn(true);
+		when(connection.prepareStatement(event)).thenReturn(eventStatement);
+		// the group's batch fails because of its second update, which fails
+		// again when written alone
+		when(eventStatement.executeBatch()).thenThrow(
+				new SQLException("constraint violation")).thenReturn(
+				new int[] { 1 }).thenThrow(
+				new SQLException("constraint violation")).thenReturn(
+				new int[] { 1 });
+
+		WriteBehindWriter writer = new WriteBehindWriter(connectionProvider,
+				3, 60000, 3);
+		CompletableFuture<Integer> first = writer.submit(event, 1);
+		CompletableFuture<Integer> second = writer.submit(event, 2);
+		CompletableFuture<Integer> third = writer.submit(event, 3);
+
+		assertEquals(1, (int) first.get(5, TimeUnit.SECONDS));
+		try {
+			second.get(5, TimeUnit.SECONDS);
+			fail("Should have failed");
+		} catch (java.util.concurrent.ExecutionException e) {
+			assertEquals("constraint violation", e.getCause().getCause()
+					.getMessage());
+		}
+		assertEquals(1, (int) third.get(5, TimeUnit.SECONDS));
+		writer.close();
+
+		assertEquals(2, writer.getWrittenCount());
+		verify(connection, times(2)).commit();
+		verify(connection, times(2)).rollback();
+		verify(eventStatement, times(4)).executeBatch();
+	}
+
+	@Test
+	public void testLatencyHistogram() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long nanos = 1; nanos <= 1000; nanos++) {
+			histogram.record(nanos * 1000);
+		}
+
+		assertEquals(1000, histogram.getCount());
+		assertEquals(1000000, histogram.getMaxNanos());
+		assertEquals(500500.0, histogram.getMeanNanos());
+		long p50 = histogram.getPercentileNanos(50);
+		assertTrue(p50 >= 500000 && p50 <= 500000 * 1.04);
+		long p99 = histogram.getPercentileNanos(99);
+		assertTrue(p99 >= 990000 && p99 <= 990000 * 1.04);
+		assertEquals(1000000, histogram.getPercentileNanos(100));
+		for (long value = 0; value < 1L << 41; value = value * 3 + 1) {
+			int bucket = LatencyHistogram.bucket(value);
+			assertTrue(LatencyHistogram.upperBound(bucket) >= value);
+			assertTrue(bucket == 0
+					|| LatencyHistogram.upperBound(bucket - 1) < value);
+		}
+	}
+
+	@Test
+	public void testJdbcMetrics() {
+		final Connection connection = mock(Connection.class);
+		PooledConnectionProvider pool = pooledConnectionProvider(
+				new ConnectionProvider() {
+
+					public Connection get() throws SQLException {
+						return connection;
+					}
+				}, new PoolConfig().validateOnBorrow(false));
+
+		PreparedStatement preparedStatement = mock(PreparedStatement.class);
+		String sql = "jdbc.can.be.nice";
+		final List<String> keys = new ArrayList<String>();
+		JdbcMetrics metrics = new JdbcMetrics();
+		metrics.addListener(new JdbcMetricsListener() {
+
+			public void actionExecuted(String key, long nanos, long rows,
+					Throwable error) {
+				keys.add(key + (error == null ? "" : " failed"));
+			}
+
+			public void connectionAcquired(long nanos) {
+			}
+		});
+		ConnectionProvider connectionProvider = metrics.instrument(pool);
+
+		try {
+			when(connection.prepareStatement(sql))
+					.thenReturn(preparedStatement);
+			when(preparedStatement.executeUpdate()).thenReturn(3).thenThrow(
+					new SQLException("boom"));
+
+			doWithConnection(metrics.instrument(sqlUpdate(sql)),
+					connectionProvider);
+			try {
+				doWithConnection(metrics.instrument(sqlUpdate(sql)),
+						connectionProvider);
+				fail("Should have failed");
+			} catch (RuntimeException e) {
+			}
+
+			StatementMetrics statement = metrics.getStatement(sql);
+			assertEquals(2, statement.getCount());
+			assertEquals(3, statement.getRows());
+			assertEquals(1, statement.getErrors());
+			assertEquals(Arrays.asList(sql, sql + " failed"), keys);
+			assertEquals(2, metrics.getConnectionAcquire().getCount());
+			assertEquals(2, metrics.getPoolWait().getCount());
+			assertEquals(0, pool.getBorrowedCount());
+
+			// the rows are those fetched, not the folded integer
+			String query = "jdbc.can.be.nice.query";
+			PreparedStatement queryStatement = mock(PreparedStatement.class);
+			ResultSet resultSet = mock(ResultSet.class);
+			when(connection.prepareStatement(query)).thenReturn(
+					queryStatement);
+			when(queryStatement.executeQuery()).thenReturn(resultSet);
+			when(resultSet.next()).thenReturn(true, true, false);
+			when(resultSet.getInt(1)).thenReturn(20, 22);
+			JdbcMetrics other = new JdbcMetrics();
+			connectionProvider = other.instrument(pool);
+			int sum = doWithConnection(metrics.instrument(sqlQueryFold(query,
+					0, new Folder<Integer>() {
+
+						public Integer fold(Integer acc, ResultSet resultSet,
+								int row) throws SQLException {
+							return acc + resultSet.getInt(1);
+						}
+					})), connectionProvider);
+			assertEquals(42, sum);
+			assertEquals(2, metrics.getStatement(query).getRows());
+			// both registries measure the waits of the pool
+			assertEquals(3, metrics.getPoolWait().getCount());
+			assertEquals(1, other.getPoolWait().getCount());
+		} catch (SQLException e) {
+			fail("Shouldn't happen");
+		}
+	}
+
+	@Test
+	public void testJdbcTracer() {
+		final Connection connection = mock(Connection.class);
+		ConnectionProvider connectionProvider = new ConnectionProvider() {
+
+			public Connection get() throws SQLException {
+				return connection;
+			}
+		};
+
+		PreparedStatement updateStatement = mock(PreparedStatement.class);
+		PreparedStatement queryStatement = mock(PreparedStatement.class);
+		ResultSet resultSet = mock(ResultSet.class);
+		String update = "jdbc.can.be.nice.update";
+		String query = "jdbc.can.be.nice.query";
+		final List<Span> slow = new ArrayList<Span>();
+		SlowQueryLog slowQueryLog = new SlowQueryLog() {
+
+			public void slowAction(Span root) {
+				slow.add(root);
+			}
+		};
+
+		try {
+			when(connection.getAutoCommit()).thenReturn(true);
+			when(connection.prepareStatement(update)).thenReturn(
+					updateStatement);
+			when(connection.prepareStatement(query)).thenReturn(
+					queryStatement);
+			when(updateStatement.executeUpdate()).thenReturn(2);
+			when(queryStatement.executeQuery()).thenReturn(resultSet);
+			when(resultSet.next()).thenReturn(true, true, true, false, true,
+					true, true, false);
+			JdbcAction<List<Object>> action = sqlTx(sqlUpdate(update, 1, 2)
+					.thenReturn(
+							sqlQuery(query, singleColumnRowMapper(Object.class))));
+
+			doWithConnection(new JdbcTracer(60000, slowQueryLog)
+					.trace(action), connectionProvider);
+			assertTrue(slow.isEmpty());
+
+			doWithConnection(new JdbcTracer(0, slowQueryLog).trace(action),
+					connectionProvider);
+			assertEquals(1, slow.size());
+			Span root = slow.get(0);
+			assertEquals(action.toString(), root.getName());
+			Span tx = root.getChildren().get(0);
+			assertEquals("tx", tx.getName());
+			assertEquals(2, tx.getChildren().size());
+			Span updateSpan = tx.getChildren().get(0);
+			assertEquals(update, updateSpan.getName());
+			assertEquals(2, updateSpan.getParams());
+			assertEquals(2, updateSpan.getRows());
+			assertEquals("prepare", updateSpan.getChildren().get(0).getName());
+			assertEquals("execute", updateSpan.getChildren().get(1).getName());
+			Span querySpan = tx.getChildren().get(1);
+			assertEquals(3, querySpan.getRows());
+			assertEquals("fetch", querySpan.getChildren().get(2).getName());
+			assertTrue(querySpan.isFinished());
+			assertTrue(root.toTreeString().contains("\n    " + query));
+		} catch (SQLException e) {
+			fail("Shouldn't happen");
+		}
+	}
 }